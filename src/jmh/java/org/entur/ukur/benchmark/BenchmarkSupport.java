@@ -0,0 +1,213 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.benchmark;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Transaction;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.ITopic;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.entur.ukur.service.DataStorageService;
+import org.entur.ukur.subscription.Subscription;
+import org.entur.ukur.xml.SiriMarshaller;
+import uk.org.siri.siri20.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Fixtures and synthetic subscription populations shared by the benchmarks. Everything is deterministic (fixed seed)
+ * so results can be compared across versions.
+ */
+public class BenchmarkSupport {
+
+    private static final long SEED = 42;
+
+    private BenchmarkSupport() {
+    }
+
+    public static byte[] readResource(String name) {
+        try (InputStream in = BenchmarkSupport.class.getResourceAsStream(name)) {
+            return IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + name, e);
+        }
+    }
+
+    public static <T> T unmarshall(SiriMarshaller siriMarshaller, String resource, Class<T> type) {
+        try {
+            return siriMarshaller.unmarshall(new ByteArrayInputStream(readResource(resource)), type);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not unmarshall " + resource, e);
+        }
+    }
+
+    public static List<EstimatedVehicleJourney> loadJourneys(SiriMarshaller siriMarshaller) {
+        List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+        journeys.add(unmarshall(siriMarshaller, "/et-ruter.xml", EstimatedVehicleJourney.class));
+        journeys.add(unmarshall(siriMarshaller, "/et-ruter-2.xml", EstimatedVehicleJourney.class));
+        Siri siri = unmarshall(siriMarshaller, "/et-pretty.xml", Siri.class);
+        for (EstimatedTimetableDeliveryStructure delivery : siri.getServiceDelivery().getEstimatedTimetableDeliveries()) {
+            for (EstimatedVersionFrameStructure frame : delivery.getEstimatedJourneyVersionFrames()) {
+                journeys.addAll(frame.getEstimatedVehicleJourneies());
+            }
+        }
+        return journeys;
+    }
+
+    public static List<PtSituationElement> loadSituations(SiriMarshaller siriMarshaller) {
+        List<PtSituationElement> situations = new ArrayList<>();
+        situations.add(unmarshall(siriMarshaller, "/sx-ruter.xml", PtSituationElement.class));
+        for (String resource : Arrays.asList("/sx-pretty.xml", "/sx-vehiclejourneyref2123-pretty.xml")) {
+            Siri siri = unmarshall(siriMarshaller, resource, Siri.class);
+            for (SituationExchangeDeliveryStructure delivery : siri.getServiceDelivery().getSituationExchangeDeliveries()) {
+                situations.addAll(delivery.getSituations().getPtSituationElements());
+            }
+        }
+        return situations;
+    }
+
+    /**
+     * A DataStorageService backed by a mocked Datastore, so subscriptions only live in the local subscription cache.
+     */
+    @SuppressWarnings("unchecked")
+    public static DataStorageService createDataStorageService() {
+        Datastore datastore = mock(Datastore.class);
+        when(datastore.newKeyFactory()).thenReturn(new KeyFactory("benchmark"));
+        AtomicLong ids = new AtomicLong();
+        when(datastore.allocateId(any(IncompleteKey.class))).thenAnswer(invocation -> Key.newBuilder((IncompleteKey) invocation.getArguments()[0], ids.incrementAndGet()).build());
+        when(datastore.newTransaction()).thenReturn(mock(Transaction.class));
+        return new DataStorageService(datastore, mock(IMap.class), mock(ITopic.class));
+    }
+
+    /**
+     * Adds subscriptions based on the stops, lines and codespaces in the given journeys: most are from/to stops along
+     * one of the journeys (so they match), some are random stop pairs, and a few are on line or codespace.
+     */
+    public static List<Subscription> addSubscriptions(DataStorageService dataStorageService, int count, List<EstimatedVehicleJourney> journeys, String pushAddress) {
+        Random random = new Random(SEED);
+        List<List<String>> journeyStops = new ArrayList<>();
+        List<String> allStops = new ArrayList<>();
+        List<String> lineRefs = new ArrayList<>();
+        List<String> codespaces = new ArrayList<>();
+        for (EstimatedVehicleJourney journey : journeys) {
+            List<String> stops = getStops(journey);
+            if (stops.size() > 1) {
+                journeyStops.add(stops);
+                allStops.addAll(stops);
+            }
+            lineRefs.add(getStringValue(journey.getLineRef()));
+            if (journey.getDataSource() != null) {
+                codespaces.add(journey.getDataSource());
+            }
+        }
+        List<Subscription> subscriptions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Subscription subscription = new Subscription();
+            subscription.setName("Benchmark subscription " + i);
+            subscription.setPushAddress(pushAddress);
+            int kind = random.nextInt(100);
+            if (kind < 55) {
+                List<String> stops = journeyStops.get(random.nextInt(journeyStops.size()));
+                int from = random.nextInt(stops.size() - 1);
+                int to = from + 1 + random.nextInt(stops.size() - from - 1);
+                subscription.addFromStopPoint(stops.get(from));
+                subscription.addToStopPoint(stops.get(to));
+            } else if (kind < 95) {
+                subscription.addFromStopPoint(allStops.get(random.nextInt(allStops.size())));
+                subscription.addToStopPoint(allStops.get(random.nextInt(allStops.size())));
+            } else if (kind < 99 || codespaces.isEmpty()) {
+                subscription.addLineRef(lineRefs.get(random.nextInt(lineRefs.size())));
+            } else {
+                subscription.addCodespace(codespaces.get(random.nextInt(codespaces.size())));
+            }
+            subscriptions.add(dataStorageService.addSubscription(subscription));
+        }
+        return subscriptions;
+    }
+
+    public static List<String> getStops(EstimatedVehicleJourney journey) {
+        List<String> stops = new ArrayList<>();
+        if (journey.getRecordedCalls() != null) {
+            for (RecordedCall call : journey.getRecordedCalls().getRecordedCalls()) {
+                stops.add(getStringValue(call.getStopPointRef()));
+            }
+        }
+        if (journey.getEstimatedCalls() != null) {
+            for (EstimatedCall call : journey.getEstimatedCalls().getEstimatedCalls()) {
+                stops.add(getStringValue(call.getStopPointRef()));
+            }
+        }
+        return stops;
+    }
+
+    /**
+     * Local push endpoint that reads the pushed message and responds 200 OK, so the push path is measured as in
+     * production and not short circuited by an open push host circuit.
+     */
+    public static HttpServer startPushStub() throws IOException {
+        return startPushStub(exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                IOUtils.skip(body, Long.MAX_VALUE);
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+    }
+
+    public static HttpServer startPushStub(HttpHandler handler) throws IOException {
+        HttpServer stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.setExecutor(Executors.newFixedThreadPool(10));
+        stub.createContext("/push", handler);
+        stub.start();
+        return stub;
+    }
+
+    public static String getPushAddress(HttpServer stub) {
+        return "http://localhost:" + stub.getAddress().getPort() + "/push";
+    }
+
+    public static void stopPushStub(HttpServer stub) {
+        stub.stop(0);
+        ((ExecutorService) stub.getExecutor()).shutdownNow();
+    }
+
+    public static <K, V> Map<K, V> forgetfulMap() {
+        //a map that never remembers anything, so the already-sent check never short circuits the benchmarked code
+        return new HashMap<K, V>() {
+            @Override
+            public V put(K key, V value) {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformSnapshot;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.commons.lang3.StringUtils;
+import org.entur.ukur.benchmark.BenchmarkSupport;
+import org.entur.ukur.routedata.LiveRouteManager;
+import org.entur.ukur.routedata.TimetableService;
+import org.entur.ukur.service.DataStorageService;
+import org.entur.ukur.service.FileStorageService;
+import org.entur.ukur.service.MetricsService;
+import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.entur.ukur.subscription.SubscriptionManager;
+import org.entur.ukur.xml.SiriMarshaller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.PtSituationElement;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.entur.ukur.xml.SiriObjectHelper.getBigIntegerValue;
+import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Replays ET and SX messages recorded by {@link FileStorageService} (ukur.camel.et.store.files and
+ * ukur.camel.sx.store.files) through the subscription processors, in the recorded order and at a given speed. A
+ * subscription population is generated from the recorded journeys (deterministically) and pushed to a local stub
+ * endpoint, which measures the latency from a message is received until it is pushed. Pushes are matched with the
+ * received message on journey (RecordedAtTime) or situation (Version) version, pushes that can't be matched to a
+ * single received message are counted separately.
+ * <p>
+ * Usage: ReplayHarness &lt;recorded folder&gt; [speed: 1, 10, ... or max] [number of subscriptions]
+ */
+public class ReplayHarness {
+
+    private static final DateTimeFormatter FILENAME_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    private static final int MAX_JOURNEYS_FOR_SUBSCRIPTIONS = 1000;
+    private static final long QUIET_PERIOD_MS = 5000;
+    private static final String UNVERSIONED = "_unversioned";
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final SiriMarshaller siriMarshaller;
+    private final ConcurrentHashMap<String, Long> receivedNanos = new ConcurrentHashMap<>();
+    private final Set<String> ambiguousKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicLong unmatchedPushes = new AtomicLong();
+    private final ConcurrentLinkedQueue<Long> pushLatencies = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Long> processingTimes = new ArrayList<>();
+    private final AtomicLong lastPushMillis = new AtomicLong();
+    private HttpServer stub;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayHarness <recorded folder> [speed: 1, 10, ... or max] [number of subscriptions]");
+            System.exit(1);
+        }
+        double speed = args.length > 1 && !"max".equalsIgnoreCase(args[1]) ? Double.parseDouble(args[1]) : 0;
+        int subscriptions = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        new ReplayHarness().replay(Paths.get(args[0]), speed, subscriptions);
+        System.exit(0); //the push threads are not daemons
+    }
+
+    public ReplayHarness() throws Exception {
+        siriMarshaller = new SiriMarshaller();
+    }
+
+    /**
+     * @param speed 1 replays in recorded pace, 10 ten times faster, 0 (or less) as fast as possible
+     */
+    public void replay(Path folder, double speed, int subscriptions) throws Exception {
+        List<RecordedMessage> messages = findRecordedMessages(folder);
+        if (messages.isEmpty()) {
+            throw new IllegalArgumentException("No recorded ET or SX messages found in " + folder);
+        }
+        stub = BenchmarkSupport.startPushStub(this::handlePush);
+
+        MetricsService metricsService = new MetricsService();
+        QuayAndStopPlaceMappingService mappingService = new QuayAndStopPlaceMappingService(metricsService);
+        DataStorageService dataStorageService = BenchmarkSupport.createDataStorageService();
+        SubscriptionManager subscriptionManager = new SubscriptionManager(dataStorageService, siriMarshaller, metricsService,
+                new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), mappingService);
+        TimetableService timetableService = new TimetableService(metricsService);
+        ETSubscriptionProcessor etProcessor = new ETSubscriptionProcessor(subscriptionManager, siriMarshaller, mock(FileStorageService.class), metricsService, mappingService, timetableService);
+        etProcessor.skipCallTimeChecks = true; //the recorded journeys are in the past
+        SXSubscriptionProcessor sxProcessor = new SXSubscriptionProcessor(subscriptionManager, siriMarshaller,
+                new LiveRouteManager(dataStorageService, mappingService), mock(FileStorageService.class), metricsService, new ConcurrentHashMap<>(), new ConcurrentHashMap<>(),
+                timetableService);
+        BenchmarkSupport.addSubscriptions(dataStorageService, subscriptions, sampleJourneys(messages), BenchmarkSupport.getPushAddress(stub));
+
+        logger.info("Replays {} messages with speed {} to {} subscriptions", messages.size(), speed > 0 ? speed + "x" : "max", subscriptions);
+        DefaultCamelContext camelContext = new DefaultCamelContext();
+        long firstRecorded = messages.get(0).recorded;
+        long start = System.currentTimeMillis();
+        long maxLag = 0;
+        for (RecordedMessage message : messages) {
+            if (speed > 0) {
+                long due = start + (long) ((message.recorded - firstRecorded) / speed);
+                long wait = due - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                } else {
+                    maxLag = Math.max(maxLag, -wait);
+                }
+            }
+            byte[] xml = Files.readAllBytes(message.path);
+            Exchange exchange = new DefaultExchange(camelContext);
+            exchange.getIn().setBody(new ByteArrayInputStream(xml));
+            long received = System.nanoTime();
+            if (message.et) {
+                received(getKey(siriMarshaller.unmarshall(new ByteArrayInputStream(xml), EstimatedVehicleJourney.class)), received);
+                received = System.nanoTime(); //the key lookup above is not part of the measured processing
+                etProcessor.process(exchange);
+            } else {
+                received(getKey(siriMarshaller.unmarshall(new ByteArrayInputStream(xml), PtSituationElement.class)), received);
+                received = System.nanoTime();
+                sxProcessor.process(exchange);
+            }
+            processingTimes.add(System.nanoTime() - received);
+        }
+        long replayed = System.currentTimeMillis();
+        lastPushMillis.compareAndSet(0, replayed);
+        while (System.currentTimeMillis() - Math.max(replayed, lastPushMillis.get()) < QUIET_PERIOD_MS) {
+            Thread.sleep(100);
+        }
+        BenchmarkSupport.stopPushStub(stub);
+        subscriptionManager.shutdown();
+        report(messages.size(), replayed - start, Math.max(replayed, lastPushMillis.get()) - start, maxLag);
+    }
+
+    /**
+     * Only the first receive of a version is kept, as resends of it are not pushed again. Without a version the
+     * pushes can't tell which receive they belong to, so keys received more than once are not measured.
+     */
+    private void received(String key, long nanos) {
+        if (receivedNanos.putIfAbsent(key, nanos) != null && key.endsWith(UNVERSIONED)) {
+            ambiguousKeys.add(key);
+        }
+    }
+
+    private void report(int messages, long replayMillis, long totalMillis, long maxLag) {
+        System.out.println();
+        System.out.printf("Replayed %d messages in %d ms (%.1f messages/s), max lag behind the recorded pace: %d ms%n",
+                messages, replayMillis, messages * 1000.0 / Math.max(1, replayMillis), maxLag);
+        long pushes = pushLatencies.size() + unmatchedPushes.get();
+        System.out.printf("Received %d pushes in %d ms (%.1f pushes/s), %d of them could not be matched with a received message%n",
+                pushes, totalMillis, pushes * 1000.0 / Math.max(1, totalMillis), unmatchedPushes.get());
+        printPercentiles("Processing (ms)", new UniformSnapshot(processingTimes));
+        printPercentiles("Receive -> push (ms)", new UniformSnapshot(pushLatencies));
+    }
+
+    private void printPercentiles(String name, Snapshot snapshot) {
+        System.out.printf("%-22s p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n", name,
+                snapshot.getMedian() / 1e6, snapshot.getValue(0.9) / 1e6, snapshot.get99thPercentile() / 1e6,
+                snapshot.get999thPercentile() / 1e6, snapshot.getMax() / 1e6);
+    }
+
+    /**
+     * Records when pushes arrive and always responds 200 OK.
+     */
+    private void handlePush(HttpExchange exchange) throws IOException {
+        long now = System.nanoTime();
+        try (InputStream body = exchange.getRequestBody()) {
+            String path = exchange.getRequestURI().getPath();
+            String key = null;
+            if (path.endsWith("/et")) {
+                key = getKey(siriMarshaller.unmarshall(body, EstimatedVehicleJourney.class));
+            } else if (path.endsWith("/sx")) {
+                key = getKey(siriMarshaller.unmarshall(body, PtSituationElement.class));
+            }
+            Long received = key == null || ambiguousKeys.contains(key) ? null : receivedNanos.get(key);
+            if (received != null) {
+                pushLatencies.add(now - received);
+            } else {
+                unmatchedPushes.incrementAndGet();
+            }
+        } catch (Exception e) {
+            logger.warn("Could not read pushed message", e);
+            unmatchedPushes.incrementAndGet();
+        }
+        lastPushMillis.set(System.currentTimeMillis());
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+    }
+
+    /**
+     * The pushed journey only has the calls the subscription is interested in, but RecordedAtTime is kept.
+     */
+    private String getKey(EstimatedVehicleJourney journey) {
+        String ref = getStringValue(journey.getDatedVehicleJourneyRef());
+        String key = "et_" + (ref != null ? ref : getStringValue(journey.getVehicleRef()));
+        return key + (journey.getRecordedAtTime() == null ? UNVERSIONED : "_" + journey.getRecordedAtTime());
+    }
+
+    private String getKey(PtSituationElement situation) {
+        BigInteger version = getBigIntegerValue(situation.getVersion());
+        return "sx_" + getStringValue(situation.getSituationNumber()) + (version == null ? UNVERSIONED : "_" + version);
+    }
+
+    private List<EstimatedVehicleJourney> sampleJourneys(List<RecordedMessage> messages) throws Exception {
+        List<RecordedMessage> etMessages = messages.stream().filter(m -> m.et).collect(Collectors.toList());
+        int step = Math.max(1, etMessages.size() / MAX_JOURNEYS_FOR_SUBSCRIPTIONS);
+        List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+        for (int i = 0; i < etMessages.size(); i += step) {
+            byte[] xml = Files.readAllBytes(etMessages.get(i).path);
+            journeys.add(siriMarshaller.unmarshall(new ByteArrayInputStream(xml), EstimatedVehicleJourney.class));
+        }
+        if (journeys.stream().noneMatch(j -> BenchmarkSupport.getStops(j).size() > 1)) {
+            throw new IllegalArgumentException("Needs recorded ET messages with calls to create subscriptions");
+        }
+        return journeys;
+    }
+
+    /**
+     * Finds files named as FileStorageService names them (yyyy-MM-dd_HH-mm-ss_ET_... or _SX_...), sorted on the
+     * recorded time.
+     */
+    static List<RecordedMessage> findRecordedMessages(Path folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            return files.filter(Files::isRegularFile)
+                    .map(ReplayHarness::toRecordedMessage)
+                    .filter(Objects::nonNull)
+                    .sorted(Comparator.comparingLong((RecordedMessage m) -> m.recorded).thenComparing(m -> m.path.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static RecordedMessage toRecordedMessage(Path path) {
+        String filename = path.getFileName().toString();
+        boolean et = filename.contains("_ET_");
+        if (!filename.endsWith(".xml") || (!et && !filename.contains("_SX_")) || filename.length() < 19) {
+            return null;
+        }
+        try {
+            LocalDateTime recorded = LocalDateTime.parse(StringUtils.left(filename, 19), FILENAME_TIMESTAMP);
+            return new RecordedMessage(path, recorded.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), et);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static class RecordedMessage {
+        final Path path;
+        final long recorded;
+        final boolean et;
+
+        RecordedMessage(Path path, long recorded, boolean et) {
+            this.path = path;
+            this.recorded = recorded;
+            this.et = et;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import com.sun.net.httpserver.HttpServer;
+import org.entur.ukur.benchmark.BenchmarkSupport;
+import org.entur.ukur.routedata.LiveRouteManager;
+import org.entur.ukur.routedata.TimetableService;
+import org.entur.ukur.service.DataStorageService;
+import org.entur.ukur.service.FileStorageService;
+import org.entur.ukur.service.MetricsService;
+import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.entur.ukur.subscription.SubscriptionManager;
+import org.entur.ukur.xml.SiriMarshaller;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.org.siri.siri20.AffectedVehicleJourneyStructure;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.PtSituationElement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Processing of the recorded ET and SX fixtures against synthetic subscription populations. Matching subscriptions
+ * are pushed to a local stub that responds 200 OK.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscriptionProcessingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int subscriptions;
+
+    private HttpServer pushStub;
+    private SubscriptionManager subscriptionManager;
+    private ETSubscriptionProcessor etProcessor;
+    private SXSubscriptionProcessor sxProcessor;
+    private List<EstimatedVehicleJourney> journeys;
+    private List<List<AffectedVehicleJourneyStructure>> affectedVehicleJourneys;
+
+    @Setup
+    public void setUp() throws Exception {
+        pushStub = BenchmarkSupport.startPushStub();
+        SiriMarshaller siriMarshaller = new SiriMarshaller();
+        MetricsService metricsService = new MetricsService();
+        QuayAndStopPlaceMappingService mappingService = new QuayAndStopPlaceMappingService(metricsService);
+        DataStorageService dataStorageService = BenchmarkSupport.createDataStorageService();
+        journeys = BenchmarkSupport.loadJourneys(siriMarshaller);
+        BenchmarkSupport.addSubscriptions(dataStorageService, subscriptions, journeys, BenchmarkSupport.getPushAddress(pushStub));
+        subscriptionManager = new SubscriptionManager(dataStorageService, siriMarshaller, metricsService,
+                BenchmarkSupport.forgetfulMap(), new HashMap<>(), new ConcurrentHashMap<>(), mappingService);
+
+        TimetableService timetableService = new TimetableService(metricsService);
+        etProcessor = new ETSubscriptionProcessor(subscriptionManager, siriMarshaller, mock(FileStorageService.class), metricsService, mappingService, timetableService);
+        etProcessor.skipCallTimeChecks = true; //the recorded journeys are old
+        sxProcessor = new SXSubscriptionProcessor(subscriptionManager, siriMarshaller, new LiveRouteManager(dataStorageService, mappingService),
+                mock(FileStorageService.class), metricsService, new HashMap<>(), new HashMap<>(), timetableService);
+
+        affectedVehicleJourneys = new ArrayList<>();
+        for (PtSituationElement situation : BenchmarkSupport.loadSituations(siriMarshaller)) {
+            if (situation.getAffects() != null && situation.getAffects().getVehicleJourneys() != null) {
+                affectedVehicleJourneys.add(situation.getAffects().getVehicleJourneys().getAffectedVehicleJourneies());
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        subscriptionManager.shutdown();
+        BenchmarkSupport.stopPushStub(pushStub);
+    }
+
+    @Benchmark
+    public void processEstimatedVehicleJourneys(Blackhole blackhole) {
+        for (EstimatedVehicleJourney journey : journeys) {
+            blackhole.consume(etProcessor.processEstimatedVehicleJourney(journey));
+        }
+    }
+
+    @Benchmark
+    public void findAffectedSubscriptions(Blackhole blackhole) {
+        for (List<AffectedVehicleJourneyStructure> affected : affectedVehicleJourneys) {
+            blackhole.consume(sxProcessor.findAffectedSubscriptions(affected));
+        }
+    }
+}
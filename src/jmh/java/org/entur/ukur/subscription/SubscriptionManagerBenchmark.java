@@ -0,0 +1,98 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import com.sun.net.httpserver.HttpServer;
+import org.entur.ukur.benchmark.BenchmarkSupport;
+import org.entur.ukur.service.DataStorageService;
+import org.entur.ukur.service.MetricsService;
+import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.entur.ukur.xml.SiriMarshaller;
+import org.openjdk.jmh.annotations.*;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.PtSituationElement;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriptionManagerBenchmark {
+
+    /**
+     * Number of subscriptions notified about the journey.
+     */
+    @Param({"1", "10", "100"})
+    public int notified;
+
+    private HttpServer pushStub;
+    private SubscriptionManager subscriptionManager;
+    private HashSet<Subscription> subscriptions;
+    private EstimatedVehicleJourney journey;
+    private PtSituationElement situation;
+    private Subscription subscription;
+
+    @Setup
+    public void setUp() throws Exception {
+        pushStub = BenchmarkSupport.startPushStub();
+        SiriMarshaller siriMarshaller = new SiriMarshaller();
+        MetricsService metricsService = new MetricsService();
+        DataStorageService dataStorageService = BenchmarkSupport.createDataStorageService();
+        subscriptionManager = new SubscriptionManager(dataStorageService, siriMarshaller, metricsService,
+                BenchmarkSupport.forgetfulMap(), new HashMap<>(), new ConcurrentHashMap<>(), new QuayAndStopPlaceMappingService(metricsService));
+        journey = BenchmarkSupport.unmarshall(siriMarshaller, "/et-ruter.xml", EstimatedVehicleJourney.class);
+        situation = BenchmarkSupport.unmarshall(siriMarshaller, "/sx-ruter.xml", PtSituationElement.class);
+        List<String> stops = BenchmarkSupport.getStops(journey);
+        subscriptions = new HashSet<>();
+        for (int i = 0; i < notified; i++) {
+            Subscription s = new Subscription();
+            s.setName("Benchmark subscription " + i);
+            s.setPushAddress(BenchmarkSupport.getPushAddress(pushStub));
+            s.addFromStopPoint(stops.get(i % (stops.size() - 1)));
+            s.addToStopPoint(stops.get(stops.size() - 1));
+            subscriptions.add(dataStorageService.addSubscription(s));
+        }
+        subscription = subscriptions.iterator().next();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        subscriptionManager.shutdown();
+        BenchmarkSupport.stopPushStub(pushStub);
+    }
+
+    @Benchmark
+    public void notifySubscriptionsOnStops() {
+        subscriptionManager.notifySubscriptionsOnStops(subscriptions, journey);
+    }
+
+    @Benchmark
+    public String calculateUniqueKeyEstimatedVehicleJourney() {
+        return subscriptionManager.calculateUniqueKey(subscription, journey);
+    }
+
+    @Benchmark
+    public String calculateUniqueKeyPtSituationElement() {
+        return subscriptionManager.calculateUniqueKey(subscription, situation);
+    }
+}
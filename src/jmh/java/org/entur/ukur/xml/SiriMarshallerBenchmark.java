@@ -0,0 +1,54 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.xml;
+
+import org.entur.ukur.benchmark.BenchmarkSupport;
+import org.openjdk.jmh.annotations.*;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.PtSituationElement;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SiriMarshallerBenchmark {
+
+    private SiriMarshaller siriMarshaller;
+    private byte[] et;
+    private byte[] sx;
+
+    @Setup
+    public void setUp() throws Exception {
+        siriMarshaller = new SiriMarshaller();
+        et = BenchmarkSupport.readResource("/et-ruter.xml");
+        sx = BenchmarkSupport.readResource("/sx-ruter.xml");
+    }
+
+    @Benchmark
+    public EstimatedVehicleJourney unmarshallEstimatedVehicleJourney() throws Exception {
+        return siriMarshaller.unmarshall(new ByteArrayInputStream(et), EstimatedVehicleJourney.class);
+    }
+
+    @Benchmark
+    public PtSituationElement unmarshallPtSituationElement() throws Exception {
+        return siriMarshaller.unmarshall(new ByteArrayInputStream(sx), PtSituationElement.class);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Adapts the polling of Anshar to the backlog there. The page size (the maxSize parameter of the url) is doubled for
+ * each page Anshar says there is more data after (up to maxPageSize) and halved back towards the configured size
+ * when we have caught up - so catching up after a restart takes few, large pages. Polls that return nothing make
+ * the poller skip an increasing number of the following triggers (at most maxBackoff), and any data resets that.
+ * Pages and triggers come from different threads, so the state is guarded by this.
+ */
+class AdaptiveAnsharPoller {
+
+    private static final Pattern PAGE_SIZE_PARAMETER = Pattern.compile("([?&]maxSize=)(\\d+)");
+
+    private final String url;
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final int maxBackoff;
+    private int pageSize;
+    private int emptyPolls = 0;
+    private int triggersToSkip = 0;
+
+    AdaptiveAnsharPoller(String url, int maxPageSize, int maxBackoff) {
+        this.url = url;
+        Matcher matcher = PAGE_SIZE_PARAMETER.matcher(url);
+        this.minPageSize = matcher.find() ? Integer.parseInt(matcher.group(2)) : -1; //-1: the url has no page size
+        this.maxPageSize = Math.max(minPageSize, maxPageSize);
+        this.maxBackoff = Math.max(0, maxBackoff);
+        this.pageSize = minPageSize;
+    }
+
+    /**
+     * The url to poll, with the current page size.
+     */
+    synchronized String getUrl() {
+        if (pageSize < 0) {
+            return url;
+        }
+        return PAGE_SIZE_PARAMETER.matcher(url).replaceFirst("$1" + pageSize);
+    }
+
+    synchronized int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Called for each trigger: returns false if the trigger should be skipped as we back off.
+     */
+    synchronized boolean isDue() {
+        if (triggersToSkip > 0) {
+            triggersToSkip--;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Registers a received page, with the number of elements in it and whether Anshar has more data for us.
+     */
+    synchronized void pageReceived(boolean moreData, int elements) {
+        if (pageSize > 0) {
+            pageSize = moreData ? Math.min(maxPageSize, pageSize * 2) : Math.max(minPageSize, pageSize / 2);
+        }
+        if (moreData || elements > 0) {
+            emptyPolls = 0;
+            triggersToSkip = 0;
+        } else {
+            emptyPolls++;
+            triggersToSkip = Math.min(maxBackoff, (1 << Math.min(emptyPolls - 1, 16)) - 1); //0, 1, 3, 7...
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import java.io.Serializable;
+
+/**
+ * A situation that is not valid within the next 24 hours. Stored (as received) in a shared map keyed on situation
+ * number until it is due for processing, so a newer version replaces the one waiting and resends of the same version
+ * can be skipped.
+ */
+public class DeferredSituation implements Serializable {
+
+    private final String version;
+    private final long activationTime;
+    private final byte[] xml;
+
+    DeferredSituation(String version, long activationTime, byte[] xml) {
+        this.version = version;
+        this.activationTime = activationTime;
+        this.xml = xml;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Epoch millis when the situation should be processed (24 hours before it becomes valid).
+     */
+    public long getActivationTime() {
+        return activationTime;
+    }
+
+    public byte[] getXml() {
+        return xml;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Predicate;
+import org.entur.ukur.service.MetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import javax.xml.stream.XMLStreamException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops EstimatedVehicleJourneys that are identical to the last one processed for the same journey, so (re)sends
+ * without changes don't go through the queue and the processor. The fingerprint of each journey is kept in a local
+ * map, with the shared map as fallback so the other nodes know what has been processed too. Fingerprints expire
+ * after an hour, so unchanged journeys are processed again once an hour (for new subscriptions).
+ * A fingerprint is only recorded when the journey has been processed successfully by the consumer of the queue (the
+ * key and fingerprint are sent along as headers), so a resend after a failure is processed again.
+ */
+@Service
+public class ETFingerprintFilter implements Predicate {
+
+    static final long FINGERPRINT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1); //same as the TTL of the shared map
+    static final String JOURNEY_KEY_HEADER = "UkurJourneyKey";
+    static final String FINGERPRINT_HEADER = "UkurJourneyFingerprint";
+    private static final int MAX_LOCAL_FINGERPRINTS = 100_000;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Map<String, Long> sharedFingerprints;
+    private final MetricsService metricsService;
+    private final Map<String, LocalFingerprint> localFingerprints = Collections.synchronizedMap(
+            new LinkedHashMap<String, LocalFingerprint>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LocalFingerprint> eldest) {
+                    return size() > MAX_LOCAL_FINGERPRINTS;
+                }
+            });
+
+    @Autowired
+    public ETFingerprintFilter(@Qualifier("journeyFingerprints") Map<String, Long> sharedFingerprints,
+                               MetricsService metricsService) {
+        this.sharedFingerprints = sharedFingerprints;
+        this.metricsService = metricsService;
+    }
+
+    /**
+     * Returns false if the EstimatedVehicleJourney in the body is unchanged since it was last processed. The body is
+     * replaced with its String representation, so it isn't converted again when sent to the queue.
+     */
+    @Override
+    public boolean matches(Exchange exchange) {
+        Message in = exchange.getIn();
+        String xml = in.getBody(String.class);
+        in.setBody(xml);
+        if (xml == null) {
+            return true;
+        }
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        EstimatedVehicleJourneyHead head;
+        try {
+            head = EstimatedVehicleJourneyHead.read(bytes);
+        } catch (XMLStreamException e) {
+            logger.warn("Could not read journey identity from EstimatedVehicleJourney - lets it through", e);
+            return true;
+        }
+        exchange.setProperty(EstimatedVehicleJourneyHead.PROPERTY, head);
+        String key = head.getJourneyKey();
+        if (key == null) {
+            return true;
+        }
+        long fingerprint = fingerprint(bytes);
+        long now = System.currentTimeMillis();
+        LocalFingerprint local = localFingerprints.get(key);
+        if (local != null && local.expires > now && local.fingerprint == fingerprint) {
+            unchanged(key);
+            return false;
+        }
+        Long shared = sharedFingerprints.get(key);
+        if (shared != null && shared == fingerprint) {
+            //processed on another node (or this node's local entry is outdated or evicted)
+            localFingerprints.put(key, new LocalFingerprint(fingerprint, now + FINGERPRINT_TTL_MILLIS));
+            unchanged(key);
+            return false;
+        }
+        in.setHeader(JOURNEY_KEY_HEADER, key);
+        in.setHeader(FINGERPRINT_HEADER, fingerprint);
+        return true;
+    }
+
+    /**
+     * Records the fingerprint of a journey that has been processed from the queue, unless the processing failed.
+     */
+    void processed(Exchange exchange) {
+        if (exchange.getProperty(Exchange.EXCEPTION_CAUGHT) != null) {
+            return;
+        }
+        Message in = exchange.getIn();
+        String key = in.getHeader(JOURNEY_KEY_HEADER, String.class);
+        Long fingerprint = in.getHeader(FINGERPRINT_HEADER, Long.class);
+        if (key != null && fingerprint != null) {
+            localFingerprints.put(key, new LocalFingerprint(fingerprint, System.currentTimeMillis() + FINGERPRINT_TTL_MILLIS));
+            sharedFingerprints.put(key, fingerprint);
+        }
+    }
+
+    private void unchanged(String key) {
+        logger.trace("Skips unchanged EstimatedVehicleJourney {}", key);
+        metricsService.getMeter(MetricsService.METER_ET_UNCHANGED).mark();
+    }
+
+    static String journeyKey(byte[] xml) throws XMLStreamException {
+        return EstimatedVehicleJourneyHead.read(xml).getJourneyKey();
+    }
+
+    static long fingerprint(byte[] xml) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(xml);
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    private static class LocalFingerprint {
+        private final long fingerprint;
+        private final long expires;
+
+        private LocalFingerprint(long fingerprint, long expires) {
+            this.fingerprint = fingerprint;
+            this.expires = expires;
+        }
+    }
+}
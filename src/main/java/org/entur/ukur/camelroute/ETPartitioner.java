@@ -0,0 +1,115 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.xml.stream.XMLStreamException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Puts each EstimatedVehicleJourney in a JMS message group given by a stable hash of its codespace and line, before
+ * it is sent to the ET queue. The broker delivers all messages in a group to the same consumer (until that consumer
+ * goes away, then the group moves to another), so a line is handled by the same node over time and the node's
+ * caches for it stay warm. The number of groups is bounded (ukur.camel.et.partitions) to keep the broker's group
+ * table small - 0 turns grouping off.
+ * As the broker only assigns a group when it is new, each group is closed (with JMSXGroupSeq=-1 on a message) once
+ * per rebalance interval, so groups are spread over the consumers again - including nodes started after the groups
+ * were assigned.
+ */
+@Service
+public class ETPartitioner implements Processor {
+
+    static final String GROUP_HEADER = "JMSXGroupID";
+    static final String GROUP_SEQ_HEADER = "JMSXGroupSeq";
+    static final int CLOSE_GROUP = -1;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final int partitions;
+    private final long rebalanceIntervalMs;
+    private final ConcurrentHashMap<String, Long> groupsAssigned = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ETPartitioner(@Value("${ukur.camel.et.partitions:64}") int partitions,
+                         @Value("${ukur.camel.et.rebalanceInterval:60000}") long rebalanceIntervalMs) {
+        this.partitions = partitions;
+        this.rebalanceIntervalMs = rebalanceIntervalMs;
+    }
+
+    ETPartitioner(int partitions) {
+        this(partitions, 60_000);
+    }
+
+    @Override
+    public void process(Exchange exchange) {
+        if (partitions <= 0) {
+            return;
+        }
+        EstimatedVehicleJourneyHead head = exchange.getProperty(EstimatedVehicleJourneyHead.PROPERTY, EstimatedVehicleJourneyHead.class);
+        Message in = exchange.getIn();
+        if (head == null) {
+            String xml = in.getBody(String.class);
+            if (xml == null) {
+                return;
+            }
+            try {
+                head = EstimatedVehicleJourneyHead.read(xml.getBytes(StandardCharsets.UTF_8));
+            } catch (XMLStreamException e) {
+                logger.warn("Could not read codespace and line from EstimatedVehicleJourney - sends it without group", e);
+                return;
+            }
+        }
+        String group = getGroup(head.getDataSource(), head.getLineRef());
+        if (group != null) {
+            in.setHeader(GROUP_HEADER, group);
+            if (closeGroup(group, System.currentTimeMillis())) {
+                in.setHeader(GROUP_SEQ_HEADER, CLOSE_GROUP);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the group has been assigned to a consumer for the rebalance interval, and the message should
+     * close it (the next message is then assigned to a consumer again).
+     */
+    boolean closeGroup(String group, long now) {
+        Long assigned = groupsAssigned.putIfAbsent(group, now);
+        if (assigned == null || now - assigned < rebalanceIntervalMs) {
+            return false;
+        }
+        logger.trace("Closes message group {} to have it reassigned", group);
+        return groupsAssigned.replace(group, assigned, now);
+    }
+
+    /**
+     * Returns the message group for the codespace and line, or null if both are unknown.
+     */
+    String getGroup(String codespace, String lineRef) {
+        if (codespace == null && lineRef == null) {
+            return null;
+        }
+        String key = (codespace == null ? "" : codespace) + ":" + (lineRef == null ? "" : lineRef);
+        return "et-" + Math.floorMod(key.hashCode(), partitions); //String.hashCode is the same on all nodes
+    }
+}
@@ -18,7 +18,10 @@ package org.entur.ukur.camelroute;
 import com.codahale.metrics.Timer;
 import org.apache.camel.Exchange;
 import org.apache.commons.lang3.StringUtils;
+import org.entur.ukur.routedata.JourneyPattern;
+import org.entur.ukur.routedata.TimetableService;
 import org.entur.ukur.service.FileStorageService;
+import org.entur.ukur.service.LatencyTrace;
 import org.entur.ukur.service.MetricsService;
 import org.entur.ukur.service.QuayAndStopPlaceMappingService;
 import org.entur.ukur.subscription.DeviatingStop;
@@ -50,6 +53,7 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
     private SubscriptionManager subscriptionManager;
     private MetricsService metricsService;
     private QuayAndStopPlaceMappingService quayAndStopPlaceMappingService;
+    private TimetableService timetableService;
 
     private SiriMarshaller siriMarshaller;
     private FileStorageService fileStorageService;
@@ -63,12 +67,14 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
                                    SiriMarshaller siriMarshaller,
                                    FileStorageService fileStorageService,
                                    MetricsService metricsService,
-                                   QuayAndStopPlaceMappingService quayAndStopPlaceMappingService) {
+                                   QuayAndStopPlaceMappingService quayAndStopPlaceMappingService,
+                                   TimetableService timetableService) {
         this.siriMarshaller = siriMarshaller;
         this.fileStorageService = fileStorageService;
         this.subscriptionManager = subscriptionManager;
         this.metricsService = metricsService;
         this.quayAndStopPlaceMappingService = quayAndStopPlaceMappingService;
+        this.timetableService = timetableService;
         logger.debug("Initializes...");
     }
 
@@ -77,6 +83,11 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
      */
     @Override
     public void process(Exchange exchange) {
+        LatencyTrace trace = LatencyTrace.fromHeaders(exchange.getIn());
+        if (trace != null) {
+            metricsService.registerLatency(MetricsService.STAGE_ACTIVEMQ, trace.completeStage());
+        }
+        LatencyTrace.setCurrent(trace); //picked up by the push tasks created while processing
         try {
             InputStream xml = exchange.getIn().getBody(InputStream.class);
             logger.debug("Reveived XML with size {} bytes", xml.available());
@@ -101,6 +112,12 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
         } catch (Exception e) {
             //We always want to acknowlede so things don't end up on DLQ
             logger.error("Caught error during processing of exchange with expected EstimatedVehicleJourney", e);
+            exchange.setProperty(Exchange.EXCEPTION_CAUGHT, e); //so the journey isn't registered as processed
+        } finally {
+            LatencyTrace.setCurrent(null);
+        }
+        if (trace != null) {
+            metricsService.registerLatency(MetricsService.STAGE_PROCESS, trace.completeStage());
         }
     }
 
@@ -179,6 +196,7 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
 
     private List<DeviatingStopAndSubscriptions> findAffectedSubscriptions(List<DeviatingStop> deviations, EstimatedVehicleJourney estimatedVehicleJourney) {
         HashMap<String, StopData> stops = getStopData(estimatedVehicleJourney);
+        JourneyPattern pattern = timetableService.getJourneyPattern(getJourneyRef(estimatedVehicleJourney));
         ArrayList<DeviatingStopAndSubscriptions> affectedSubscriptions = new ArrayList<>();
         for (DeviatingStop deviation : deviations) {
             HashSet<Subscription> subscriptions = new HashSet<>();
@@ -187,7 +205,7 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
                 //Bryr oss kun om stopPointRef på "nasjonalt format"
                 Set<Subscription> subs = subscriptionManager.getSubscriptionsForStopPoint(stopPoint, ET);
                 for (Subscription sub : subs) {
-                    if (validDirection(sub, stops)) {
+                    if (validDirection(sub, stops, pattern)) {
                         if ( deviation.isCancelled() || subscripbedStopDelayed(sub, stopPoint, deviation) ) {
                             subscriptions.add(sub);
                         }
@@ -219,11 +237,36 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
     }
 
     boolean validDirection(Subscription subscription, HashMap<String, StopData> stops) {
+        return validDirection(subscription, stops, null);
+    }
+
+    /**
+     * When the journey is found in the timetable and it calls at both a from and a to stop of the subscription, the
+     * order of the calls in the journey pattern decides the direction (so the last stop, without a departure time,
+     * works as a to stop). Otherwise the aimed departure times in the message decide.
+     */
+    boolean validDirection(Subscription subscription, HashMap<String, StopData> stops, JourneyPattern pattern) {
+        if (pattern != null) {
+            JourneyPattern.Direction direction = pattern.getDirection(subscription.getId(), subscription.getStopsRevision(), subscription.getFromStopPoints(), subscription.getToStopPoints());
+            if (direction != JourneyPattern.Direction.NOT_ON_PATTERN) {
+                return direction == JourneyPattern.Direction.ALONG
+                        && findStopData(stops, subscription.getFromStopPoints(), DIRECTION_FROM) != null
+                        && findStopData(stops, subscription.getToStopPoints(), DIRECTION_TO) != null;
+            }
+        }
         ZonedDateTime fromTime = findOne(stops, subscription.getFromStopPoints(), DIRECTION_FROM);
         ZonedDateTime toTime = findOne(stops, subscription.getToStopPoints(), DIRECTION_TO);
         return fromTime != null && toTime != null && fromTime.isBefore(toTime);
     }
 
+    private String getJourneyRef(EstimatedVehicleJourney journey) {
+        FramedVehicleJourneyRefStructure framedRef = journey.getFramedVehicleJourneyRef();
+        if (framedRef != null && StringUtils.isNotBlank(framedRef.getDatedVehicleJourneyRef())) {
+            return framedRef.getDatedVehicleJourneyRef().trim();
+        }
+        return StringUtils.trimToNull(getStringValue(journey.getDatedVehicleJourneyRef()));
+    }
+
     HashMap<String, StopData> getStopData(EstimatedVehicleJourney journey) {
         HashMap<String, StopData> stops = new HashMap<>();
         if (journey.getRecordedCalls() != null && journey.getRecordedCalls().getRecordedCalls() != null) {
@@ -312,6 +355,11 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
 
     //TODO: case of stop ids given are relevant... That's not nessecary!
     private ZonedDateTime findOne(HashMap<String, StopData> stops, Set<String> fromStopPoints, int direction) {
+        StopData stopData = findStopData(stops, fromStopPoints, direction);
+        return stopData == null ? null : stopData.getAimedDepartureTime();
+    }
+
+    private StopData findStopData(HashMap<String, StopData> stops, Set<String> fromStopPoints, int direction) {
         for (String fromStopPoint : fromStopPoints) {
             StopData stopData = stops.get(fromStopPoint);
             if (stopData != null) {
@@ -331,7 +379,7 @@ public class ETSubscriptionProcessor implements org.apache.camel.Processor {
                         }
                         break;
                 }
-                return stopData.getAimedDepartureTime();
+                return stopData;
             }
         }
         return null;
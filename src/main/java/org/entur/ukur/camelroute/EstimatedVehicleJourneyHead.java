@@ -0,0 +1,111 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+
+/**
+ * The identifying elements of an EstimatedVehicleJourney (the direct children before the calls), read with StAX
+ * from the XML fragment without unmarshalling it. Kept as an exchange property once read, so the routes only read
+ * it once per journey.
+ */
+class EstimatedVehicleJourneyHead {
+
+    static final String PROPERTY = "UkurJourneyHead";
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private String lineRef;
+    private String journeyRef;
+    private String vehicleRef;
+    private String dataSource;
+
+    private EstimatedVehicleJourneyHead() {
+    }
+
+    static EstimatedVehicleJourneyHead read(byte[] xml) throws XMLStreamException {
+        EstimatedVehicleJourneyHead head = new EstimatedVehicleJourneyHead();
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(xml));
+        try {
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+                    if (depth == 2 && "LineRef".equals(name)) {
+                        head.lineRef = reader.getElementText().trim();
+                        depth--;
+                    } else if (depth == 2 && ("DatedVehicleJourneyRef".equals(name) || "EstimatedVehicleJourneyCode".equals(name))) {
+                        if (head.journeyRef == null) {
+                            head.journeyRef = reader.getElementText().trim();
+                        } else {
+                            reader.getElementText();
+                        }
+                        depth--;
+                    } else if (depth == 2 && "VehicleRef".equals(name)) {
+                        head.vehicleRef = reader.getElementText().trim();
+                        depth--;
+                    } else if (depth == 2 && "DataSource".equals(name)) {
+                        head.dataSource = reader.getElementText().trim();
+                        depth--;
+                    } else if (depth == 3 && "DatedVehicleJourneyRef".equals(name)) {
+                        if (head.journeyRef == null) {
+                            head.journeyRef = reader.getElementText().trim(); //in FramedVehicleJourneyRef
+                        } else {
+                            reader.getElementText();
+                        }
+                        depth--;
+                    } else if (depth == 2 && ("RecordedCalls".equals(name) || "EstimatedCalls".equals(name))) {
+                        break; //the identifying elements come before these
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return head;
+    }
+
+    String getLineRef() {
+        return lineRef;
+    }
+
+    /**
+     * The codespace of the journey.
+     */
+    String getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Identifies the journey the same way as we do elsewhere: the DatedVehicleJourneyRef (directly or as part of
+     * the FramedVehicleJourneyRef) or EstimatedVehicleJourneyCode, with VehicleRef as fallback - prefixed with
+     * LineRef. Returns null if the journey can't be identified.
+     */
+    String getJourneyKey() {
+        String id = journeyRef != null ? journeyRef : vehicleRef;
+        if (id == null || id.isEmpty()) {
+            return null;
+        }
+        return lineRef == null ? id : lineRef + ":" + id;
+    }
+}
@@ -20,28 +20,36 @@ import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 import org.apache.commons.lang3.StringUtils;
 import org.entur.ukur.routedata.Call;
+import org.entur.ukur.routedata.JourneyPattern;
 import org.entur.ukur.routedata.LiveJourney;
 import org.entur.ukur.routedata.LiveRouteManager;
+import org.entur.ukur.routedata.TimetableService;
+import org.entur.ukur.service.ExtendedHazelcastService;
 import org.entur.ukur.service.FileStorageService;
+import org.entur.ukur.service.LatencyTrace;
 import org.entur.ukur.service.MetricsService;
 import org.entur.ukur.subscription.Subscription;
 import org.entur.ukur.subscription.SubscriptionManager;
 import org.entur.ukur.xml.SiriMarshaller;
+import org.entur.ukur.xml.SituationHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import uk.org.ifopt.siri20.StopPlaceRef;
 import uk.org.siri.siri20.*;
 
-import java.io.InputStream;
+import java.io.ByteArrayInputStream;
 import java.io.Serializable;
+import java.math.BigInteger;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.stream.Collectors;
 
 import static org.entur.ukur.subscription.SubscriptionTypeEnum.SX;
+import static org.entur.ukur.xml.SiriObjectHelper.getBigIntegerValue;
 import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
 
 @Service
@@ -51,8 +59,11 @@ public class SXSubscriptionProcessor implements Processor {
     private SubscriptionManager subscriptionManager;
     private SiriMarshaller siriMarshaller;
     private LiveRouteManager liveRouteManager;
+    private TimetableService timetableService;
     private FileStorageService fileStorageService;
     private MetricsService metricsService;
+    private Map<String, DeferredSituation> deferredSituations;
+    private Map<String, String> processedVersions;
     @Value("${ukur.camel.sx.store.files:false}")
     private boolean storeMessagesToFile = false;
 
@@ -61,55 +72,149 @@ public class SXSubscriptionProcessor implements Processor {
                                    SiriMarshaller siriMarshaller,
                                    LiveRouteManager liveRouteManager,
                                    FileStorageService fileStorageService,
-                                   MetricsService metricsService) {
+                                   MetricsService metricsService,
+                                   @Qualifier("deferredSituations") Map<String, DeferredSituation> deferredSituations,
+                                   @Qualifier("processedSituationVersions") Map<String, String> processedVersions,
+                                   TimetableService timetableService) {
         this.subscriptionManager = subscriptionManager;
         this.siriMarshaller = siriMarshaller;
         this.liveRouteManager = liveRouteManager;
         this.fileStorageService = fileStorageService;
         this.metricsService = metricsService;
+        this.deferredSituations = deferredSituations;
+        this.processedVersions = processedVersions;
+        this.timetableService = timetableService;
         logger.debug("Initializes...");
     }
 
     @Override
     public void process(Exchange exchange) {
+        LatencyTrace trace = LatencyTrace.fromHeaders(exchange.getIn());
+        if (trace != null) {
+            metricsService.registerLatency(MetricsService.STAGE_ACTIVEMQ, trace.completeStage());
+        }
+        LatencyTrace.setCurrent(trace); //picked up by the push tasks created while processing
         try {
-            InputStream xml = exchange.getIn().getBody(InputStream.class);
-            logger.debug("Reveived XML with size {} bytes", xml.available());
-            Timer timer = metricsService.getTimer(MetricsService.TIMER_SX_UNMARSHALL);
-            Timer.Context time = timer.time();
-            PtSituationElement ptSituationElement;
-            try {
-                ptSituationElement = siriMarshaller.unmarshall(xml, PtSituationElement.class);
-            } finally {
-                time.stop();
+            byte[] xml = exchange.getIn().getBody(byte[].class);
+            logger.debug("Reveived XML with size {} bytes", xml.length);
+            SituationHeader header = SituationHeader.peek(xml);
+            if (isDeferred(header)) {
+                metricsService.getMeter(MetricsService.METER_SX_DEFERRED_RESENT).mark();
+                logger.debug("Skips resent situation that is already deferred - situation={}, version={}", header.getKey(), header.getVersion());
+            } else if (isProcessed(header)) {
+                metricsService.getMeter(MetricsService.METER_SX_UNCHANGED).mark();
+                logger.debug("Skips resent situation that is already processed - situation={}, version={}", header.getKey(), header.getVersion());
+            } else {
+                process(xml);
             }
-            if (ptSituationElement == null) {
-                throw new IllegalArgumentException("No PtSituationElement element...");
+        } catch (Exception e) {
+            //We always want to acknowlede so things don't end up on DLQ
+            logger.error("Caught error during processing of exchange with expected PtSituationElement", e);
+        } finally {
+            LatencyTrace.setCurrent(null);
+        }
+        if (trace != null) {
+            metricsService.registerLatency(MetricsService.STAGE_PROCESS, trace.completeStage());
+        }
+    }
+
+    private void process(byte[] xml) throws Exception {
+        Timer timer = metricsService.getTimer(MetricsService.TIMER_SX_UNMARSHALL);
+        Timer.Context time = timer.time();
+        PtSituationElement ptSituationElement;
+        try {
+            ptSituationElement = siriMarshaller.unmarshall(new ByteArrayInputStream(xml), PtSituationElement.class);
+        } finally {
+            time.stop();
+        }
+        if (ptSituationElement == null) {
+            throw new IllegalArgumentException("No PtSituationElement element...");
+        }
+        metricsService.registerReceivedMessage(PtSituationElement.class);
+
+        if (processPtSituationElement(ptSituationElement, xml)) {
+            String key = getKey(ptSituationElement);
+            String version = getVersion(ptSituationElement);
+            if (key != null && version != null) {
+                processedVersions.put(key, version);
             }
-            metricsService.registerReceivedMessage(PtSituationElement.class);
+            if (storeMessagesToFile) {
+                fileStorageService.writeToFile(ptSituationElement);
+            }
+        }
+    }
 
-            if (processPtSituationElement(ptSituationElement)) {
-                if (storeMessagesToFile) {
-                    fileStorageService.writeToFile(ptSituationElement);
+    /**
+     * Processes deferred situations that now are valid within the next 24 hours. Runs on every node, and each node
+     * only looks at the deferred situations it owns.
+     */
+    @SuppressWarnings("unused") //Used from Camel quartz trigger route
+    public void processDeferredSituations() {
+        long now = System.currentTimeMillis();
+        for (String key : new ArrayList<>(ExtendedHazelcastService.localKeySet(deferredSituations))) {
+            DeferredSituation deferred = deferredSituations.get(key);
+            //only removed if not replaced by a newer version in the meantime:
+            if (deferred != null && deferred.getActivationTime() <= now && deferredSituations.remove(key, deferred)) {
+                logger.debug("Processes deferred situation {} with version {}", key, deferred.getVersion());
+                try {
+                    process(deferred.getXml());
+                } catch (Exception e) {
+                    logger.error("Caught error during processing of deferred PtSituationElement {}", key, e);
                 }
             }
-        } catch (Exception e) {
-            //We always want to acknowlede so things don't end up on DLQ
-            logger.error("Caught error during processing of exchange with expected PtSituationElement", e);
         }
     }
 
-    private boolean processPtSituationElement(PtSituationElement ptSituationElement) {
+    private boolean isDeferred(SituationHeader header) {
+        if (header.getKey() == null) {
+            return false;
+        }
+        DeferredSituation deferred = deferredSituations.get(header.getKey());
+        return deferred != null && Objects.equals(deferred.getVersion(), header.getVersion());
+    }
+
+    /**
+     * True if this version of the situation already is processed (matched against the subscriptions and pushed).
+     */
+    private boolean isProcessed(SituationHeader header) {
+        return header.getKey() != null && header.getVersion() != null && header.getVersion().equals(processedVersions.get(header.getKey()));
+    }
+
+    private String getKey(PtSituationElement ptSituationElement) {
+        return SituationHeader.key(StringUtils.trim(getStringValue(ptSituationElement.getParticipantRef())),
+                StringUtils.trim(getStringValue(ptSituationElement.getSituationNumber())));
+    }
+
+    private String getVersion(PtSituationElement ptSituationElement) {
+        BigInteger version = getBigIntegerValue(ptSituationElement.getVersion());
+        return version == null ? null : version.toString();
+    }
+
+    private boolean processPtSituationElement(PtSituationElement ptSituationElement, byte[] xml) {
         AffectsScopeStructure affects = ptSituationElement.getAffects();
         if (affects == null) {
             logger.debug("Got PtSituationElement without any effects - nothing to notify");
             return false;
         }
 
-        if (notValidNext24Hours(ptSituationElement.getValidityPeriods())) {
-            logger.debug("Skips message that is not valid the next 24 hours (will be received again later) - situationNumber={}", getStringValue(ptSituationElement.getSituationNumber()));
+        String key = getKey(ptSituationElement);
+        ZonedDateTime earliestStart = getEarliestStart(ptSituationElement.getValidityPeriods());
+        if (earliestStart != null && earliestStart.isAfter(ZonedDateTime.now().plusDays(1))) {
+            if (key == null) {
+                logger.debug("Skips message without situationNumber that is not valid the next 24 hours (will be received again later)");
+            } else {
+                long activationTime = earliestStart.minusDays(1).toInstant().toEpochMilli();
+                String version = getVersion(ptSituationElement);
+                deferredSituations.put(key, new DeferredSituation(version, activationTime, xml));
+                metricsService.getMeter(MetricsService.METER_SX_DEFERRED).mark();
+                logger.debug("Defers message that is not valid the next 24 hours - situation={}, version={}", key, version);
+            }
             return false;
         }
+        if (key != null) {
+            //an older version might be waiting, and should not be processed after this one:
+            deferredSituations.remove(key);
+        }
 
         com.codahale.metrics.Timer timer = metricsService.getTimer(MetricsService.TIMER_SX_PROCESS);
         Timer.Context time = timer.time();
@@ -129,7 +234,7 @@ public class SXSubscriptionProcessor implements Processor {
                     getStringValue(ptSituationElement.getSituationNumber()), affectedStopPlaceRefs.size(), numberAffectedVehicleJourneys, affectedLineRefs.size());
             for (String ref : affectedLineRefs) {
                 subscriptionsToNotify.addAll(subscriptionManager.getSubscriptionsForLineRef(ref, SX));
-                affectedStopPlaceRefs.addAll(liveRouteManager.getStopsForLine(ref));
+                affectedStopPlaceRefs.addAll(timetableService.getStopsForLine(ref));
             }
             for (String ref : affectedStopPlaceRefs) {
                 subscriptionsToNotify.addAll(subscriptionManager.getSubscriptionsForStopPoint(ref, SX));
@@ -185,10 +290,10 @@ public class SXSubscriptionProcessor implements Processor {
         return affectedLineRefs;
     }
 
-    private boolean notValidNext24Hours(List<HalfOpenTimestampOutputRangeStructure> validityPeriods) {
+    private ZonedDateTime getEarliestStart(List<HalfOpenTimestampOutputRangeStructure> validityPeriods) {
         if (validityPeriods == null || validityPeriods.isEmpty()) {
             logger.trace("Has no validity period to check validity");
-            return false;
+            return null;
         }
 
         ZonedDateTime earliest = null;
@@ -198,7 +303,7 @@ public class SXSubscriptionProcessor implements Processor {
                 earliest = startTime;
             }
         }
-        return earliest.isAfter(ZonedDateTime.now().plusDays(1));
+        return earliest;
     }
 
     /**
@@ -245,6 +350,7 @@ public class SXSubscriptionProcessor implements Processor {
                     }
                 }
                 boolean hasCompleteRoute = !Boolean.TRUE.equals(stopPoints.isAffectedOnly());
+                JourneyPattern routePattern = null;
                 String lineRef = getStringValue(affectedVehicleJourney.getLineRef());
                 List<VehicleJourneyRef> vehicleJourneyReves = affectedVehicleJourney.getVehicleJourneyReves();
                 if (vehicleJourneyReves == null || vehicleJourneyReves.isEmpty()) {
@@ -256,21 +362,31 @@ public class SXSubscriptionProcessor implements Processor {
                     if (StringUtils.isBlank(vehicleJourneyRef)) {
                         logger.warn("Has a blank vehicleJourneyRef - can't look it up");
                     } else if (!hasCompleteRoute || lineRef == null) {
-                        if (journeys == null) {
-                            journeys = getJourneys();
+                        JourneyPattern pattern = timetableService.getJourneyPattern(vehicleJourneyRef.trim());
+                        List<String> routeStops = pattern == null ? null : pattern.getStops();
+                        String routeLineRef = timetableService.getLine(vehicleJourneyRef.trim());
+                        if (routeStops == null) {
+                            if (journeys == null) {
+                                journeys = getJourneys();
+                            }
+                            LiveJourney liveJourney = journeys.get(vehicleJourneyRef.trim());
+                            if (liveJourney != null) {
+                                routeStops = liveJourney.getCalls().stream()
+                                        .map(Call::getStopPointRef)
+                                        .collect(Collectors.toList());
+                                routeLineRef = liveJourney.getLineRef();
+                            }
                         }
-                        LiveJourney liveJourney = journeys.get(vehicleJourneyRef.trim());
-                        if (liveJourney == null) {
+                        if (routeStops == null) {
                             logger.trace("Has no route data for journey with vehicleJourneyRef: {}", vehicleJourneyRef);
                         } else {
                             if (!hasCompleteRoute) {
-                                orderedListOfStops = liveJourney.getCalls().stream()
-                                        .map(Call::getStopPointRef)
-                                        .collect(Collectors.toList());
+                                orderedListOfStops = routeStops;
+                                routePattern = pattern;
                                 hasCompleteRoute = true;
                             }
                             if (lineRef == null) {
-                                lineRef = liveJourney.getLineRef();
+                                lineRef = routeLineRef;
                                 if (StringUtils.isNotBlank(lineRef)) {
                                     //update the original message with lineref so we later can pick out the relevant part when generating the push message
                                     LineRef ref = new LineRef();
@@ -293,7 +409,10 @@ public class SXSubscriptionProcessor implements Processor {
                                 //TODO: ROR-298: Sjekk stopconditions!
                                 logger.trace("Has only affected stops and don't find route in LiveRouteService, adds all subscriptions on these stops - regardless of direction");
                             } else {
-                                if (affected(subscription, orderedListOfStops)) {
+                                boolean affected = routePattern != null
+                                        ? affected(subscription, routePattern)
+                                        : affected(subscription, orderedListOfStops);
+                                if (affected) {
                                     subscriptions.add(subscription);
                                 }
                             }
@@ -339,6 +458,19 @@ public class SXSubscriptionProcessor implements Processor {
         return affected;
     }
 
+    /**
+     * Same as {@link #affected(Subscription, List)}, but uses the positional index of the timetable pattern (and the
+     * direction found earlier for the same pattern and subscription).
+     */
+    private boolean affected(Subscription subscription, JourneyPattern pattern) {
+        JourneyPattern.Direction direction = pattern.getDirection(subscription.getId(), subscription.getStopsRevision(), subscription.getFromStopPoints(), subscription.getToStopPoints());
+        boolean affected = direction == JourneyPattern.Direction.ALONG;
+        if (affected) {
+            logger.trace("Affected subscription '{}' along the journey pattern", subscription.getName());
+        }
+        return affected;
+    }
+
     private int findIndexOfOne(Set<String> stops, List<String> orderedListOfStops) {
         for (int i = 0; i < orderedListOfStops.size(); i++) {
             if (stops.contains(orderedListOfStops.get(i))) {
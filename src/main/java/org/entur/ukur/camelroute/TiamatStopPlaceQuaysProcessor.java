@@ -15,48 +15,208 @@
 
 package org.entur.ukur.camelroute;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import org.apache.camel.Exchange;
+import org.apache.camel.Message;
 import org.apache.camel.Processor;
+import org.apache.commons.io.IOUtils;
 import org.entur.ukur.service.QuayAndStopPlaceMappingService;
+import org.entur.ukur.service.StopPlaceQuayIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
+/**
+ * Updates the quay and stop place mapping from Tiamat. The last document received is kept on disk (when a storage
+ * folder is configured) and loaded on startup, so the node is ready without waiting for Tiamat. Requests to Tiamat
+ * are conditional (If-None-Match), and a document with the same content as the one loaded is not parsed again.
+ */
 @Service
 public class TiamatStopPlaceQuaysProcessor implements Processor {
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    static final String CACHE_FILENAME = "stopPlacesAndQuays.json";
+    static final String ETAG_FILENAME = "stopPlacesAndQuays.etag";
+
     private Logger logger = LoggerFactory.getLogger(this.getClass());
     private QuayAndStopPlaceMappingService dataStorageService;
+    private final File cacheFolder;
+    private volatile String currentHash;
+    private volatile String currentETag;
     boolean hasRun = false;
 
     public TiamatStopPlaceQuaysProcessor(QuayAndStopPlaceMappingService quayAndStopPlaceMappingService) {
+        this(quayAndStopPlaceMappingService, null);
+    }
+
+    @Autowired
+    public TiamatStopPlaceQuaysProcessor(QuayAndStopPlaceMappingService quayAndStopPlaceMappingService,
+                                         @Value("${ukur.storage.folder}") String storageFolder) {
         this.dataStorageService = quayAndStopPlaceMappingService;
+        this.cacheFolder = storageFolder == null ? null : new File(storageFolder);
+    }
+
+    /**
+     * Loads the document stored by the previous run, if any.
+     */
+    @PostConstruct
+    public void warmStart() {
+        if (cacheFolder == null) {
+            return;
+        }
+        File cacheFile = new File(cacheFolder, CACHE_FILENAME);
+        if (!cacheFile.isFile()) {
+            logger.debug("No stored stopplace data in {}", cacheFolder.getAbsolutePath());
+            return;
+        }
+        try {
+            byte[] json = Files.readAllBytes(cacheFile.toPath());
+            File etagFile = new File(cacheFolder, ETAG_FILENAME);
+            String etag = etagFile.isFile() ? new String(Files.readAllBytes(etagFile.toPath()), StandardCharsets.UTF_8) : null;
+            update(json, hash(json));
+            currentETag = etag;
+            logger.info("Loaded stored stopplace data from {}", cacheFile.getAbsolutePath());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not load stored stopplace data from {} - will wait for Tiamat", cacheFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Adds If-None-Match to the request to Tiamat, so we get 304 Not Modified when we already have the current data.
+     */
+    @SuppressWarnings("unused") //Used from Camel route
+    public void addConditionalHeaders(Exchange exchange) {
+        String etag = currentETag;
+        if (etag != null && currentHash != null) {
+            exchange.getIn().setHeader("If-None-Match", etag);
+        } else {
+            exchange.getIn().removeHeader("If-None-Match");
+        }
     }
 
     @Override
     public void process(Exchange exchange) throws IOException {
+        Message in = exchange.getIn();
+        Integer responseCode = in.getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class);
+        if (responseCode != null && responseCode == 304) {
+            logger.debug("Stopplace data from Tiamat is not modified");
+            return;
+        }
+        if (responseCode != null && (responseCode < 200 || responseCode >= 300)) {
+            throw new IOException("Unexpected response code from Tiamat: " + responseCode);
+        }
+
+        InputStream stream = in.getBody(InputStream.class);
+        logger.debug("Received inputstream with size {} bytes", String.format("%,d", stream.available()));
+        byte[] json = IOUtils.toByteArray(stream);
+        String hash = hash(json);
+        String etag = in.getHeader("ETag", String.class);
+        if (hash.equals(currentHash)) {
+            logger.debug("Stopplace data from Tiamat is unchanged");
+            currentETag = etag;
+            storeETag(etag);
+            return;
+        }
+
+        update(json, hash);
+        currentETag = etag;
+        store(json, etag);
+    }
 
-        InputStream json = exchange.getIn().getBody(InputStream.class);
-        logger.debug("Received inputstream with size {} bytes", String.format("%,d", json.available()));
+    private void update(byte[] json, String hash) throws IOException {
+        StopPlaceQuayIndex index = parse(new ByteArrayInputStream(json));
+        logger.info("Got {} stopplaces: ", index.getNumberOfStopPlaces());
+        dataStorageService.updateStopsAndQuays(index);
+        currentHash = hash;
+        hasRun = true;
+    }
 
-        ObjectMapper mapper = new ObjectMapper();
-        //noinspection unchecked
-        HashMap<String, Collection<String>> result = mapper.readValue(json, HashMap.class);
-        logger.info("Got {} stopplaces: ", result.size());
-        if (logger.isTraceEnabled()) {
-            for (Map.Entry<String, Collection<String>> entry : result.entrySet()) {
-                logger.trace(" {} -> {}", entry.getKey(), entry.getValue());
+    private void store(byte[] json, String etag) {
+        if (cacheFolder == null) {
+            return;
+        }
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            cacheFolder.mkdirs();
+            Path tempFile = Files.createTempFile(cacheFolder.toPath(), CACHE_FILENAME, ".tmp");
+            Files.write(tempFile, json);
+            Files.move(tempFile, new File(cacheFolder, CACHE_FILENAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            storeETag(etag);
+        } catch (IOException e) {
+            logger.warn("Could not store stopplace data in {}", cacheFolder.getAbsolutePath(), e);
+        }
+    }
+
+    private void storeETag(String etag) {
+        if (cacheFolder == null) {
+            return;
+        }
+        try {
+            Path etagFile = new File(cacheFolder, ETAG_FILENAME).toPath();
+            if (etag == null) {
+                Files.deleteIfExists(etagFile);
+            } else {
+                Files.write(etagFile, etag.getBytes(StandardCharsets.UTF_8));
             }
+        } catch (IOException e) {
+            logger.warn("Could not store ETag for stopplace data in {}", cacheFolder.getAbsolutePath(), e);
+        }
+    }
+
+    private static String hash(byte[] json) {
+        try {
+            return new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(json)).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Reads the JSON object with stop place ids and arrays of their quay ids token by token, straight into the index
+     * (the document is several megabytes, and we don't want it all as maps and lists on the heap as well).
+     */
+    private StopPlaceQuayIndex parse(InputStream json) throws IOException {
+        StopPlaceQuayIndex.Builder builder = StopPlaceQuayIndex.builder();
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                String stopPlaceId = parser.getCurrentName();
+                builder.addStopPlace(stopPlaceId);
+                expect(parser, parser.nextToken(), JsonToken.START_ARRAY);
+                while ((token = parser.nextToken()) == JsonToken.VALUE_STRING) {
+                    String quayId = parser.getText();
+                    builder.addQuay(quayId);
+                    logger.trace(" {} -> {}", stopPlaceId, quayId);
+                }
+                expect(parser, token, JsonToken.END_ARRAY);
+            }
+            expect(parser, token, JsonToken.END_OBJECT);
+        }
+        return builder.build();
+    }
+
+    private void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but got " + actual + " at " + parser.getCurrentLocation());
         }
-        dataStorageService.updateStopsAndQuaysMap(result);
-        hasRun = true;
     }
 
     boolean hasRun() {
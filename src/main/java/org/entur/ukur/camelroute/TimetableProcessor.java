@@ -0,0 +1,61 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.entur.ukur.routedata.GtfsTimetableReader;
+import org.entur.ukur.routedata.TimetableService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Loads the timetable from a GTFS archive. The archive is written to a temporary file since the entries are read in
+ * a particular order (and zip files are best read with random access).
+ */
+@Service
+public class TimetableProcessor implements Processor {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final TimetableService timetableService;
+
+    @Autowired
+    public TimetableProcessor(TimetableService timetableService) {
+        this.timetableService = timetableService;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws IOException {
+        InputStream archive = exchange.getIn().getBody(InputStream.class);
+        File tempFile = File.createTempFile("ukur-gtfs", ".zip");
+        try {
+            long bytes = Files.copy(archive, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            logger.debug("Received GTFS archive with size {} bytes", String.format("%,d", bytes));
+            timetableService.update(GtfsTimetableReader.read(tempFile));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package org.entur.ukur.camelroute;
 
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -33,9 +34,12 @@ import org.apache.camel.spring.SpringRouteBuilder;
 import org.apache.commons.lang3.StringUtils;
 import org.entur.ukur.camelroute.policy.InterruptibleHazelcastRoutePolicy;
 import org.entur.ukur.camelroute.status.RouteStatus;
+import org.entur.ukur.service.LatencyTrace;
 import org.entur.ukur.service.MetricsService;
+import org.entur.ukur.service.OpenMetricsWriter;
 import org.entur.ukur.setup.UkurConfiguration;
 import org.entur.ukur.subscription.Subscription;
+import org.entur.ukur.subscription.SubscriptionManager;
 import org.entur.ukur.xml.SiriMarshaller;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,24 +77,36 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
             static final String ROUTE_ET_RETRIEVER = "seda:retrieveAnsharET";
             static final String ROUTE_SX_RETRIEVER = "seda:retrieveAnsharSX";
+    private static final String ROUTE_ET_PAGES = "seda:processAnsharET?size=2&blockWhenFull=true";
+    private static final String ROUTE_SX_PAGES = "seda:processAnsharSX?size=2&blockWhenFull=true";
     private static final String ROUTE_HEARTBEAT_CHECKER = "seda:heartbeatChecker";
     private static final String ROUTE_TIAMAT_MAP = "seda:getStopPlacesAndQuays";
     private static final String ROUTE_ANSHAR_SUBSRENEWER = "seda:ansharSubscriptionRenewer";
     private static final String ROUTE_ANSHAR_SUBSCHECKER = "seda:ansharSubscriptionChecker";
+    private static final String ROUTE_DEFERRED_SX = "seda:deferredSituations";
+    private static final String ROUTE_TIMETABLE = "seda:getTimetable";
     private static final String ROUTEID_SX_RETRIEVER = "SX Retriever";
     private static final String ROUTEID_ET_RETRIEVER = "ET Retriever";
+    private static final String ROUTEID_SX_PAGES = "SX Page Processor";
+    private static final String ROUTEID_ET_PAGES = "ET Page Processor";
     private static final String ROUTEID_TIAMAT_MAP = "Tiamat StopPlacesAndQuays";
     private static final String ROUTEID_HEARTBEAT_CHECKER  = "Check Subscriptions For Missing Heartbeats";
     private static final String ROUTEID_ANSHAR_SUBSRENEWER = "Anshar Subscription Renewer";
     private static final String ROUTEID_ANSHAR_SUBSCHECKER = "Anshar Subscription Checker";
+    private static final String ROUTEID_DEFERRED_SX = "Deferred Situations";
+    private static final String ROUTEID_TIMETABLE = "Timetable GTFS";
     private static final String ROUTEID_HEARTBEAT_TRIGGER  = "Check Subscriptions Trigger";
     private static final String ROUTEID_ET_TRIGGER = "ET trigger";
     private static final String ROUTEID_SX_TRIGGER = "SX trigger";
     private static final String ROUTEID_TIAMAT_MAP_TRIGGER = "Tiamat trigger";
     private static final String ROUTEID_ANSHAR_SUBSRENEWER_TRIGGER = "Anshar Subscription Renewer Trigger";
     private static final String ROUTEID_ANSHAR_SUBSCHECKER_TRIGGER = "Anshar Subscription Checker Trigger";
+    private static final String ROUTEID_DEFERRED_SX_TRIGGER = "Deferred Situations Trigger";
+    private static final String ROUTEID_TIMETABLE_TRIGGER = "Timetable trigger";
 
     private static final String MORE_DATA = "MoreData";
+    private static final String ANSHAR_URL = "UkurAnsharUrl";
+    private static final String PAGE_ELEMENTS = "UkurPageElements";
     private final UkurConfiguration config;
     private final ETSubscriptionProcessor ETSubscriptionProcessor;
     private final SXSubscriptionProcessor SXSubscriptionProcessor;
@@ -98,9 +114,14 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
     private final MetricsService metricsService;
     private final String nodeStarted;
     private final TiamatStopPlaceQuaysProcessor tiamatStopPlaceQuaysProcessor;
+    private final TimetableProcessor timetableProcessor;
+    private final SubscriptionManager subscriptionManager;
+    private final ETFingerprintFilter etFingerprintFilter;
+    private final ETPartitioner etPartitioner;
     private final Namespaces siriNamespace = new Namespaces("s", "http://www.siri.org.uk/siri");
     private final int HEARTBEAT_INTERVAL_MS = 60_000;
     private final int SUBSCRIPTION_DURATION_MIN = 60;
+    private final int DEFERRED_SX_INTERVAL_MS = 60_000;
 
     @Autowired
     public UkurCamelRouteBuilder(UkurConfiguration config,
@@ -108,13 +129,21 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
                                  SXSubscriptionProcessor SXSubscriptionProcessor,
                                  TiamatStopPlaceQuaysProcessor tiamatStopPlaceQuaysProcessor,
                                  @Qualifier("sharedProperties") IMap<String, String> sharedProperties,
-                                 MetricsService metricsService) {
+                                 MetricsService metricsService,
+                                 SubscriptionManager subscriptionManager,
+                                 ETFingerprintFilter etFingerprintFilter,
+                                 TimetableProcessor timetableProcessor,
+                                 ETPartitioner etPartitioner) {
         this.config = config;
         this.ETSubscriptionProcessor = ETSubscriptionProcessor;
         this.SXSubscriptionProcessor = SXSubscriptionProcessor;
         this.tiamatStopPlaceQuaysProcessor = tiamatStopPlaceQuaysProcessor;
         this.sharedProperties = sharedProperties;
         this.metricsService = metricsService;
+        this.subscriptionManager = subscriptionManager;
+        this.etFingerprintFilter = etFingerprintFilter;
+        this.timetableProcessor = timetableProcessor;
+        this.etPartitioner = etPartitioner;
         nodeStarted = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
         siriNamespace.add("ns2", "http://www.ifopt.org.uk/acsb");
     }
@@ -123,8 +152,11 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
     public void configure() {
         createWorkerRoutes(config.getTiamatStopPlaceQuaysURL());
         createRestRoutes(config.getRestPort(), config.isEtEnabled(), config.isSxEnabled(), config.useAnsharSubscription());
-        createQuartzRoutes(config.getHeartbeatCheckInterval(), config.isTiamatStopPlaceQuaysEnabled(), config.getTiamatStopPlaceQuaysInterval());
+        createQuartzRoutes(config.getHeartbeatCheckInterval(), config.isTiamatStopPlaceQuaysEnabled(), config.getTiamatStopPlaceQuaysInterval(), config.isSxEnabled());
         createSiriProcessingRoutes();
+        if (StringUtils.isNotBlank(config.getTimetableGtfsURL())) {
+            createTimetableRoutes(config.getTimetableGtfsURL(), config.getTimetableGtfsInterval());
+        }
 
         String proposedValue = "ukur-" + UUID.randomUUID();
         String requestorId = sharedProperties.putIfAbsent("AnsharRequestorId", proposedValue);
@@ -147,6 +179,7 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
                 .routeId("ET ActiveMQ Listener")
                 .log(LoggingLevel.DEBUG, "About to handle ET message from queue")
                 .process(ETSubscriptionProcessor)
+                .process(etFingerprintFilter::processed) //resends are skipped only after successful processing
                 .log(LoggingLevel.DEBUG, "Done handling ET message from queue")
                 .end();
 
@@ -161,6 +194,10 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
                 .routeId(ROUTEID_HEARTBEAT_CHECKER)
                 .to("bean:subscriptionManager?method=handleHeartbeatAndTermination()");
 
+        from(ROUTE_DEFERRED_SX)
+                .routeId(ROUTEID_DEFERRED_SX)
+                .bean(SXSubscriptionProcessor, "processDeferredSituations");
+
         from(ROUTE_TIAMAT_MAP)
                 .routeId(ROUTEID_TIAMAT_MAP)
                 .to("metrics:timer:" + MetricsService.TIMER_TIAMAT + "?action=start")
@@ -168,7 +205,8 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
                 .setHeader(Exchange.HTTP_METHOD, constant("GET"))
                 .setHeader("ET-Client-Name", constant("Ukur"))
                 .setHeader("ET-Client-ID", constant(getHostName()))
-                .to(tiamatStopPlaceQuaysURL)
+                .bean(tiamatStopPlaceQuaysProcessor, "addConditionalHeaders")
+                .to(tiamatStopPlaceQuaysURL + (tiamatStopPlaceQuaysURL.contains("?") ? "&" : "?") + "throwExceptionOnFailure=false") //the processor handles 304 Not Modified
                 .process(tiamatStopPlaceQuaysProcessor)
                 .to("metrics:timer:" + MetricsService.TIMER_TIAMAT + "?action=stop")
                 .end();
@@ -208,10 +246,15 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
                 .bindingMode(RestBindingMode.json)
                 .get("/subscriptions").to("bean:subscriptionManager?method=listAll")
                 .get("/subscriptions/reload").to("bean:subscriptionManager?method=reloadSubscriptionCache")
+                .get("/subscriptions/{id}/stats").to("bean:deliveryStatsService?method=getStats(${header.id})")
                 .get("/routes").to("direct:routeStatus")
                 .get("/live").to("direct:OK")
                 .get("/ready").to("direct:ready");
 
+        rest("/internal/metrics")
+                .bindingMode(RestBindingMode.off)
+                .get().produces(OpenMetricsWriter.CONTENT_TYPE).to("direct:openMetrics");
+
         rest("/external/subscription")
                 .bindingMode(RestBindingMode.json)
                 .post().type(Subscription.class).outType(Subscription.class).to("bean:subscriptionManager?method=addOrUpdate(${body})")
@@ -219,8 +262,8 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
 
         rest("/external/siri-subscription")
                 .bindingMode(RestBindingMode.xml)
-                .post().type(Siri.class).outType(Siri.class).to("bean:siriXMLSubscriptionHandler?method=handle(${body}, null)")
-                .post("{codespace}").type(Siri.class).outType(Siri.class).to("bean:siriXMLSubscriptionHandler?method=handle(${body}, ${header.codespace})");
+                .post().type(Siri.class).outType(Siri.class).to("bean:siriXMLSubscriptionHandler?method=handle(${body}, null, ${header.Accept-Encoding})")
+                .post("{codespace}").type(Siri.class).outType(Siri.class).to("bean:siriXMLSubscriptionHandler?method=handle(${body}, ${header.codespace}, ${header.Accept-Encoding})");
 
         from("direct:ready")
                 .routeId("Ready checker")
@@ -237,6 +280,13 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
                 .setBody(simple("OK    \n\n"))
                 .setHeader(Exchange.HTTP_RESPONSE_CODE, constant("200"));
 
+        from("direct:openMetrics")
+                .routeId("OpenMetrics")
+                .process(exchange -> {
+                    exchange.getOut().setBody(metricsService.getOpenMetrics());
+                    exchange.getOut().setHeader(Exchange.CONTENT_TYPE, OpenMetricsWriter.CONTENT_TYPE);
+                });
+
         from("direct:routeStatus")
                 .routeId("Route Status")
                 .process(exchange -> {
@@ -248,6 +298,7 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
                     status.setStatusSX(routeStatus(ROUTEID_SX_TRIGGER, sxEnabled, createSubscriptionReceievers));
                     status.setStatusSubscriptionRenewer(routeStatus(ROUTEID_ANSHAR_SUBSRENEWER_TRIGGER));
                     status.setStatusSubscriptionChecker(routeStatus(ROUTEID_ANSHAR_SUBSCHECKER_TRIGGER));
+                    status.getPushEndpoints().putAll(subscriptionManager.getPushEndpointStates());
                     for (Map.Entry<String, Meter> entry : metricsService.getMeters().entrySet()) {
                         status.addMeter(entry.getKey(), entry.getValue());
                     }
@@ -257,15 +308,29 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
                     for (Map.Entry<String, Gauge> entry : metricsService.getGauges().entrySet()) {
                         status.addGauge(entry.getKey(), entry.getValue());
                     }
+                    for (Map.Entry<String, Histogram> entry : metricsService.getHistograms().entrySet()) {
+                        if (entry.getKey().startsWith(MetricsService.HISTOGRAM_LATENCY_PREFIX)) {
+                            status.addLatency(entry.getKey(), entry.getValue());
+                        }
+                    }
                     exchange.getOut().setBody(status);
                 });
 
     }
 
-    private void createQuartzRoutes(int subscriptionCheckerRepatInterval, boolean stopPlaceToQuayEnabled, int tiamatRepatInterval) {
+    private void createQuartzRoutes(int subscriptionCheckerRepatInterval, boolean stopPlaceToQuayEnabled, int tiamatRepatInterval, boolean sxEnabled) {
 
         createSingletonQuartz2Route("subscriptionHeartbeatAndTermination", subscriptionCheckerRepatInterval, ROUTEID_HEARTBEAT_TRIGGER, ROUTEID_HEARTBEAT_CHECKER, ROUTE_HEARTBEAT_CHECKER);
 
+        if (sxEnabled) {
+            //not a singleton: each node processes the deferred situations it owns
+            from("quartz2://ukur/deferredSituations?trigger.repeatInterval=" + DEFERRED_SX_INTERVAL_MS + "&startDelayedSeconds=5&fireNow=true")
+                    .routeId(ROUTEID_DEFERRED_SX_TRIGGER)
+                    .filter(e -> isNotRunning(ROUTEID_DEFERRED_SX))
+                    .log(LoggingLevel.DEBUG, "deferredSituations triggered by timer")
+                    .to(ROUTE_DEFERRED_SX);
+        }
+
         if (stopPlaceToQuayEnabled) {
             from("quartz2://ukur/getStopPlacesFromTiamat?trigger.repeatInterval=" + tiamatRepatInterval + "&fireNow=true")
                     .routeId(ROUTEID_TIAMAT_MAP_TRIGGER)
@@ -275,6 +340,27 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
         }
     }
 
+    private void createTimetableRoutes(String timetableGtfsURL, int timetableRepeatInterval) {
+
+        from("quartz2://ukur/getTimetable?trigger.repeatInterval=" + timetableRepeatInterval + "&fireNow=true")
+                .routeId(ROUTEID_TIMETABLE_TRIGGER)
+                .filter(e -> isNotRunning(ROUTEID_TIMETABLE))
+                .log(LoggingLevel.DEBUG, "getTimetable triggered by timer")
+                .to(ROUTE_TIMETABLE);
+
+        from(ROUTE_TIMETABLE)
+                .routeId(ROUTEID_TIMETABLE)
+                .to("metrics:timer:" + MetricsService.TIMER_TIMETABLE + "?action=start")
+                .log(LoggingLevel.DEBUG, "About to get timetable from url: " + timetableGtfsURL)
+                .setHeader(Exchange.HTTP_METHOD, constant("GET"))
+                .setHeader("ET-Client-Name", constant("Ukur"))
+                .setHeader("ET-Client-ID", constant(getHostName()))
+                .to(timetableGtfsURL)
+                .process(timetableProcessor)
+                .to("metrics:timer:" + MetricsService.TIMER_TIMETABLE + "?action=stop")
+                .end();
+    }
+
     private void createSiriProcessingRoutes() {
         NamespaceContext nsContext = new NamespaceContext() {
             @Override
@@ -307,6 +393,7 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
                     }
                 })
                 .split(siriNamespace.xpath("//s:PtSituationElement"))
+                .process(latencyStage(MetricsService.STAGE_SPLIT))
                 .bean(metricsService, "registerSentMessage('PtSituationElement')")
                 .to("activemq:queue:" + UkurConfiguration.SX_QUEUE);
 
@@ -323,7 +410,10 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
                     }
                 })
                 .split(siriNamespace.xpath("//s:EstimatedVehicleJourney[not(ns2:ServiceFeatureRef/text()='freightTrain')]"))
+                .filter(etFingerprintFilter) //skips journeys that are unchanged since last received
+                .process(latencyStage(MetricsService.STAGE_SPLIT))
                 .bean(metricsService, "registerSentMessage('EstimatedVehicleJourney')")
+                .process(etPartitioner) //keeps journeys on the same line on the same consumer
                 .to("activemq:queue:" + UkurConfiguration.ET_QUEUE);
     }
 
@@ -337,6 +427,7 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
 
         from("direct:checkRequestorId")
                 .routeId("Check requestorId")
+                .process(exchange -> LatencyTrace.start(exchange.getIn()))
                 .choice()
                 .when(header("requestorId").isNotEqualTo(requestorId))
                     .log(LoggingLevel.WARN, "Received unknown requestorId ('${header.requestorId}')")
@@ -375,12 +466,14 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
         from("direct:receivePtSituationElements")
                 .routeId("Handle subscribed SX message")
                 .convertBodyTo(Document.class)
+                .process(latencyStage(MetricsService.STAGE_TO_DOCUMENT))
                 .process(heartbeatRegistrer)
                 .to("direct:processPtSituationElements");
 
         from("direct:receiveEstimatedVehicleJourneys")
                 .routeId("Handle subscribed ET message")
                 .convertBodyTo(Document.class)
+                .process(latencyStage(MetricsService.STAGE_TO_DOCUMENT))
                 .process(heartbeatRegistrer)
                 .to("direct:processEstimatedVehicleJourneys");
 
@@ -462,56 +555,82 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
 
     private void createAnsharPollingRoutes(boolean etPollingEnabled, boolean sxPollingEnabled, int repatInterval, String siriETurl, String siriSXurl) {
 
-        Predicate splitComplete = exchangeProperty(Exchange.SPLIT_COMPLETE).isEqualTo(true);
+        AdaptiveAnsharPoller etPoller = new AdaptiveAnsharPoller(siriETurl, config.getPollingMaxPageSize(), config.getPollingMaxBackoff());
+        AdaptiveAnsharPoller sxPoller = new AdaptiveAnsharPoller(siriSXurl, config.getPollingMaxPageSize(), config.getPollingMaxBackoff());
+        metricsService.registerGauge(MetricsService.GAUGE_ET_PAGE_SIZE, etPoller::getPageSize);
+        metricsService.registerGauge(MetricsService.GAUGE_SX_PAGE_SIZE, sxPoller::getPageSize);
+
         Predicate moreData = exchangeProperty(MORE_DATA).isEqualToIgnoreCase("true");
-        Predicate callAnsharAgain = PredicateBuilder.and(splitComplete, moreData);
 
         XPathExpression moreDataExpression = siriNamespace.xpath("/s:Siri/s:ServiceDelivery/s:MoreData/text()", String.class);
+        XPathExpression etCountExpression = siriNamespace.xpath("count(//s:EstimatedVehicleJourney)", Integer.class);
+        XPathExpression sxCountExpression = siriNamespace.xpath("count(//s:PtSituationElement)", Integer.class);
 
+        //the next page is fetched while the previous is split and queued, the bounded seda queue between them keeps
+        //us from fetching pages faster than we manage to process them. The seda queue is in memory: Anshar regards a
+        //page as delivered when it is fetched, so pages waiting there (at most three) are lost if the node dies
         from(ROUTE_ET_RETRIEVER)
                 .routeId(ROUTEID_ET_RETRIEVER)
                 .to("metrics:timer:" + MetricsService.TIMER_ET_PULL + "?action=start")
-                .log(LoggingLevel.DEBUG, "About to call Anshar with url: " + siriETurl)
+                .process(exchange -> exchange.setProperty(ANSHAR_URL, etPoller.getUrl()))
+                .log(LoggingLevel.DEBUG, "About to call Anshar with url: ${exchangeProperty." + ANSHAR_URL + "}")
                 .setHeader(Exchange.HTTP_METHOD, constant("GET"))
                 .setHeader("ET-Client-Name", constant("Ukur"))
                 .setHeader("ET-Client-ID", constant(getHostName()))
-                .to(siriETurl)
+                .toD("${exchangeProperty." + ANSHAR_URL + "}")
+                .process(exchange -> LatencyTrace.start(exchange.getIn()))
                 .convertBodyTo(Document.class)
+                .process(latencyStage(MetricsService.STAGE_TO_DOCUMENT))
                 .setProperty(MORE_DATA, moreDataExpression)
+                .setProperty(PAGE_ELEMENTS, etCountExpression)
+                .process(exchange -> etPoller.pageReceived(moreData.matches(exchange), exchange.getProperty(PAGE_ELEMENTS, 0, Integer.class)))
                 .to("metrics:timer:" + MetricsService.TIMER_ET_PULL + "?action=stop")
-                .to("direct:processEstimatedVehicleJourneys")
+                .to(ExchangePattern.InOnly, ROUTE_ET_PAGES)
                 .choice()
-                .when(callAnsharAgain)
+                .when(moreData)
                 .log(LoggingLevel.DEBUG, "Call Anshar again since there are more ET data")
                 .to(ROUTE_ET_RETRIEVER)
                 .end();
 
+        from(ROUTE_ET_PAGES)
+                .routeId(ROUTEID_ET_PAGES)
+                .to("direct:processEstimatedVehicleJourneys");
+
         from(ROUTE_SX_RETRIEVER)
                 .routeId(ROUTEID_SX_RETRIEVER)
                 .to("metrics:timer:" + MetricsService.TIMER_SX_PULL + "?action=start")
-                .log(LoggingLevel.DEBUG, "About to call Anshar with url: " + siriSXurl)
+                .process(exchange -> exchange.setProperty(ANSHAR_URL, sxPoller.getUrl()))
+                .log(LoggingLevel.DEBUG, "About to call Anshar with url: ${exchangeProperty." + ANSHAR_URL + "}")
                 .setHeader(Exchange.HTTP_METHOD, constant("GET"))
                 .setHeader("ET-Client-Name", constant("Ukur"))
                 .setHeader("ET-Client-ID", constant(getHostName()))
-                .to(siriSXurl)
+                .toD("${exchangeProperty." + ANSHAR_URL + "}")
+                .process(exchange -> LatencyTrace.start(exchange.getIn()))
                 .convertBodyTo(Document.class)
+                .process(latencyStage(MetricsService.STAGE_TO_DOCUMENT))
                 .setProperty(MORE_DATA, moreDataExpression)
+                .setProperty(PAGE_ELEMENTS, sxCountExpression)
+                .process(exchange -> sxPoller.pageReceived(moreData.matches(exchange), exchange.getProperty(PAGE_ELEMENTS, 0, Integer.class)))
                 .to("metrics:timer:" + MetricsService.TIMER_SX_PULL + "?action=stop")
-                .to("direct:processPtSituationElements")
+                .to(ExchangePattern.InOnly, ROUTE_SX_PAGES)
                 .choice()
-                .when(callAnsharAgain)
+                .when(moreData)
                 .log(LoggingLevel.DEBUG, "Call Anshar again since there are more SX data")
                 .to(ROUTE_SX_RETRIEVER)
                 .end();
 
+        from(ROUTE_SX_PAGES)
+                .routeId(ROUTEID_SX_PAGES)
+                .to("direct:processPtSituationElements");
+
         if (etPollingEnabled) {
-            createSingletonQuartz2Route("pollAnsharET", repatInterval, ROUTEID_ET_TRIGGER, ROUTEID_ET_RETRIEVER, ROUTE_ET_RETRIEVER);
+            createSingletonQuartz2Route("pollAnsharET", repatInterval, ROUTEID_ET_TRIGGER, ROUTEID_ET_RETRIEVER, ROUTE_ET_RETRIEVER, e -> etPoller.isDue());
         } else {
             logger.warn("ET polling is disabled");
         }
 
         if (sxPollingEnabled) {
-            createSingletonQuartz2Route("pollAnsharSX", repatInterval, ROUTEID_SX_TRIGGER, ROUTEID_SX_RETRIEVER, ROUTE_SX_RETRIEVER);
+            createSingletonQuartz2Route("pollAnsharSX", repatInterval, ROUTEID_SX_TRIGGER, ROUTEID_SX_RETRIEVER, ROUTE_SX_RETRIEVER, e -> sxPoller.isDue());
         } else {
             logger.warn("SX polling is disabled");
         }
@@ -565,14 +684,26 @@ public class UkurCamelRouteBuilder extends SpringRouteBuilder {
     }
 
     private void createSingletonQuartz2Route(String timerName, int repatInterval, String triggerRouteId, String toRouteId, String toRoute) {
+        createSingletonQuartz2Route(timerName, repatInterval, triggerRouteId, toRouteId, toRoute, e -> true);
+    }
+
+    private void createSingletonQuartz2Route(String timerName, int repatInterval, String triggerRouteId, String toRouteId, String toRoute, Predicate due) {
         String uri = "quartz2://ukur/" + timerName + "?trigger.repeatInterval=" + repatInterval + "&startDelayedSeconds=5&fireNow=true";
         singletonFrom(uri, triggerRouteId)
                 .filter(e -> isLeader(e.getFromRouteId()))
                 .filter(e -> isNotRunning(toRouteId))
+                .filter(due)
                 .log(LoggingLevel.DEBUG, timerName + " triggered by timer")
                 .to(toRoute);
     }
 
+    /**
+     * Registers the latency of a stage for messages traced with LatencyTrace headers.
+     */
+    private Processor latencyStage(String stage) {
+        return exchange -> metricsService.registerLatency(stage, LatencyTrace.completeStage(exchange.getIn()));
+    }
+
     private String getHostName(){
         try {
             return InetAddress.getLocalHost().getHostName();
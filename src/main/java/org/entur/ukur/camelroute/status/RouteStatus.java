@@ -16,6 +16,7 @@
 package org.entur.ukur.camelroute.status;
 
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
@@ -35,6 +36,7 @@ public class RouteStatus {
     private String statusSX;
     private String statusSubscriptionRenewer;
     private String statusSubscriptionChecker;
+    private HashMap<String, String> pushEndpoints = new HashMap<>();
     private HashMap<String, Object> gauges = new HashMap<>();
     private HashMap<String, Long> meterCounts = new HashMap<>();
     private HashMap<String, Double> meterOneMinuteRates = new HashMap<>();
@@ -43,6 +45,10 @@ public class RouteStatus {
     private HashMap<String, Long> timerMax_ms = new HashMap<>();
     private HashMap<String, Long> timerMean_ms = new HashMap<>();
     private HashMap<String, Long> timer95thPersentile_ms = new HashMap<>();
+    private HashMap<String, Long> latencyCounts = new HashMap<>();
+    private HashMap<String, Long> latency50thPercentile_ms = new HashMap<>();
+    private HashMap<String, Long> latency99thPercentile_ms = new HashMap<>();
+    private HashMap<String, Long> latency999thPercentile_ms = new HashMap<>();
 
     public String getHostname() {
         return hostname;
@@ -76,6 +82,10 @@ public class RouteStatus {
         return timerOneMinuteRates;
     }
 
+    public HashMap<String, String> getPushEndpoints() {
+        return pushEndpoints;
+    }
+
     public HashMap<String, Object> getGauges() {
         return gauges;
     }
@@ -92,6 +102,22 @@ public class RouteStatus {
         return timer95thPersentile_ms;
     }
 
+    public HashMap<String, Long> getLatencyCounts() {
+        return latencyCounts;
+    }
+
+    public HashMap<String, Long> getLatency50thPercentile_ms() {
+        return latency50thPercentile_ms;
+    }
+
+    public HashMap<String, Long> getLatency99thPercentile_ms() {
+        return latency99thPercentile_ms;
+    }
+
+    public HashMap<String, Long> getLatency999thPercentile_ms() {
+        return latency999thPercentile_ms;
+    }
+
     public String getStatusHeartbeat() {
         return statusHeartbeat;
     }
@@ -134,6 +160,17 @@ public class RouteStatus {
         timer95thPersentile_ms.put(name, convertToMilliseconds(snapshot.get95thPercentile()));
     }
 
+    /**
+     * Adds a latency histogram (in milliseconds) for a processing stage.
+     */
+    public void addLatency(String name, Histogram histogram) {
+        Snapshot snapshot = histogram.getSnapshot();
+        latencyCounts.put(name, histogram.getCount());
+        latency50thPercentile_ms.put(name, Math.round(snapshot.getMedian()));
+        latency99thPercentile_ms.put(name, Math.round(snapshot.get99thPercentile()));
+        latency999thPercentile_ms.put(name, Math.round(snapshot.get999thPercentile()));
+    }
+
     private long convertToMilliseconds(double nanos) {
         return convertToMilliseconds(Math.round(nanos));
     }
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.routedata;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the direction of (pattern, subscription) pairs, so it is found once for all journeys following the same
+ * pattern. Belongs to one {@link TimetableIndex} (pattern numbers are only valid there), and is simply cleared when
+ * full. Each entry keeps the stops revision of the subscription it was found for, so a subscription with changed
+ * stops gets its direction found again.
+ */
+final class DirectionCache {
+
+    private static final int MAX_ENTRIES = 200_000;
+
+    private final ConcurrentHashMap<Key, Entry> directions = new ConcurrentHashMap<>();
+
+    JourneyPattern.Direction get(int pattern, String subscriptionKey, long stopsRevision, Supplier<JourneyPattern.Direction> finder) {
+        Key key = new Key(pattern, subscriptionKey);
+        Entry entry = directions.get(key);
+        if (entry != null && entry.stopsRevision == stopsRevision) {
+            return entry.direction;
+        }
+        JourneyPattern.Direction direction = finder.get();
+        if (directions.size() >= MAX_ENTRIES) {
+            directions.clear();
+        }
+        directions.put(key, new Entry(stopsRevision, direction));
+        return direction;
+    }
+
+    int size() {
+        return directions.size();
+    }
+
+    private static class Key {
+        private final int pattern;
+        private final String subscriptionKey;
+
+        private Key(int pattern, String subscriptionKey) {
+            this.pattern = pattern;
+            this.subscriptionKey = subscriptionKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return pattern == that.pattern && subscriptionKey.equals(that.subscriptionKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pattern + subscriptionKey.hashCode();
+        }
+    }
+
+    private static class Entry {
+        private final long stopsRevision;
+        private final JourneyPattern.Direction direction;
+
+        private Entry(long stopsRevision, JourneyPattern.Direction direction) {
+            this.stopsRevision = stopsRevision;
+            this.direction = direction;
+        }
+    }
+}
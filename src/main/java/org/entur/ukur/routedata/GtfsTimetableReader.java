@@ -0,0 +1,248 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.routedata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads a GTFS archive (as published by Entur, where route_id is the NeTEx line id, trip_id the service journey id
+ * and stop_id the quay id) into a {@link TimetableIndex}. Only trips.txt and stop_times.txt are used, and they are
+ * read line by line - stop_times.txt must list the stop times of each trip together (it does in the Entur exports).
+ * The planned time of each call is departure_time, or arrival_time if there is no departure (the last call).
+ */
+public class GtfsTimetableReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(GtfsTimetableReader.class);
+
+    private GtfsTimetableReader() {
+    }
+
+    public static TimetableIndex read(File gtfsArchive) throws IOException {
+        long start = System.currentTimeMillis();
+        try (ZipFile zip = new ZipFile(gtfsArchive)) {
+            HashMap<String, String> tripLines = readTripLines(zip);
+            TimetableIndex.Builder builder = TimetableIndex.builder();
+            readStopTimes(zip, tripLines, builder);
+            TimetableIndex index = builder.build();
+            logger.info("Read {} service journeys with {} journey patterns from GTFS in {} ms", index.getNumberOfJourneys(),
+                    index.getNumberOfPatterns(), System.currentTimeMillis() - start);
+            return index;
+        }
+    }
+
+    private static HashMap<String, String> readTripLines(ZipFile zip) throws IOException {
+        HashMap<String, String> tripLines = new HashMap<>();
+        HashMap<String, String> lineIds = new HashMap<>(); //so each line id is kept once
+        try (CsvReader trips = new CsvReader(zip, "trips.txt")) {
+            int tripId = trips.column("trip_id");
+            int routeId = trips.column("route_id");
+            String[] row;
+            while ((row = trips.next()) != null) {
+                String line = lineIds.computeIfAbsent(row[routeId], id -> id);
+                tripLines.put(row[tripId], line);
+            }
+        }
+        return tripLines;
+    }
+
+    private static void readStopTimes(ZipFile zip, HashMap<String, String> tripLines, TimetableIndex.Builder builder) throws IOException {
+        HashSet<String> completedTrips = new HashSet<>();
+        try (CsvReader stopTimes = new CsvReader(zip, "stop_times.txt")) {
+            int tripId = stopTimes.column("trip_id");
+            int stopId = stopTimes.column("stop_id");
+            int stopSequence = stopTimes.column("stop_sequence");
+            int departureTime = stopTimes.optionalColumn("departure_time");
+            int arrivalTime = stopTimes.optionalColumn("arrival_time");
+            String currentTrip = null;
+            List<StopTime> calls = new ArrayList<>();
+            String[] row;
+            while ((row = stopTimes.next()) != null) {
+                String trip = row[tripId];
+                if (!trip.equals(currentTrip)) {
+                    addJourney(builder, currentTrip, tripLines, calls);
+                    if (currentTrip != null) {
+                        completedTrips.add(currentTrip);
+                    }
+                    if (completedTrips.contains(trip)) {
+                        throw new IOException("The stop times in stop_times.txt are not grouped by trip_id (found trip '" + trip + "' again)");
+                    }
+                    currentTrip = trip;
+                    calls.clear();
+                }
+                int time = parseTime(departureTime < 0 ? null : row[departureTime]);
+                if (time == -1) {
+                    time = parseTime(arrivalTime < 0 ? null : row[arrivalTime]);
+                }
+                calls.add(new StopTime(Integer.parseInt(row[stopSequence].trim()), row[stopId], time));
+            }
+            addJourney(builder, currentTrip, tripLines, calls);
+        }
+    }
+
+    private static void addJourney(TimetableIndex.Builder builder, String trip, HashMap<String, String> tripLines, List<StopTime> calls) {
+        if (trip == null) {
+            return;
+        }
+        String line = tripLines.get(trip);
+        if (line == null) {
+            logger.debug("Trip '{}' in stop_times.txt is not in trips.txt - skips it", trip);
+            return;
+        }
+        calls.sort(Comparator.comparingInt(stopTime -> stopTime.sequence));
+        List<String> stops = new ArrayList<>(calls.size());
+        int[] times = new int[calls.size()];
+        for (int i = 0; i < times.length; i++) {
+            StopTime call = calls.get(i);
+            stops.add(call.stopId);
+            times[i] = call.time;
+        }
+        builder.addJourney(trip, line, stops, times);
+    }
+
+    /**
+     * Parses a GTFS time (H:MM:SS, may be above 24 hours for journeys passing midnight) to seconds after midnight,
+     * or -1 if it is blank.
+     */
+    static int parseTime(String time) throws IOException {
+        if (time == null || time.trim().isEmpty()) {
+            return -1;
+        }
+        String[] parts = time.trim().split(":");
+        if (parts.length != 3) {
+            throw new IOException("Illegal time in stop_times.txt: '" + time + "'");
+        }
+        try {
+            return Integer.parseInt(parts[0]) * 3600 + Integer.parseInt(parts[1]) * 60 + Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Illegal time in stop_times.txt: '" + time + "'", e);
+        }
+    }
+
+    private static class StopTime {
+        private final int sequence;
+        private final String stopId;
+        private final int time;
+
+        private StopTime(int sequence, String stopId, int time) {
+            this.sequence = sequence;
+            this.stopId = stopId;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Minimal reader for the CSV files in GTFS: a header line, comma separated fields, optionally quoted (with "" as
+     * an escaped quote). Fields spanning several lines are not supported (and not used in the files we read).
+     */
+    private static class CsvReader implements AutoCloseable {
+
+        private final String name;
+        private final BufferedReader reader;
+        private final Map<String, Integer> columns = new HashMap<>();
+        private final ArrayList<String> fields = new ArrayList<>();
+
+        private CsvReader(ZipFile zip, String name) throws IOException {
+            this.name = name;
+            ZipEntry entry = zip.getEntry(name);
+            if (entry == null) {
+                throw new IOException("The GTFS archive has no " + name);
+            }
+            reader = new BufferedReader(new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8));
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException(name + " is empty");
+            }
+            if (header.startsWith("\uFEFF")) {
+                header = header.substring(1);
+            }
+            List<String> names = split(header);
+            for (int i = 0; i < names.size(); i++) {
+                columns.put(names.get(i).trim(), i);
+            }
+        }
+
+        private int column(String column) throws IOException {
+            Integer index = columns.get(column);
+            if (index == null) {
+                throw new IOException(name + " has no column " + column);
+            }
+            return index;
+        }
+
+        private int optionalColumn(String column) {
+            Integer index = columns.get(column);
+            return index == null ? -1 : index;
+        }
+
+        private String[] next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+            } while (line.isEmpty());
+            List<String> row = split(line);
+            if (row.size() < columns.size()) {
+                throw new IOException("Too few fields in " + name + ": " + line);
+            }
+            return row.toArray(new String[row.size()]);
+        }
+
+        private List<String> split(String line) {
+            fields.clear();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        field.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString());
+            return fields;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.routedata;
+
+import org.entur.ukur.service.IdTable;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Flyweight view of the stop sequence a service journey follows (and its planned times), backed by the off-heap
+ * {@link JourneyPatternStore}. Holds nothing but positions, so it is cheap to create for each lookup.
+ */
+public final class JourneyPattern {
+
+    /**
+     * Where a subscription's from and to stops are on a pattern.
+     */
+    public enum Direction {
+        /** A from stop is called at before a to stop */
+        ALONG,
+        /** Both a from and a to stop are called at, but not a from stop first */
+        AGAINST,
+        /** The pattern does not call at any from stop, or not at any to stop */
+        NOT_ON_PATTERN
+    }
+
+    private final JourneyPatternStore store;
+    private final IdTable stops;
+    private final DirectionCache directions;
+    private final int pattern;
+    private final int journey;
+
+    JourneyPattern(JourneyPatternStore store, IdTable stops, DirectionCache directions, int pattern, int journey) {
+        this.store = store;
+        this.stops = stops;
+        this.directions = directions;
+        this.pattern = pattern;
+        this.journey = journey;
+    }
+
+    public int size() {
+        return store.getPatternLength(pattern);
+    }
+
+    public String getStop(int index) {
+        return stops.get(store.getStop(pattern, index));
+    }
+
+    /**
+     * Returns the index of the first call at one of the given stops, or -1 if the pattern calls at none of them.
+     */
+    public int indexOfAny(Collection<String> stopIds) {
+        int first = -1;
+        for (String stopId : stopIds) {
+            int stop = stops.indexOf(stopId);
+            if (stop >= 0) {
+                int index = store.indexOf(pattern, stop);
+                if (index >= 0 && (first < 0 || index < first)) {
+                    first = index;
+                }
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Finds the direction of the from and to stops (the first call at any from stop compared with the first call at
+     * any to stop). The result is cached per pattern and subscription key, and reused for all journeys following this
+     * pattern as long as the stops revision is the same - pass a null key to skip the cache.
+     */
+    public Direction getDirection(String subscriptionKey, long stopsRevision, Collection<String> fromStops, Collection<String> toStops) {
+        if (subscriptionKey == null) {
+            return findDirection(fromStops, toStops);
+        }
+        return directions.get(pattern, subscriptionKey, stopsRevision, () -> findDirection(fromStops, toStops));
+    }
+
+    private Direction findDirection(Collection<String> fromStops, Collection<String> toStops) {
+        int from = indexOfAny(fromStops);
+        int to = indexOfAny(toStops);
+        if (from < 0 || to < 0) {
+            return Direction.NOT_ON_PATTERN;
+        }
+        return from < to ? Direction.ALONG : Direction.AGAINST;
+    }
+
+    /**
+     * Returns the planned departure from the call with the given index in seconds after midnight of the operating
+     * day, or -1 if it is unknown (or this is a pattern without a particular journey).
+     */
+    public int getDepartureTime(int index) {
+        return journey < 0 ? JourneyPatternStore.UNKNOWN : store.getDepartureTime(journey, index);
+    }
+
+    /**
+     * The stops in order, as a read-only list view.
+     */
+    public List<String> getStops() {
+        return new StopList();
+    }
+
+    private class StopList extends AbstractList<String> implements RandomAccess {
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return getStop(index);
+        }
+
+        @Override
+        public int size() {
+            return JourneyPattern.this.size();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.routedata;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only store of journey patterns (stop sequences as stop positions) and the planned departure times of the
+ * journeys following them. The data is written once to a file which is memory-mapped, so it lives outside the heap
+ * and is read through int views on the mapping - the garbage collector never sees it regardless of timetable size.
+ * <p>
+ * Layout (all ints): a header with the section lengths, then pattern start offsets (one extra at the end), pattern
+ * stops, the stops of each pattern sorted by stop and position and the positions in the same order (a positional
+ * index: the first call at a stop is found with a binary search), journey pattern, journey start time (seconds after
+ * midnight, -1 if unknown), journey time profile (offset into the profiles, -1 if none) and the time profiles
+ * (seconds after the start time for each call, -1 if unknown).
+ * Time profiles are shared between journeys with the same running times.
+ */
+final class JourneyPatternStore {
+
+    static final int UNKNOWN = -1;
+    private static final int MAGIC = 0x554b5250; //"UKRP"
+    private static final int HEADER_INTS = 5;
+
+    private final ByteBuffer mapping;
+    private final IntBuffer patternStart;
+    private final IntBuffer patternStops;
+    private final IntBuffer sortedStops;
+    private final IntBuffer sortedPositions;
+    private final IntBuffer journeyPattern;
+    private final IntBuffer journeyStart;
+    private final IntBuffer journeyProfile;
+    private final IntBuffer profiles;
+    private final int numberOfPatterns;
+    private final int numberOfJourneys;
+
+    private JourneyPatternStore(ByteBuffer mapping) throws IOException {
+        this.mapping = mapping;
+        IntBuffer ints = mapping.asIntBuffer();
+        if (ints.remaining() < HEADER_INTS || ints.get(0) != MAGIC) {
+            throw new IOException("Not a journey pattern store");
+        }
+        numberOfPatterns = ints.get(1);
+        int stopsLength = ints.get(2);
+        numberOfJourneys = ints.get(3);
+        int profilesLength = ints.get(4);
+        int position = HEADER_INTS;
+        patternStart = section(ints, position, numberOfPatterns + 1);
+        position += numberOfPatterns + 1;
+        patternStops = section(ints, position, stopsLength);
+        position += stopsLength;
+        sortedStops = section(ints, position, stopsLength);
+        position += stopsLength;
+        sortedPositions = section(ints, position, stopsLength);
+        position += stopsLength;
+        journeyPattern = section(ints, position, numberOfJourneys);
+        position += numberOfJourneys;
+        journeyStart = section(ints, position, numberOfJourneys);
+        position += numberOfJourneys;
+        journeyProfile = section(ints, position, numberOfJourneys);
+        position += numberOfJourneys;
+        profiles = section(ints, position, profilesLength);
+    }
+
+    private static IntBuffer section(IntBuffer ints, int position, int length) {
+        IntBuffer duplicate = ints.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice();
+    }
+
+    /**
+     * An empty store (kept on the heap, as there is nothing to store).
+     */
+    static JourneyPatternStore empty() {
+        ByteBuffer buffer = ByteBuffer.allocate((HEADER_INTS + 1) * Integer.BYTES);
+        buffer.asIntBuffer().put(MAGIC);
+        try {
+            return new JourneyPatternStore(buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); //can't happen: we just wrote a valid header
+        }
+    }
+
+    /**
+     * Writes the patterns and journeys to a temporary file and maps it read-only. The file is deleted right away (the
+     * mapping stays valid until the store is garbage collected), so nothing is left behind if the node is killed.
+     */
+    static JourneyPatternStore create(List<int[]> patterns, int[] journeyPattern, int[] journeyStart,
+                                      int[] journeyProfile, int numberOfJourneys, int[] profiles, int profilesLength) throws IOException {
+        File file = File.createTempFile("ukur-journeypatterns", ".bin");
+        try {
+            int stopsLength = 0;
+            for (int[] pattern : patterns) {
+                stopsLength += pattern.length;
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+                out.writeInt(MAGIC);
+                out.writeInt(patterns.size());
+                out.writeInt(stopsLength);
+                out.writeInt(numberOfJourneys);
+                out.writeInt(profilesLength);
+                int start = 0;
+                for (int[] pattern : patterns) {
+                    out.writeInt(start);
+                    start += pattern.length;
+                }
+                out.writeInt(start);
+                for (int[] pattern : patterns) {
+                    writeInts(out, pattern, pattern.length);
+                }
+                ArrayList<long[]> sortedPatterns = new ArrayList<>(patterns.size());
+                for (int[] pattern : patterns) {
+                    long[] sorted = new long[pattern.length];
+                    for (int i = 0; i < pattern.length; i++) {
+                        sorted[i] = ((long) pattern[i] << 32) | i;
+                    }
+                    Arrays.sort(sorted);
+                    sortedPatterns.add(sorted);
+                }
+                for (long[] sorted : sortedPatterns) {
+                    for (long stopAndPosition : sorted) {
+                        out.writeInt((int) (stopAndPosition >>> 32));
+                    }
+                }
+                for (long[] sorted : sortedPatterns) {
+                    for (long stopAndPosition : sorted) {
+                        out.writeInt((int) stopAndPosition);
+                    }
+                }
+                writeInts(out, journeyPattern, numberOfJourneys);
+                writeInts(out, journeyStart, numberOfJourneys);
+                writeInts(out, journeyProfile, numberOfJourneys);
+                writeInts(out, profiles, profilesLength);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+                return new JourneyPatternStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    int getNumberOfPatterns() {
+        return numberOfPatterns;
+    }
+
+    int getNumberOfJourneys() {
+        return numberOfJourneys;
+    }
+
+    /**
+     * Size of the mapped data, in bytes.
+     */
+    long getMappedBytes() {
+        return mapping.capacity();
+    }
+
+    int getPatternLength(int pattern) {
+        return patternStart.get(pattern + 1) - patternStart.get(pattern);
+    }
+
+    int getStop(int pattern, int index) {
+        return patternStops.get(patternStart.get(pattern) + index);
+    }
+
+    /**
+     * Returns the first index of the stop in the pattern, or -1.
+     */
+    int indexOf(int pattern, int stop) {
+        //lower bound of the stop among the sorted stops of the pattern - its first position comes first
+        int low = patternStart.get(pattern);
+        int high = patternStart.get(pattern + 1);
+        int end = high;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedStops.get(middle) < stop) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low < end && sortedStops.get(low) == stop ? sortedPositions.get(low) : -1;
+    }
+
+    int getPattern(int journey) {
+        return journeyPattern.get(journey);
+    }
+
+    /**
+     * Returns the planned departure (or arrival, for the last call) from the call with the given index, as seconds
+     * after midnight of the operating day (may exceed 24 hours), or {@link #UNKNOWN}.
+     */
+    int getDepartureTime(int journey, int index) {
+        int start = journeyStart.get(journey);
+        int profile = journeyProfile.get(journey);
+        if (start == UNKNOWN || profile == UNKNOWN) {
+            return UNKNOWN;
+        }
+        int offset = profiles.get(profile + index);
+        return offset == UNKNOWN ? UNKNOWN : start + offset;
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.routedata;
+
+import org.entur.ukur.service.IdTable;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Immutable index of the planned timetable: which stops each line serves (as its distinct stop sequences, journey
+ * patterns) and which pattern each service journey follows. Stops, lines and journeys are identified by their
+ * position in an {@link IdTable}, and patterns are deduplicated. The patterns and the journeys (pattern and planned
+ * times) are kept off-heap in a {@link JourneyPatternStore} - only the ids and the per line summaries are on the
+ * heap. Lookups return flyweight views.
+ */
+public final class TimetableIndex {
+
+    private static final TimetableIndex EMPTY = new TimetableIndex(new Builder(), JourneyPatternStore.empty());
+
+    private final IdTable stops;
+    private final IdTable lines;
+    private final IdTable journeys;
+    private final JourneyPatternStore store;
+    private final DirectionCache directions = new DirectionCache();
+    private final int[] patternLine;
+    //line -> its patterns, and its distinct stops (in the order first seen)
+    private final int[][] linePatterns;
+    private final int[][] lineStops;
+
+    private TimetableIndex(Builder builder, JourneyPatternStore store) {
+        this.store = store;
+        stops = new IdTable(builder.stopIds.toArray(new String[0]));
+        lines = new IdTable(builder.lineIds.toArray(new String[0]));
+        journeys = new IdTable(builder.journeyIds.toArray(new String[0]));
+        patternLine = Arrays.copyOf(builder.patternLine, builder.patterns.size());
+
+        int[] numberOfPatterns = new int[lines.size()];
+        for (int line : patternLine) {
+            numberOfPatterns[line]++;
+        }
+        linePatterns = new int[lines.size()][];
+        for (int line = 0; line < linePatterns.length; line++) {
+            linePatterns[line] = new int[numberOfPatterns[line]];
+            numberOfPatterns[line] = 0;
+        }
+        for (int pattern = 0; pattern < patternLine.length; pattern++) {
+            int line = patternLine[pattern];
+            linePatterns[line][numberOfPatterns[line]++] = pattern;
+        }
+        lineStops = new int[lines.size()][];
+        for (int line = 0; line < lineStops.length; line++) {
+            LinkedHashSet<Integer> distinct = new LinkedHashSet<>();
+            for (int pattern : linePatterns[line]) {
+                for (int stop : builder.patterns.get(pattern)) {
+                    distinct.add(stop);
+                }
+            }
+            lineStops[line] = distinct.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    /**
+     * An index without any lines or journeys.
+     */
+    public static TimetableIndex empty() {
+        return EMPTY;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the distinct stops served by the line, or an empty list if the line is unknown.
+     */
+    public List<String> getStopsForLine(String lineRef) {
+        int line = lines.indexOf(lineRef);
+        return line < 0 ? Collections.emptyList() : new StopList(lineStops[line]);
+    }
+
+    /**
+     * Returns the distinct ordered stop sequences of the line, or an empty list if the line is unknown.
+     */
+    public List<List<String>> getPatternsForLine(String lineRef) {
+        int line = lines.indexOf(lineRef);
+        if (line < 0) {
+            return Collections.emptyList();
+        }
+        List<List<String>> result = new ArrayList<>(linePatterns[line].length);
+        for (int pattern : linePatterns[line]) {
+            result.add(new JourneyPattern(store, stops, directions, pattern, -1).getStops());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stops the service journey calls at in order, or null if the journey is unknown.
+     */
+    public List<String> getStops(String journeyRef) {
+        JourneyPattern pattern = getJourneyPattern(journeyRef);
+        return pattern == null ? null : pattern.getStops();
+    }
+
+    /**
+     * Returns the pattern (with planned times) the service journey follows, or null if the journey is unknown.
+     */
+    public JourneyPattern getJourneyPattern(String journeyRef) {
+        int journey = journeys.indexOf(journeyRef);
+        return journey < 0 ? null : new JourneyPattern(store, stops, directions, store.getPattern(journey), journey);
+    }
+
+    /**
+     * Returns the line of the service journey, or null if the journey is unknown.
+     */
+    public String getLine(String journeyRef) {
+        int journey = journeys.indexOf(journeyRef);
+        return journey < 0 ? null : lines.get(patternLine[store.getPattern(journey)]);
+    }
+
+    public int getNumberOfJourneys() {
+        return journeys.size();
+    }
+
+    public int getNumberOfPatterns() {
+        return store.getNumberOfPatterns();
+    }
+
+    /**
+     * Approximate size of the index on the heap, in bytes (the off-heap part is not included).
+     */
+    public long getEstimatedBytes() {
+        long bytes = stops.getEstimatedBytes() + lines.getEstimatedBytes() + journeys.getEstimatedBytes();
+        bytes += IdTable.arrayBytes(patternLine.length);
+        bytes += arraysBytes(linePatterns) + arraysBytes(lineStops);
+        return bytes;
+    }
+
+    /**
+     * Size of the patterns and journeys kept off-heap, in bytes.
+     */
+    public long getOffHeapBytes() {
+        return store.getMappedBytes();
+    }
+
+    private static long arraysBytes(int[][] arrays) {
+        long bytes = IdTable.arrayBytes(arrays.length);
+        for (int[] array : arrays) {
+            bytes += IdTable.arrayBytes(array.length);
+        }
+        return bytes;
+    }
+
+    private class StopList extends AbstractList<String> implements RandomAccess {
+        private final int[] stopPositions;
+
+        private StopList(int[] stopPositions) {
+            this.stopPositions = stopPositions;
+        }
+
+        @Override
+        public String get(int index) {
+            return stops.get(stopPositions[index]);
+        }
+
+        @Override
+        public int size() {
+            return stopPositions.length;
+        }
+    }
+
+    /**
+     * Collects service journeys with their line, ordered stops and planned times. Identical stop sequences on the
+     * same line become one pattern, and identical running times on the same pattern one time profile.
+     */
+    public static class Builder {
+
+        private final ArrayList<String> stopIds = new ArrayList<>();
+        private final HashMap<String, Integer> stopPositions = new HashMap<>();
+        private final ArrayList<String> lineIds = new ArrayList<>();
+        private final HashMap<String, Integer> linePositions = new HashMap<>();
+        private final ArrayList<int[]> patterns = new ArrayList<>();
+        private final HashMap<PatternKey, Integer> patternPositions = new HashMap<>();
+        private int[] patternLine = new int[1024];
+        private final ArrayList<String> journeyIds = new ArrayList<>();
+        private final HashSet<String> knownJourneys = new HashSet<>();
+        private int[] journeyPattern = new int[1024];
+        private int[] journeyStart = new int[1024];
+        private int[] journeyProfile = new int[1024];
+        private final HashMap<PatternKey, Integer> profilePositions = new HashMap<>();
+        private int[] profiles = new int[4096];
+        private int profilesLength = 0;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a service journey without planned times. A journey that is already added is ignored (the first one
+         * wins).
+         */
+        public Builder addJourney(String journeyId, String lineId, List<String> orderedStops) {
+            return addJourney(journeyId, lineId, orderedStops, null);
+        }
+
+        /**
+         * Adds a service journey with the planned departure from each stop as seconds after midnight (-1 where
+         * unknown), or null if there are no planned times. A journey that is already added is ignored (the first one
+         * wins).
+         */
+        public Builder addJourney(String journeyId, String lineId, List<String> orderedStops, int[] departureTimes) {
+            if (departureTimes != null && departureTimes.length != orderedStops.size()) {
+                throw new IllegalArgumentException("Got " + departureTimes.length + " departure times for " + orderedStops.size() + " stops");
+            }
+            if (!knownJourneys.add(journeyId)) {
+                return this;
+            }
+            int line = position(lineId, lineIds, linePositions);
+            int[] stops = new int[orderedStops.size()];
+            for (int i = 0; i < stops.length; i++) {
+                stops[i] = position(orderedStops.get(i), stopIds, stopPositions);
+            }
+            PatternKey key = new PatternKey(line, stops);
+            Integer pattern = patternPositions.get(key);
+            if (pattern == null) {
+                pattern = patterns.size();
+                patterns.add(stops);
+                patternPositions.put(key, pattern);
+                if (pattern == patternLine.length) {
+                    patternLine = Arrays.copyOf(patternLine, patternLine.length * 2);
+                }
+                patternLine[pattern] = line;
+            }
+            int journey = journeyIds.size();
+            journeyIds.add(journeyId);
+            if (journey == journeyPattern.length) {
+                journeyPattern = Arrays.copyOf(journeyPattern, journeyPattern.length * 2);
+                journeyStart = Arrays.copyOf(journeyStart, journeyStart.length * 2);
+                journeyProfile = Arrays.copyOf(journeyProfile, journeyProfile.length * 2);
+            }
+            journeyPattern[journey] = pattern;
+            journeyStart[journey] = JourneyPatternStore.UNKNOWN;
+            journeyProfile[journey] = JourneyPatternStore.UNKNOWN;
+            if (departureTimes != null) {
+                addTimes(journey, pattern, departureTimes);
+            }
+            return this;
+        }
+
+        private void addTimes(int journey, int pattern, int[] departureTimes) {
+            int start = JourneyPatternStore.UNKNOWN;
+            for (int time : departureTimes) {
+                if (time != JourneyPatternStore.UNKNOWN) {
+                    start = time;
+                    break;
+                }
+            }
+            if (start == JourneyPatternStore.UNKNOWN) {
+                return;
+            }
+            int[] offsets = new int[departureTimes.length];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = departureTimes[i] == JourneyPatternStore.UNKNOWN ? JourneyPatternStore.UNKNOWN : departureTimes[i] - start;
+            }
+            PatternKey key = new PatternKey(pattern, offsets);
+            Integer profile = profilePositions.get(key);
+            if (profile == null) {
+                profile = profilesLength;
+                if (profilesLength + offsets.length > profiles.length) {
+                    profiles = Arrays.copyOf(profiles, Math.max(profiles.length * 2, profilesLength + offsets.length));
+                }
+                System.arraycopy(offsets, 0, profiles, profilesLength, offsets.length);
+                profilesLength += offsets.length;
+                profilePositions.put(key, profile);
+            }
+            journeyStart[journey] = start;
+            journeyProfile[journey] = profile;
+        }
+
+        /**
+         * Builds the index, writing the patterns and journeys to a memory-mapped file.
+         */
+        public TimetableIndex build() throws IOException {
+            if (journeyIds.isEmpty()) {
+                return new TimetableIndex(this, JourneyPatternStore.empty());
+            }
+            JourneyPatternStore store = JourneyPatternStore.create(patterns, journeyPattern, journeyStart, journeyProfile,
+                    journeyIds.size(), profiles, profilesLength);
+            return new TimetableIndex(this, store);
+        }
+
+        private static int position(String id, ArrayList<String> ids, HashMap<String, Integer> positions) {
+            Integer position = positions.get(id);
+            if (position == null) {
+                position = ids.size();
+                ids.add(id);
+                positions.put(id, position);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Key for an int sequence within a scope: the stops of a pattern within its line, or the running times of a
+     * journey within its pattern.
+     */
+    private static class PatternKey {
+        private final int line;
+        private final int[] stops;
+        private final int hash;
+
+        private PatternKey(int line, int[] stops) {
+            this.line = line;
+            this.stops = stops;
+            this.hash = 31 * line + Arrays.hashCode(stops);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PatternKey)) return false;
+            PatternKey that = (PatternKey) o;
+            return line == that.line && Arrays.equals(stops, that.stops);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
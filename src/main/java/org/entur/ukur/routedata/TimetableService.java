@@ -0,0 +1,85 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.routedata;
+
+import org.entur.ukur.service.MetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The planned timetable (lines, journey patterns and service journeys), read on each node from route data. Empty
+ * until route data is loaded, and replaced atomically on each load.
+ */
+@Service
+public class TimetableService {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final MetricsService metricsService;
+    private final AtomicReference<TimetableIndex> index = new AtomicReference<>(TimetableIndex.empty());
+
+    @Autowired
+    public TimetableService(MetricsService metricsService) {
+        this.metricsService = metricsService;
+    }
+
+    @PostConstruct
+    public void registerMetrics() {
+        metricsService.registerGauge(MetricsService.GAUGE_TIMETABLE_JOURNEYS, () -> index.get().getNumberOfJourneys());
+        metricsService.registerGauge(MetricsService.GAUGE_TIMETABLE_BYTES, () -> index.get().getEstimatedBytes());
+        metricsService.registerGauge(MetricsService.GAUGE_TIMETABLE_OFFHEAP, () -> index.get().getOffHeapBytes());
+    }
+
+    public void update(TimetableIndex newIndex) {
+        index.set(newIndex);
+        logger.info("Updated timetable with {} service journeys and {} journey patterns (approx. {} bytes on heap, {} bytes off-heap)",
+                newIndex.getNumberOfJourneys(), newIndex.getNumberOfPatterns(), newIndex.getEstimatedBytes(), newIndex.getOffHeapBytes());
+    }
+
+    /**
+     * Returns the stops served by the line according to the timetable - empty if the line is unknown.
+     */
+    public List<String> getStopsForLine(String lineRef) {
+        return lineRef == null ? Collections.emptyList() : index.get().getStopsForLine(lineRef);
+    }
+
+    /**
+     * Returns the ordered stops of the service journey, or null if the journey is unknown.
+     */
+    public List<String> getStops(String journeyRef) {
+        return index.get().getStops(journeyRef);
+    }
+
+    /**
+     * Returns the pattern (with planned times) of the service journey, or null if the journey is unknown.
+     */
+    public JourneyPattern getJourneyPattern(String journeyRef) {
+        return journeyRef == null ? null : index.get().getJourneyPattern(journeyRef);
+    }
+
+    /**
+     * Returns the line of the service journey, or null if the journey is unknown.
+     */
+    public String getLine(String journeyRef) {
+        return index.get().getLine(journeyRef);
+    }
+}
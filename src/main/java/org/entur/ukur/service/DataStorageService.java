@@ -34,8 +34,11 @@ import javax.xml.datatype.Duration;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class DataStorageService implements MessageListener<String> {
@@ -55,6 +58,8 @@ public class DataStorageService implements MessageListener<String> {
     private HashMap<String, Set<String>> lineNoStopsToSubscription = new HashMap<>();
     private HashMap<String, Set<String>> codespaceNoStopsToSubscription = new HashMap<>();
     private long lastReloadedTime = 0;
+    private final AtomicLong subscriptionCacheVersion = new AtomicLong();
+    private final List<Consumer<String>> subscriptionRemovedListeners = new CopyOnWriteArrayList<>();
 
     public DataStorageService(Datastore datastore,
                               IMap<String, LiveJourney> currentJourneys,
@@ -100,6 +105,7 @@ public class DataStorageService implements MessageListener<String> {
 
     private void addOrUpdateSubscriptionInLocalStorage(HashMap<String, Subscription> idToSubscription, HashMap<String, Set<String>> stopToSubscription, HashMap<String, Set<String>> lineNoStopsToSubscription, HashMap<String, Set<String>> codespaceNoStopsToSubscription, Subscription subscription) {
         idToSubscription.put(subscription.getId(), subscription);
+        subscriptionCacheVersion.incrementAndGet();
         if (subscription.hasNoStops()) {
             for (String lineref : subscription.getLineRefs()) {
                 add(subscription, lineref, lineNoStopsToSubscription);
@@ -124,15 +130,48 @@ public class DataStorageService implements MessageListener<String> {
 
     private void removeSubscriptionFromLocalStorage(String subscriptionId) {
         lastReloadedTime = System.currentTimeMillis();
-        idToSubscription.remove(subscriptionId);
+        Subscription removed = idToSubscription.remove(subscriptionId);
+        subscriptionCacheVersion.incrementAndGet();
+        if (removed != null) {
+            notifySubscriptionRemoved(subscriptionId);
+        }
     }
 
     private synchronized void updateSubscriptionCache(HashMap<String, Subscription> idToSubscription, HashMap<String, Set<String>> stopToSubscription,
                                                       HashMap<String, Set<String>> lineNoStopsToSubscription, HashMap<String, Set<String>> codespaceNoStopsToSubscription) {
+        Set<String> removedIds = new HashSet<>(this.idToSubscription.keySet());
+        removedIds.removeAll(idToSubscription.keySet());
         this.idToSubscription  = idToSubscription;
         this.stopToSubscription  = stopToSubscription;
         this.lineNoStopsToSubscription  = lineNoStopsToSubscription;
         this.codespaceNoStopsToSubscription  = codespaceNoStopsToSubscription;
+        subscriptionCacheVersion.incrementAndGet();
+        removedIds.forEach(this::notifySubscriptionRemoved);
+    }
+
+    /**
+     * The listener is called with the id of each subscription removed from the node local subscription cache, whether
+     * it is removed on this node, on another node or by a reload from datastore.
+     */
+    public void addSubscriptionRemovedListener(Consumer<String> listener) {
+        subscriptionRemovedListeners.add(listener);
+    }
+
+    private void notifySubscriptionRemoved(String subscriptionId) {
+        for (Consumer<String> listener : subscriptionRemovedListeners) {
+            try {
+                listener.accept(subscriptionId);
+            } catch (Exception e) {
+                logger.error("Got exception while notifying that subscription with id {} is removed", subscriptionId, e);
+            }
+        }
+    }
+
+    /**
+     * Increases each time the node local subscription cache is changed, so others can tell if derived data is outdated.
+     */
+    public long getSubscriptionCacheVersion() {
+        return subscriptionCacheVersion.get();
     }
 
 
@@ -215,6 +254,10 @@ public class DataStorageService implements MessageListener<String> {
         return idToSubscription.size();
     }
 
+    public Subscription getSubscription(String id) {
+        return idToSubscription.get(id);
+    }
+
     public Subscription getSubscriptionByName(String name) {
         if (StringUtils.isNotBlank(name)) {
             //TODO: won't scale to well, but sufficient for now
@@ -265,7 +308,8 @@ public class DataStorageService implements MessageListener<String> {
                 .set("name", StringValue.newBuilder(s.getName()).setExcludeFromIndexes(true).build())
                 .set("pushAddress", StringValue.newBuilder(s.getPushAddress()).setExcludeFromIndexes(true).build())
                 .set("failedPushCounter", LongValue.newBuilder(s.getFailedPushCounter()).setExcludeFromIndexes(true).build())
-                .set("siriSubscriptionModel", BooleanValue.of(s.isUseSiriSubscriptionModel()));
+                .set("siriSubscriptionModel", BooleanValue.of(s.isUseSiriSubscriptionModel()))
+                .set("gzipPush", BooleanValue.newBuilder(s.isGzipPush()).setExcludeFromIndexes(true).build());
         if (s.getHeartbeatInterval() != null) {
             builder.set("heartbeatInterval", StringValue.of(s.getHeartbeatInterval().toString()));
         }
@@ -304,6 +348,9 @@ public class DataStorageService implements MessageListener<String> {
         if (entity.contains("siriSubscriptionModel")) {
             subscription.setUseSiriSubscriptionModel(entity.getBoolean("siriSubscriptionModel"));
         }
+        if (entity.contains("gzipPush")) {
+            subscription.setGzipPush(entity.getBoolean("gzipPush"));
+        }
         if (entity.contains("heartbeatInterval")) {
             String heartbeatInterval = entity.getString("heartbeatInterval");
             subscription.setHeartbeatInterval(toDuration(heartbeatInterval));
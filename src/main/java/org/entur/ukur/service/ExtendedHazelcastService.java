@@ -17,8 +17,10 @@ package org.entur.ukur.service;
 
 import com.hazelcast.config.MapConfig;
 import com.hazelcast.core.*;
+import org.entur.ukur.camelroute.DeferredSituation;
 import org.entur.ukur.routedata.LiveJourney;
 import org.entur.ukur.setup.UkurConfiguration;
+import org.entur.ukur.subscription.PushRetry;
 import org.rutebanken.hazelcasthelper.service.HazelCastService;
 import org.rutebanken.hazelcasthelper.service.KubernetesService;
 import org.slf4j.Logger;
@@ -47,6 +49,17 @@ public class ExtendedHazelcastService extends HazelCastService {
         return hazelcast;
     }
 
+    /**
+     * The keys of the entries owned by this member if the map is a hazelcast map (all keys for other maps), so work
+     * on shared maps can be split between the members without fetching the whole map.
+     */
+    public static <K> Set<K> localKeySet(Map<K, ?> map) {
+        if (map instanceof IMap) {
+            return ((IMap<K, ?>) map).localKeySet();
+        }
+        return map.keySet();
+    }
+
     @Bean
     public Map<Object, Long> alreadySentCache() {
         return hazelcast.getMap("ukur.alreadySentCache");
@@ -57,6 +70,26 @@ public class ExtendedHazelcastService extends HazelCastService {
         return hazelcast.getMap("ukur.heartbeats");
     }
 
+    @Bean
+    public Map<String, PushRetry> pushRetries() {
+        return hazelcast.getMap("ukur.pushRetries");
+    }
+
+    @Bean
+    public Map<String, DeferredSituation> deferredSituations() {
+        return hazelcast.getMap("ukur.deferredSituations");
+    }
+
+    @Bean
+    public Map<String, String> processedSituationVersions() {
+        return hazelcast.getMap("ukur.processedSituationVersions");
+    }
+
+    @Bean
+    public Map<String, Long> journeyFingerprints() {
+        return hazelcast.getMap("ukur.journeyFingerprints");
+    }
+
     @Bean
     public IMap<String, String> sharedProperties() {
         return hazelcast.getMap("ukur.sharedProperties");
@@ -80,6 +113,18 @@ public class ExtendedHazelcastService extends HazelCastService {
                 new MapConfig()
                         .setName("ukur.alreadySentCache")
                         .setMaxIdleSeconds(3600)); //one hour
+        mapConfigs.add(
+                new MapConfig()
+                        .setName("ukur.pushRetries")
+                        .setTimeToLiveSeconds(3600)); //retries older than an hour are outdated anyway
+        mapConfigs.add(
+                new MapConfig()
+                        .setName("ukur.processedSituationVersions")
+                        .setTimeToLiveSeconds(3600)); //unchanged situations are processed again each hour, for new subscriptions
+        mapConfigs.add(
+                new MapConfig()
+                        .setName("ukur.journeyFingerprints")
+                        .setTimeToLiveSeconds(3600)); //unchanged journeys are processed again each hour, for new subscriptions
         return mapConfigs;
 
     }
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.service;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * A reservoir backed by HdrHistogram: values are recorded without allocation or locking, and snapshots cover
+ * (roughly) the last minute of values, kept in a ring of interval histograms. The intervals follow the wall clock:
+ * recorded values are moved to the ring when the interval they were recorded in ends (or on a snapshot), so
+ * snapshots give the same window no matter how often (or by how many) they are taken. Values outside the trackable
+ * range are clamped to it.
+ */
+public class HdrHistogramReservoir implements Reservoir {
+
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final int INTERVALS = 4;
+    private static final long INTERVAL_MS = 15_000;
+
+    private final long lowestDiscernibleValue;
+    private final long highestTrackableValue;
+    private final LongSupplier clock;
+    private final Recorder recorder;
+    private final Histogram[] intervals = new Histogram[INTERVALS];
+    private final long[] intervalNumbers = new long[INTERVALS];
+    private volatile long currentInterval;
+    private Histogram recycled;
+
+    public HdrHistogramReservoir(long lowestDiscernibleValue, long highestTrackableValue) {
+        this(lowestDiscernibleValue, highestTrackableValue, System::currentTimeMillis);
+    }
+
+    HdrHistogramReservoir(long lowestDiscernibleValue, long highestTrackableValue, LongSupplier clock) {
+        this.lowestDiscernibleValue = lowestDiscernibleValue;
+        this.highestTrackableValue = highestTrackableValue;
+        this.clock = clock;
+        recorder = new Recorder(lowestDiscernibleValue, highestTrackableValue, SIGNIFICANT_DIGITS);
+        for (int i = 0; i < INTERVALS; i++) {
+            intervals[i] = createHistogram();
+            intervalNumbers[i] = Long.MIN_VALUE;
+        }
+        currentInterval = clock.getAsLong() / INTERVAL_MS;
+    }
+
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public void update(long value) {
+        long interval = clock.getAsLong() / INTERVAL_MS;
+        if (interval != currentInterval) {
+            rotate(interval);
+        }
+        recorder.recordValue(Math.max(0, Math.min(value, highestTrackableValue)));
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        long interval = clock.getAsLong() / INTERVAL_MS;
+        moveRecordedValues();
+        currentInterval = interval;
+        Histogram histogram = createHistogram();
+        for (int i = 0; i < INTERVALS; i++) {
+            if (interval - intervalNumbers[i] < INTERVALS) {
+                histogram.add(intervals[i]);
+            }
+        }
+        return new HdrSnapshot(histogram);
+    }
+
+    private synchronized void rotate(long interval) {
+        if (interval != currentInterval) { //another thread may just have done it
+            moveRecordedValues();
+            currentInterval = interval;
+        }
+    }
+
+    /**
+     * Moves the values recorded since last time to the ring histogram for the current interval.
+     */
+    private void moveRecordedValues() {
+        int index = (int) Math.floorMod(currentInterval, (long) INTERVALS);
+        if (intervalNumbers[index] != currentInterval) {
+            intervals[index].reset();
+            intervalNumbers[index] = currentInterval;
+        }
+        recycled = recorder.getIntervalHistogram(recycled);
+        intervals[index].add(recycled);
+    }
+
+    private Histogram createHistogram() {
+        return new Histogram(lowestDiscernibleValue, highestTrackableValue, SIGNIFICANT_DIGITS);
+    }
+
+    /**
+     * Snapshot of a HdrHistogram. Note that getValues() returns one (representative) value per recorded histogram
+     * bucket, not all recorded values.
+     */
+    public static class HdrSnapshot extends Snapshot {
+
+        private final Histogram histogram;
+
+        HdrSnapshot(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        /**
+         * Returns a new snapshot with the values from both snapshots, e.g. to combine the same metric from several
+         * nodes. The histograms must have the same trackable range.
+         */
+        public HdrSnapshot merge(HdrSnapshot other) {
+            Histogram merged = histogram.copy();
+            merged.add(other.histogram);
+            return new HdrSnapshot(merged);
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            return histogram.getValueAtPercentile(quantile * 100);
+        }
+
+        @Override
+        public long[] getValues() {
+            ArrayList<Long> values = new ArrayList<>();
+            for (HistogramIterationValue value : histogram.recordedValues()) {
+                values.add(value.getValueIteratedTo());
+            }
+            return values.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, histogram.getTotalCount());
+        }
+
+        @Override
+        public long getMax() {
+            return histogram.getTotalCount() == 0 ? 0 : histogram.getMaxValue();
+        }
+
+        @Override
+        public double getMean() {
+            return histogram.getMean();
+        }
+
+        @Override
+        public long getMin() {
+            return histogram.getMinValue();
+        }
+
+        @Override
+        public double getStdDev() {
+            return histogram.getTotalCount() == 0 ? 0 : histogram.getStdDeviation();
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for (long value : getValues()) {
+                    out.printf("%d%n", value);
+                }
+            }
+        }
+    }
+}
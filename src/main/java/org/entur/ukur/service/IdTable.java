@@ -0,0 +1,103 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.service;
+
+/**
+ * Immutable open addressing hash table from id to its position in an array of ids - so data about the ids can be
+ * kept in plain arrays indexed by that position, without a map entry (and boxed Integer) per id.
+ */
+public final class IdTable {
+
+    private final String[] ids;
+    //(position + 1) of the id, 0 is an empty slot
+    private final int[] table;
+
+    /**
+     * Builds the table for the given ids. If an id occurs more than once the first position is used, and the later
+     * positions in the array are set to the same String instance (so equal ids are only kept once).
+     */
+    public IdTable(String[] ids) {
+        this.ids = ids;
+        this.table = new int[tableSize(ids.length)];
+        int mask = table.length - 1;
+        for (int position = 0; position < ids.length; position++) {
+            int slot = spread(ids[position].hashCode()) & mask;
+            while (table[slot] != 0) {
+                String existing = ids[table[slot] - 1];
+                if (existing.equals(ids[position])) {
+                    ids[position] = existing;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == 0) {
+                table[slot] = position + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the id, or -1 if it is unknown.
+     */
+    public int indexOf(String id) {
+        if (id == null) {
+            return -1;
+        }
+        int mask = table.length - 1;
+        int slot = spread(id.hashCode()) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (ids[entry - 1].equals(id)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public String get(int position) {
+        return ids[position];
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Approximate size on the heap in bytes: the table, the id array and the id Strings.
+     */
+    public long getEstimatedBytes() {
+        long bytes = arrayBytes(table.length) + arrayBytes(ids.length);
+        for (String id : ids) {
+            bytes += 24 + 16 + 2L * id.length(); //String + char[] (duplicates are counted twice)
+        }
+        return bytes;
+    }
+
+    public static long arrayBytes(int length) {
+        return 16L + 4L * length; //header + int or (compressed) reference per element
+    }
+
+    private static int tableSize(int entries) {
+        //power of two with a load factor of 0.5 or less
+        return Integer.highestOneBit(Math.max(entries, 1) * 2 - 1) << 1;
+    }
+
+    private static int spread(int hash) {
+        //ids often share long prefixes, so mix the high bits in before masking
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.service;
+
+import org.apache.camel.Message;
+
+/**
+ * Follows a SIRI message from it is received from Anshar until it is pushed to the subscribers. Through the camel
+ * routes (and the ActiveMQ hop) the timestamps are carried as headers, and from the subscription processors to the
+ * push tasks the trace is bound to the processing thread. Timestamps are epoch millis as the stages may run on
+ * different nodes.
+ */
+public class LatencyTrace {
+
+    public static final String HEADER_RECEIVED = "UkurReceived";
+    public static final String HEADER_STAGE_COMPLETED = "UkurStageCompleted";
+
+    private static final ThreadLocal<LatencyTrace> current = new ThreadLocal<>();
+
+    private final long received;
+    private long stageCompleted;
+
+    public LatencyTrace(long received, long stageCompleted) {
+        this.received = received;
+        this.stageCompleted = stageCompleted;
+    }
+
+    /**
+     * Sets the received (and stage completed) headers to now.
+     */
+    public static void start(Message message) {
+        long now = System.currentTimeMillis();
+        message.setHeader(HEADER_RECEIVED, now);
+        message.setHeader(HEADER_STAGE_COMPLETED, now);
+    }
+
+    /**
+     * Returns the trace carried by the message headers, or null if the message isn't traced.
+     */
+    public static LatencyTrace fromHeaders(Message message) {
+        Long received = message.getHeader(HEADER_RECEIVED, Long.class);
+        Long stageCompleted = message.getHeader(HEADER_STAGE_COMPLETED, Long.class);
+        if (received == null || stageCompleted == null) {
+            return null;
+        }
+        return new LatencyTrace(received, stageCompleted);
+    }
+
+    /**
+     * Returns millis since the previous stage completed and marks the current stage as completed in the message
+     * headers, or -1 if the message isn't traced.
+     */
+    public static long completeStage(Message message) {
+        LatencyTrace trace = fromHeaders(message);
+        if (trace == null) {
+            return -1;
+        }
+        long duration = trace.completeStage();
+        message.setHeader(HEADER_STAGE_COMPLETED, trace.stageCompleted);
+        return duration;
+    }
+
+    public static LatencyTrace getCurrent() {
+        return current.get();
+    }
+
+    public static void setCurrent(LatencyTrace trace) {
+        if (trace == null) {
+            current.remove();
+        } else {
+            current.set(trace);
+        }
+    }
+
+    /**
+     * Returns millis since the previous stage completed and marks the current stage as completed.
+     */
+    public long completeStage() {
+        long now = System.currentTimeMillis();
+        long duration = now - stageCompleted;
+        stageCompleted = now;
+        return duration;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+}
@@ -46,6 +46,7 @@ public class MetricsService {
     public static final String TIMER_ET_PULL               = "timer.pull.anshar-et";
     public static final String TIMER_SX_PULL               = "timer.pull.anshar-sx";
     public static final String TIMER_TIAMAT                = "timer.tiamat.StopPlacesAndQuays";
+    public static final String TIMER_TIMETABLE             = "timer.timetable.gtfs";
     public static final String TIMER_ET_PROCESS            = "timer.process.EstimatedVehicleJourney";
     public static final String TIMER_SX_PROCESS            = "timer.process.PtSituationElement";
     public static final String TIMER_ET_UNMARSHALL         = "timer.unmarshall.EstimatedVehicleJourney";
@@ -53,12 +54,37 @@ public class MetricsService {
     public static final String GAUGE_SUBSCRIPTIONS         = "gauge.subscriptions";
     public static final String GAUGE_LIVE_JOURNEYS         = "gauge.liveJourneys";
     public static final String GAUGE_STOPPLACES            = "gauge.stopPlaces";
+    public static final String GAUGE_STOPPLACES_BYTES      = "gauge.stopPlacesBytes";
+    public static final String GAUGE_TIMETABLE_JOURNEYS    = "gauge.timetableJourneys";
+    public static final String GAUGE_TIMETABLE_BYTES       = "gauge.timetableBytes";
+    public static final String GAUGE_TIMETABLE_OFFHEAP     = "gauge.timetableOffHeapBytes";
     public static final String GAUGE_PUSH_QUEUE            = "gauge.pushQueue";
+    public static final String GAUGE_PUSH_ENDPOINT_PREFIX  = "gauge.pushEndpoint.";
+    public static final String GAUGE_PUSH_RETRIES          = "gauge.pushRetries";
+    public static final String GAUGE_FAN_OUT_QUEUE         = "gauge.fanOutQueue";
+    public static final String GAUGE_ET_PAGE_SIZE          = "gauge.ansharETPageSize";
+    public static final String GAUGE_SX_PAGE_SIZE          = "gauge.ansharSXPageSize";
+    public static final String METER_PUSH_BYTES_MARSHALLED = "push.bytes.marshalled";
+    public static final String METER_PUSH_BYTES_SENT       = "push.bytes.sent";
+    public static final String METER_PUSH_HANDED_OVER      = "push.handed-over";
+    public static final String METER_PUSH_NOT_HANDED_OVER  = "push.not-handed-over";
     public static final String METER_ET_DLQ                = "message.dlq.et";
     public static final String METER_SX_DLQ                = "message.dlq.sx";
     public static final String METER_ET_IGNORED            = "message.et-ignored";
     public static final String METER_ET_WITHOUT_DEVIATIONS = "message.et-without-deviations";
     public static final String METER_ET_WITH_DEVIATIONS    = "message.et-with-deviations";
+    public static final String METER_ET_UNCHANGED          = "message.et-unchanged";
+    public static final String METER_SX_DEFERRED           = "message.sx-deferred";
+    public static final String METER_SX_DEFERRED_RESENT    = "message.sx-deferred-resent";
+    public static final String METER_SX_UNCHANGED          = "message.sx-unchanged";
+    public static final String HISTOGRAM_LATENCY_PREFIX    = "latency.";
+    public static final String STAGE_TO_DOCUMENT           = "toDocument";
+    public static final String STAGE_SPLIT                 = "split";
+    public static final String STAGE_ACTIVEMQ              = "activemq";
+    public static final String STAGE_PROCESS               = "process";
+    public static final String STAGE_PUSH_QUEUE            = "pushQueue";
+    public static final String STAGE_PUSH                  = "push";
+    public static final String STAGE_TOTAL                 = "total";
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final MetricRegistry metrics = new MetricRegistry();
     private final boolean graphiteEnabled;
@@ -147,7 +173,20 @@ public class MetricsService {
     }
 
     public Timer getTimer(String name) {
-        return metrics.timer(name, () -> new Timer(new SlidingTimeWindowArrayReservoir(1, TimeUnit.MINUTES)));
+        return metrics.timer(name, () -> new Timer(new HdrHistogramReservoir(TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.HOURS.toNanos(1))));
+    }
+
+    /**
+     * Registers how many milliseconds a stage (see STAGE_*) took for a traced message, ignored if negative (no trace).
+     */
+    public void registerLatency(String stage, long millis) {
+        if (millis >= 0) {
+            getLatencyHistogram(stage).update(millis);
+        }
+    }
+
+    public Histogram getLatencyHistogram(String stage) {
+        return metrics.histogram(HISTOGRAM_LATENCY_PREFIX + stage, () -> new Histogram(new HdrHistogramReservoir(1, TimeUnit.HOURS.toMillis(1))));
     }
 
     public void registerGauge(String name, Gauge<?> gauge) {
@@ -162,6 +201,10 @@ public class MetricsService {
         return metrics.getGauges();
     }
 
+    public SortedMap<String, Histogram> getHistograms() {
+        return metrics.getHistograms();
+    }
+
     public SortedMap<String, Meter> getMeters() {
         return metrics.getMeters();
     }
@@ -170,6 +213,13 @@ public class MetricsService {
         return metrics.meter(name);
     }
 
+    /**
+     * All metrics in the OpenMetrics text format.
+     */
+    public String getOpenMetrics() {
+        return OpenMetricsWriter.write(metrics);
+    }
+
     public void reset() {
         logger.warn("Resets all metrics!");
         metrics.removeMatching(MetricFilter.ALL);
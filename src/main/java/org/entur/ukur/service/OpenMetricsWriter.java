@@ -0,0 +1,106 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.service;
+
+import com.codahale.metrics.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the metrics in a registry in the OpenMetrics text format (which Prometheus also understands): meters as
+ * counters, numeric gauges as gauges, and timers and histograms as summaries with quantiles. Timers and the latency
+ * histograms (registered in milliseconds) are converted to seconds.
+ */
+public class OpenMetricsWriter {
+
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final String PREFIX = "ukur_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final double MILLIS_PER_SECOND = TimeUnit.SECONDS.toMillis(1);
+
+    private OpenMetricsWriter() {
+    }
+
+    public static String write(MetricRegistry registry) {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        for (Map.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
+            String name = sanitize(entry.getKey());
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append("_total ").append(entry.getValue().getCount()).append('\n');
+        }
+        for (Map.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
+            String name = sanitize(entry.getKey());
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(entry.getValue().getCount()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
+            Object value = entry.getValue().getValue();
+            if (value instanceof Boolean) {
+                value = (Boolean) value ? 1 : 0;
+            }
+            if (value instanceof Number) {
+                String name = sanitize(entry.getKey());
+                out.append("# TYPE ").append(name).append(" gauge\n");
+                out.append(name).append(' ').append(format(((Number) value).doubleValue())).append('\n');
+            }
+        }
+        for (Map.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
+            Timer timer = entry.getValue();
+            writeSummary(out, sanitize(entry.getKey()) + "_seconds", timer.getCount(), timer.getSnapshot(), NANOS_PER_SECOND);
+        }
+        for (Map.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (entry.getKey().startsWith(MetricsService.HISTOGRAM_LATENCY_PREFIX)) {
+                writeSummary(out, sanitize(entry.getKey()) + "_seconds", histogram.getCount(), histogram.getSnapshot(), MILLIS_PER_SECOND);
+            } else {
+                writeSummary(out, sanitize(entry.getKey()), histogram.getCount(), histogram.getSnapshot(), 1);
+            }
+        }
+        out.append("# EOF\n");
+        return out.toString();
+    }
+
+    private static void writeSummary(StringBuilder out, String name, long count, Snapshot snapshot, double divisor) {
+        out.append("# TYPE ").append(name).append(" summary\n");
+        if (name.endsWith("_seconds")) {
+            out.append("# UNIT ").append(name).append(" seconds\n");
+        }
+        for (double quantile : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(format(snapshot.getValue(quantile) / divisor)).append('\n');
+        }
+        out.append(name).append("_count ").append(count).append('\n');
+    }
+
+    static String sanitize(String metricName) {
+        return PREFIX + metricName.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -25,14 +25,18 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Maps between quays and stop places, from the stop places and quays loaded from Tiamat. Each load builds a new
+ * {@link StopPlaceQuayIndex} that replaces the previous one atomically, so lookups never see a half built mapping.
+ */
 @Service
 public class QuayAndStopPlaceMappingService {
 
     private Logger logger = LoggerFactory.getLogger(this.getClass());
     private final MetricsService metricsService;
-    private HashMap<String, Collection<String>> stopPlaceIdToQuayIds = new HashMap<>();
-    private HashMap<String, String> quayIdToStopPlaceId = new HashMap<>();
+    private final AtomicReference<StopPlaceQuayIndex> index = new AtomicReference<>(new StopPlaceQuayIndex(Collections.emptyMap()));
 
     @Autowired
     public QuayAndStopPlaceMappingService(MetricsService metricsService) {
@@ -42,42 +46,45 @@ public class QuayAndStopPlaceMappingService {
     @PostConstruct
     public void registerMetrics() {
         metricsService.registerGauge(MetricsService.GAUGE_STOPPLACES, this::getNumberOfStopPlaces);
+        metricsService.registerGauge(MetricsService.GAUGE_STOPPLACES_BYTES, () -> index.get().getEstimatedBytes());
     }
 
     public void updateStopsAndQuaysMap(Map<String, Collection<String>> stopPlacesAndQuays) {
-        HashMap<String, Collection<String>> newStopPlaceIdToQuayIds = new HashMap<>(stopPlacesAndQuays);
-        HashMap<String, String> newQuayIdToStopPlaceId = new HashMap<>();
-        for (Map.Entry<String, Collection<String>> stopAndQuays : newStopPlaceIdToQuayIds.entrySet()) {
-            for (String quayId : stopAndQuays.getValue()) {
-                newQuayIdToStopPlaceId.put(quayId, stopAndQuays.getKey());
-            }
-        }
-        stopPlaceIdToQuayIds = newStopPlaceIdToQuayIds;
-        quayIdToStopPlaceId = newQuayIdToStopPlaceId;
+        updateStopsAndQuays(new StopPlaceQuayIndex(stopPlacesAndQuays));
+    }
+
+    public void updateStopsAndQuays(StopPlaceQuayIndex newIndex) {
+        index.set(newIndex);
+        logger.debug("Updated mapping with {} stop places (approx. {} bytes)", newIndex.getNumberOfStopPlaces(), newIndex.getEstimatedBytes());
     }
 
     public String mapQuayToStopPlace(String quayId) {
-        String stopPlaceid = quayIdToStopPlaceId.get(quayId);
-        if (stopPlaceid == null) {
+        StopPlaceQuayIndex current = index.get();
+        String stopPlaceid = current.getStopPlace(quayId);
+        if (stopPlaceid == null && current.registerMiss(quayId)) {
+            //only logged the first time after each update
             logger.warn("Did not find quayId '{}' on any stopplace", quayId);
         }
         return stopPlaceid;
     }
 
     public Collection<String> mapStopPlaceToQuays(String stopPlaceId) {
-        Collection<String> quayIds = stopPlaceIdToQuayIds.get(stopPlaceId);
+        StopPlaceQuayIndex current = index.get();
+        Collection<String> quayIds = current.getQuays(stopPlaceId);
         if (quayIds == null) {
-            logger.warn("Did not find any stopPlace with stopPlaceId '{}'", stopPlaceId);
+            if (current.registerMiss(stopPlaceId)) {
+                logger.warn("Did not find any stopPlace with stopPlaceId '{}'", stopPlaceId);
+            }
             return Collections.emptySet();
         }
         return quayIds;
     }
 
     public long getNumberOfStopPlaces() {
-        return stopPlaceIdToQuayIds.size();
+        return index.get().getNumberOfStopPlaces();
     }
 
     public HashMap<String, Collection<String>> getAllStopPlaces() {
-        return new HashMap<>(stopPlaceIdToQuayIds);
+        return index.get().toMap();
     }
 }
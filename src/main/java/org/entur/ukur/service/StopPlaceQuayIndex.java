@@ -0,0 +1,173 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable, array based mapping between stop places and quays, built once per load from Tiamat. Stop places and
+ * quays get integer ids (their position in the arrays below) and are looked up through {@link IdTable}s, so a lookup
+ * is a few array reads and a String.equals - and the whole index is a handful of arrays instead of two HashMaps with
+ * an entry object per quay. Each id String is kept only once.
+ * <br>
+ * Ids that are not found are remembered (up to a limit) so callers can avoid logging the same miss over and over.
+ */
+public final class StopPlaceQuayIndex {
+
+    private static final int MAX_REMEMBERED_MISSES = 10_000;
+
+    //stop place id -> its quays are quayIds[firstQuay[id]] until quayIds[firstQuay[id + 1]]
+    private final String[] stopPlaceIds;
+    private final int[] firstQuay;
+    private final String[] quayIds;
+    //quay id -> stop place id
+    private final int[] quayStopPlace;
+    private final IdTable stopPlaceTable;
+    private final IdTable quayTable;
+    private final long estimatedBytes;
+    private final Set<String> misses = ConcurrentHashMap.newKeySet();
+
+    StopPlaceQuayIndex(Map<String, ? extends Collection<String>> stopPlacesAndQuays) {
+        this(toBuilder(stopPlacesAndQuays));
+    }
+
+    private StopPlaceQuayIndex(Builder builder) {
+        stopPlaceIds = Arrays.copyOf(builder.stopPlaceIds, builder.numberOfStopPlaces);
+        firstQuay = Arrays.copyOf(builder.firstQuay, builder.numberOfStopPlaces + 1);
+        firstQuay[builder.numberOfStopPlaces] = builder.numberOfQuays;
+        quayIds = Arrays.copyOf(builder.quayIds, builder.numberOfQuays);
+        quayStopPlace = Arrays.copyOf(builder.quayStopPlace, builder.numberOfQuays);
+        stopPlaceTable = new IdTable(stopPlaceIds);
+        quayTable = new IdTable(quayIds);
+        estimatedBytes = estimateBytes();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private static Builder toBuilder(Map<String, ? extends Collection<String>> stopPlacesAndQuays) {
+        Builder builder = new Builder();
+        for (Map.Entry<String, ? extends Collection<String>> stopAndQuays : stopPlacesAndQuays.entrySet()) {
+            builder.addStopPlace(stopAndQuays.getKey());
+            for (String quayId : stopAndQuays.getValue()) {
+                builder.addQuay(quayId);
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Returns the stop place the quay belongs to, or null if it is unknown.
+     */
+    String getStopPlace(String quayId) {
+        int quay = quayTable.indexOf(quayId);
+        return quay < 0 ? null : stopPlaceIds[quayStopPlace[quay]];
+    }
+
+    /**
+     * Returns the quays of the stop place, or null if it is unknown.
+     */
+    List<String> getQuays(String stopPlaceId) {
+        int stopPlace = stopPlaceTable.indexOf(stopPlaceId);
+        if (stopPlace < 0) {
+            return null;
+        }
+        return Collections.unmodifiableList(Arrays.asList(quayIds).subList(firstQuay[stopPlace], firstQuay[stopPlace + 1]));
+    }
+
+    public int getNumberOfStopPlaces() {
+        return stopPlaceIds.length;
+    }
+
+    HashMap<String, Collection<String>> toMap() {
+        HashMap<String, Collection<String>> map = new HashMap<>(stopPlaceIds.length * 2);
+        for (int i = 0; i < stopPlaceIds.length; i++) {
+            map.put(stopPlaceIds[i], new ArrayList<>(Arrays.asList(quayIds).subList(firstQuay[i], firstQuay[i + 1])));
+        }
+        return map;
+    }
+
+    /**
+     * Registers an id that was not found, and returns true the first time it is registered (as long as there is
+     * room for more).
+     */
+    boolean registerMiss(String id) {
+        return misses.size() < MAX_REMEMBERED_MISSES && misses.add(id);
+    }
+
+    /**
+     * Approximate size of the index on the heap, in bytes.
+     */
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    private long estimateBytes() {
+        return stopPlaceTable.getEstimatedBytes() + quayTable.getEstimatedBytes()
+                + IdTable.arrayBytes(firstQuay.length) + IdTable.arrayBytes(quayStopPlace.length);
+    }
+
+    /**
+     * Collects stop places and their quays in the order they are read, so the index can be built without
+     * intermediate collections: add a stop place, then its quays, then the next stop place...
+     */
+    public static class Builder {
+
+        private String[] stopPlaceIds = new String[1024];
+        private int[] firstQuay = new int[1025];
+        private String[] quayIds = new String[2048];
+        private int[] quayStopPlace = new int[2048];
+        private int numberOfStopPlaces = 0;
+        private int numberOfQuays = 0;
+
+        private Builder() {
+        }
+
+        public Builder addStopPlace(String stopPlaceId) {
+            if (numberOfStopPlaces == stopPlaceIds.length) {
+                stopPlaceIds = Arrays.copyOf(stopPlaceIds, stopPlaceIds.length * 2);
+                firstQuay = Arrays.copyOf(firstQuay, stopPlaceIds.length + 1);
+            }
+            stopPlaceIds[numberOfStopPlaces] = stopPlaceId;
+            firstQuay[numberOfStopPlaces] = numberOfQuays;
+            numberOfStopPlaces++;
+            return this;
+        }
+
+        /**
+         * Adds a quay to the last added stop place.
+         */
+        public Builder addQuay(String quayId) {
+            if (numberOfStopPlaces == 0) {
+                throw new IllegalStateException("Must add a stop place before its quays");
+            }
+            if (numberOfQuays == quayIds.length) {
+                quayIds = Arrays.copyOf(quayIds, quayIds.length * 2);
+                quayStopPlace = Arrays.copyOf(quayStopPlace, quayIds.length);
+            }
+            quayIds[numberOfQuays] = quayId;
+            quayStopPlace[numberOfQuays] = numberOfStopPlaces - 1;
+            numberOfQuays++;
+            return this;
+        }
+
+        public StopPlaceQuayIndex build() {
+            return new StopPlaceQuayIndex(this);
+        }
+    }
+}
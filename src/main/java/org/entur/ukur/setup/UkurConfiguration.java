@@ -64,6 +64,12 @@ public class UkurConfiguration {
     @Value("${ukur.camel.polling.interval}")
     private int pollingInterval;
 
+    @Value("${ukur.camel.polling.maxPageSize:2000}")
+    private int pollingMaxPageSize;
+
+    @Value("${ukur.camel.polling.maxBackoff:2}")
+    private int pollingMaxBackoff;
+
     @Value("${ukur.camel.tiamat.stop_place_quays.url}")
     private String tiamatStopPlaceQuaysURL;
 
@@ -73,6 +79,12 @@ public class UkurConfiguration {
     @Value("${ukur.camel.tiamat.stop_place_quays.enabled}")
     private boolean tiamatStopPlaceQuaysEnabled;
 
+    @Value("${ukur.camel.timetable.gtfs.url:}")
+    private String timetableGtfsURL;
+
+    @Value("${ukur.camel.timetable.gtfs.interval:86400000}")
+    private int timetableGtfsInterval;
+
     @Value("${ukur.camel.anshar.subscription.checking:true}")
     private boolean subscriptionCheckingEnabled;
 
@@ -157,6 +169,14 @@ public class UkurConfiguration {
         return pollingInterval;
     }
 
+    public int getPollingMaxPageSize() {
+        return pollingMaxPageSize;
+    }
+
+    public int getPollingMaxBackoff() {
+        return pollingMaxBackoff;
+    }
+
     public String getTiamatStopPlaceQuaysURL() {
         return tiamatStopPlaceQuaysURL;
     }
@@ -169,6 +189,17 @@ public class UkurConfiguration {
         return tiamatStopPlaceQuaysEnabled;
     }
 
+    /**
+     * Camel url to a GTFS archive with the timetable, blank if the timetable should not be loaded.
+     */
+    public String getTimetableGtfsURL() {
+        return timetableGtfsURL;
+    }
+
+    public int getTimetableGtfsInterval() {
+        return timetableGtfsInterval;
+    }
+
     public boolean useAnsharSubscription() {
         return useAnsharSubscription;
     }
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live delivery counters for a single subscription on this node. LongAdders are striped internally, so concurrent
+ * push threads don't contend on the same counter.
+ */
+class DeliveryCounters {
+
+    private final LongAdder matched = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder pushed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder[] pushTimeBuckets = new LongAdder[DeliveryStats.PUSH_TIME_BUCKETS];
+
+    DeliveryCounters() {
+        for (int i = 0; i < pushTimeBuckets.length; i++) {
+            pushTimeBuckets[i] = new LongAdder();
+        }
+    }
+
+    void matched() {
+        matched.increment();
+    }
+
+    void deduplicated() {
+        deduplicated.increment();
+    }
+
+    void pushed(int messages) {
+        pushed.add(messages);
+    }
+
+    void failed(int messages) {
+        failed.add(messages);
+    }
+
+    void retried() {
+        retried.increment();
+    }
+
+    void pushTime(long millis) {
+        pushTimeBuckets[DeliveryStats.bucket(millis)].increment();
+    }
+
+    DeliveryStats snapshot(String subscriptionId) {
+        long[] buckets = new long[pushTimeBuckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = pushTimeBuckets[i].sum();
+        }
+        return new DeliveryStats(subscriptionId, 1, matched.sum(), deduplicated.sum(), pushed.sum(), failed.sum(), retried.sum(), buckets);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.io.Serializable;
+
+/**
+ * Delivery statistics for a single subscription, from one node or merged from several. Push times are kept in a
+ * sketch with power of two buckets (in milliseconds), so the percentiles are upper bounds of their bucket.
+ */
+public class DeliveryStats implements Serializable {
+
+    static final int PUSH_TIME_BUCKETS = 25; //bucket i holds push times up to 2^i - 1 ms
+
+    private final String subscriptionId;
+    private int nodes;
+    private long matched;
+    private long deduplicated;
+    private long pushed;
+    private long failed;
+    private long retried;
+    private final long[] pushTimeBuckets;
+
+    DeliveryStats(String subscriptionId, int nodes, long matched, long deduplicated, long pushed, long failed, long retried, long[] pushTimeBuckets) {
+        this.subscriptionId = subscriptionId;
+        this.nodes = nodes;
+        this.matched = matched;
+        this.deduplicated = deduplicated;
+        this.pushed = pushed;
+        this.failed = failed;
+        this.retried = retried;
+        this.pushTimeBuckets = pushTimeBuckets;
+    }
+
+    /**
+     * Stats with no deliveries (and from no nodes), to merge other stats into.
+     */
+    public static DeliveryStats empty(String subscriptionId) {
+        return new DeliveryStats(subscriptionId, 0, 0, 0, 0, 0, 0, new long[PUSH_TIME_BUCKETS]);
+    }
+
+    static int bucket(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        return Math.min(PUSH_TIME_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    /**
+     * Adds the numbers from the other stats to these.
+     */
+    public void merge(DeliveryStats other) {
+        nodes += other.nodes;
+        matched += other.matched;
+        deduplicated += other.deduplicated;
+        pushed += other.pushed;
+        failed += other.failed;
+        retried += other.retried;
+        for (int i = 0; i < PUSH_TIME_BUCKETS; i++) {
+            pushTimeBuckets[i] += other.pushTimeBuckets[i];
+        }
+    }
+
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    /**
+     * Number of nodes the stats are collected from.
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Number of messages matching the subscription.
+     */
+    public long getMatched() {
+        return matched;
+    }
+
+    /**
+     * Number of matched messages not pushed as they already were pushed to the subscription.
+     */
+    public long getDeduplicated() {
+        return deduplicated;
+    }
+
+    /**
+     * Number of messages pushed with a 2xx response (including retries).
+     */
+    public long getPushed() {
+        return pushed;
+    }
+
+    /**
+     * Number of messages where the push failed or got a non 2xx response (including retries).
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getRetried() {
+        return retried;
+    }
+
+    public long getPushTimeCount() {
+        long count = 0;
+        for (long bucketCount : pushTimeBuckets) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    public long getPushTime50thPercentile_ms() {
+        return getPushTimePercentile(0.5);
+    }
+
+    public long getPushTime99thPercentile_ms() {
+        return getPushTimePercentile(0.99);
+    }
+
+    public long getPushTimeMax_ms() {
+        return getPushTimePercentile(1.0);
+    }
+
+    @JsonIgnore
+    long[] getPushTimeBuckets() {
+        return pushTimeBuckets;
+    }
+
+    private long getPushTimePercentile(double quantile) {
+        long count = getPushTimeCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < PUSH_TIME_BUCKETS; i++) {
+            seen += pushTimeBuckets[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return (1L << (PUSH_TIME_BUCKETS - 1)) - 1;
+    }
+}
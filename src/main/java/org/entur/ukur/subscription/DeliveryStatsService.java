@@ -0,0 +1,94 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.core.IExecutorService;
+import com.hazelcast.core.Member;
+import org.entur.ukur.service.ExtendedHazelcastService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects delivery statistics for a subscription from all nodes in the cluster on demand. Each node keeps its own
+ * statistics in the SubscriptionManager, which is made available for the executor tasks through the hazelcast user
+ * context.
+ */
+@Service
+public class DeliveryStatsService {
+
+    private static final String EXECUTOR_NAME = "ukur.deliveryStats";
+    private static final long TIMEOUT_MS = 5_000;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final HazelcastInstance hazelcast;
+
+    @Autowired
+    public DeliveryStatsService(ExtendedHazelcastService hazelcastService, SubscriptionManager subscriptionManager) {
+        this.hazelcast = hazelcastService.getHazelcastInstance();
+        hazelcast.getUserContext().put(SubscriptionManager.USER_CONTEXT_KEY, subscriptionManager);
+    }
+
+    @SuppressWarnings("unused") //Used from Camel REST api
+    public DeliveryStats getStats(String subscriptionId) {
+        DeliveryStats stats = DeliveryStats.empty(subscriptionId);
+        IExecutorService executor = hazelcast.getExecutorService(EXECUTOR_NAME);
+        Map<Member, Future<DeliveryStats>> futures = executor.submitToAllMembers(new LocalDeliveryStatsTask(subscriptionId));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        for (Map.Entry<Member, Future<DeliveryStats>> entry : futures.entrySet()) {
+            try {
+                long timeout = Math.max(0, deadline - System.currentTimeMillis());
+                stats.merge(entry.getValue().get(timeout, TimeUnit.MILLISECONDS));
+            } catch (Exception e) {
+                logger.warn("Could not get delivery stats for subscription with id {} from {}", subscriptionId, entry.getKey(), e);
+            }
+        }
+        return stats;
+    }
+
+    static class LocalDeliveryStatsTask implements Callable<DeliveryStats>, Serializable, HazelcastInstanceAware {
+
+        private final String subscriptionId;
+        private transient HazelcastInstance hazelcastInstance;
+
+        LocalDeliveryStatsTask(String subscriptionId) {
+            this.subscriptionId = subscriptionId;
+        }
+
+        @Override
+        public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+            this.hazelcastInstance = hazelcastInstance;
+        }
+
+        @Override
+        public DeliveryStats call() {
+            SubscriptionManager subscriptionManager = (SubscriptionManager) hazelcastInstance.getUserContext().get(SubscriptionManager.USER_CONTEXT_KEY);
+            if (subscriptionManager == null) {
+                return DeliveryStats.empty(subscriptionId); //node not fully started
+            }
+            return subscriptionManager.getLocalDeliveryStats(subscriptionId);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Controls how pushes to a single push host are handed to the push threads:
+ * <ul>
+ * <li>A circuit breaker opens after a number of failures in a row, and then rejects pushes without any http call
+ * until a single probe is let through (half open). A successful probe closes the circuit again, a failing probe
+ * keeps it open for twice as long (up to a max). After a number of failed probes in a row the push host is regarded
+ * as gone, and its subscriptions should be removed.</li>
+ * <li>The number of concurrent pushes is limited with AIMD: the limit grows slowly with fast successful responses,
+ * and is halved on failures and slow responses. Pushes above the limit wait in a bounded queue (oldest are dropped
+ * when full) instead of occupying push threads.</li>
+ * </ul>
+ * Pushes that are rejected, dropped or cleared from the queue when the circuit opens are given back to the caller
+ * through their notPushed callback (typically to be retried later), always outside the lock of this endpoint.
+ */
+class PushEndpoint {
+
+    static final int FAILURE_THRESHOLD = 5;
+    static final long INITIAL_OPEN_DURATION_MS = 30_000;
+    static final long MAX_OPEN_DURATION_MS = 10 * 60_000;
+    static final long SLOW_RESPONSE_MS = 2_000;
+    static final double MIN_CONCURRENCY_LIMIT = 1;
+    static final double MAX_CONCURRENCY_LIMIT = 20;
+    static final int MAX_QUEUED = 1000;
+    static final int MAX_FAILED_PROBES = 10;
+    private static final Runnable NOTHING = () -> {};
+
+    enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final String host;
+    private final Executor executor;
+    private final LongSupplier clock;
+    private final ArrayDeque<Push> queued = new ArrayDeque<>();
+    private State state = State.CLOSED;
+    private double concurrencyLimit = MAX_CONCURRENCY_LIMIT / 2;
+    private int inFlight = 0;
+    private int consecutiveFailures = 0;
+    private int failedProbes = 0;
+    private long openDuration = INITIAL_OPEN_DURATION_MS;
+    private long openUntil = 0;
+    private long rejected = 0;
+    private long dropped = 0;
+
+    PushEndpoint(String host, Executor executor) {
+        this(host, executor, System::currentTimeMillis);
+    }
+
+    PushEndpoint(String host, Executor executor, LongSupplier clock) {
+        this.host = host;
+        this.executor = executor;
+        this.clock = clock;
+    }
+
+    /**
+     * As {@link #execute(BooleanSupplier, Runnable)}, for pushes that can be lost (like heartbeats).
+     */
+    void execute(BooleanSupplier push) {
+        execute(push, NOTHING);
+    }
+
+    /**
+     * Runs the push on the executor when the circuit and the concurrency limit allows it. The push must return true
+     * if the endpoint responded properly, and false if it failed or did not respond. If the push is rejected (or
+     * later dropped from the queue) notPushed is run instead.
+     */
+    void execute(BooleanSupplier push, Runnable notPushed) {
+        Runnable lost = submit(new Push(push, notPushed));
+        if (lost != null) {
+            lost.run();
+        }
+    }
+
+    /**
+     * Returns the notPushed callback of a push that is rejected or dropped, or null.
+     */
+    private synchronized Runnable submit(Push push) {
+        if (state == State.OPEN) {
+            if (clock.getAsLong() < openUntil) {
+                rejected++;
+                return push.notPushed;
+            }
+            logger.info("Circuit for push host {} is half open - lets a single push through", host);
+            state = State.HALF_OPEN;
+        }
+        if (inFlight < getAllowedInFlight()) {
+            return start(push) ? null : push.notPushed;
+        } else if (state == State.HALF_OPEN) {
+            rejected++;
+            return push.notPushed;
+        }
+        Runnable lost = null;
+        if (queued.size() >= MAX_QUEUED) {
+            lost = queued.poll().notPushed;
+            dropped++;
+        }
+        queued.add(push);
+        return lost;
+    }
+
+    /**
+     * Returns false if the executor rejects the push.
+     */
+    private boolean start(Push push) {
+        inFlight++;
+        try {
+            executor.execute(() -> {
+                long start = clock.getAsLong();
+                boolean ok = false;
+                try {
+                    ok = push.push.getAsBoolean();
+                } finally {
+                    completed(ok, clock.getAsLong() - start);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight--;
+            rejected++;
+            logger.warn("Could not start push to push host {}", host, e);
+            return false;
+        }
+    }
+
+    void completed(boolean ok, long responseTimeMs) {
+        for (Runnable lost : complete(ok, responseTimeMs)) {
+            lost.run();
+        }
+    }
+
+    private synchronized List<Runnable> complete(boolean ok, long responseTimeMs) {
+        List<Runnable> lost = Collections.emptyList();
+        inFlight--;
+        if (ok) {
+            consecutiveFailures = 0;
+            failedProbes = 0;
+            if (state == State.HALF_OPEN) {
+                logger.info("Push host {} responds again - closes circuit", host);
+                state = State.CLOSED;
+                openDuration = INITIAL_OPEN_DURATION_MS;
+            }
+            if (responseTimeMs > SLOW_RESPONSE_MS) {
+                decreaseConcurrencyLimit();
+            } else {
+                concurrencyLimit = Math.min(MAX_CONCURRENCY_LIMIT, concurrencyLimit + 1 / concurrencyLimit);
+            }
+        } else {
+            consecutiveFailures++;
+            decreaseConcurrencyLimit();
+            if (state == State.HALF_OPEN || consecutiveFailures >= FAILURE_THRESHOLD) {
+                if (state == State.HALF_OPEN) {
+                    openDuration = Math.min(MAX_OPEN_DURATION_MS, openDuration * 2);
+                    failedProbes++;
+                }
+                logger.warn("Opens circuit for push host {} for {} ms after {} failed pushes in a row", host, openDuration, consecutiveFailures);
+                state = State.OPEN;
+                openUntil = clock.getAsLong() + openDuration;
+                rejected += queued.size();
+                lost = new ArrayList<>(queued.size());
+                for (Push push : queued) {
+                    lost.add(push.notPushed);
+                }
+                queued.clear();
+            }
+        }
+        while (state != State.OPEN && !queued.isEmpty() && inFlight < getAllowedInFlight()) {
+            Push push = queued.poll();
+            if (!start(push)) {
+                if (lost.isEmpty()) {
+                    lost = new ArrayList<>();
+                }
+                lost.add(push.notPushed);
+            }
+        }
+        return lost;
+    }
+
+    private void decreaseConcurrencyLimit() {
+        concurrencyLimit = Math.max(MIN_CONCURRENCY_LIMIT, concurrencyLimit / 2);
+    }
+
+    private int getAllowedInFlight() {
+        return state == State.HALF_OPEN ? 1 : (int) concurrencyLimit;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Numeric state for gauges: 0=closed, 1=half open and 2=open.
+     */
+    synchronized int getStateValue() {
+        return state.ordinal();
+    }
+
+    /**
+     * True while the circuit is open and pushes are rejected.
+     */
+    synchronized boolean isRejecting() {
+        return state == State.OPEN && clock.getAsLong() < openUntil;
+    }
+
+    /**
+     * True when the circuit is open after {@link #MAX_FAILED_PROBES} failed probes in a row, and the push host is
+     * regarded as gone.
+     */
+    synchronized boolean isGone() {
+        return state == State.OPEN && failedProbes >= MAX_FAILED_PROBES;
+    }
+
+    synchronized int getConcurrencyLimit() {
+        return (int) concurrencyLimit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getQueued() {
+        return queued.size();
+    }
+
+    synchronized long getRejected() {
+        return rejected;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    private static class Push {
+        private final BooleanSupplier push;
+        private final Runnable notPushed;
+
+        Push(BooleanSupplier push, Runnable notPushed) {
+            this.push = push;
+            this.notPushed = notPushed;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import java.io.Serializable;
+
+/**
+ * A failed push waiting to be retried. Stored in a shared map keyed on subscription and journey/situation, so a newer
+ * message replaces the one waiting.
+ */
+public class PushRetry implements Serializable {
+
+    private final String subscriptionId;
+    private final Serializable siriElement;
+    private final int attempts;
+    private final long nextAttempt;
+
+    PushRetry(String subscriptionId, Serializable siriElement, int attempts, long nextAttempt) {
+        this.subscriptionId = subscriptionId;
+        this.siriElement = siriElement;
+        this.attempts = attempts;
+        this.nextAttempt = nextAttempt;
+    }
+
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    public Serializable getSiriElement() {
+        return siriElement;
+    }
+
+    /**
+     * Number of failed push attempts so far.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Epoch millis when the push should be retried.
+     */
+    public long getNextAttempt() {
+        return nextAttempt;
+    }
+}
@@ -45,6 +45,15 @@ public class SiriXMLSubscriptionHandler {
 
     @SuppressWarnings({"unused", "UnusedReturnValue", "WeakerAccess"}) //Used from Camel REST api
     public Siri handle(Siri request, String codespace) {
+        return handle(request, codespace, null);
+    }
+
+    /**
+     * Pushes are gzipped for subscribers that send their subscription request with an Accept-Encoding header that
+     * includes gzip.
+     */
+    @SuppressWarnings({"unused", "UnusedReturnValue", "WeakerAccess"}) //Used from Camel REST api
+    public Siri handle(Siri request, String codespace, String acceptEncoding) {
         logger.info("Siri subscription request received with codespace={}", codespace);
         if (request.getSubscriptionRequest() != null) {
             SubscriptionRequest subscriptionRequest = request.getSubscriptionRequest();
@@ -52,6 +61,7 @@ public class SiriXMLSubscriptionHandler {
             String address = subscriptionRequest.getAddress();
             SubscriptionContextStructure subscriptionContext = subscriptionRequest.getSubscriptionContext();
             Duration heartbeatInterval = subscriptionContext != null ? subscriptionContext.getHeartbeatInterval() : null;
+            boolean gzip = StringUtils.containsIgnoreCase(acceptEncoding, "gzip");
 
             //SX subscription part
             int noSxSubscriptionRequests = subscriptionRequest.getSituationExchangeSubscriptionRequests().size();
@@ -62,7 +72,7 @@ public class SiriXMLSubscriptionHandler {
                     ZonedDateTime initialTerminationTime = sxSubscriptionReq.getInitialTerminationTime();
                     SituationExchangeRequestStructure sxRequest = sxSubscriptionReq.getSituationExchangeRequest();
                     Set<String> lineRefs = sxRequest.getLineReves().stream().map(SiriObjectHelper::getStringValue).collect(Collectors.toSet());
-                    return addOrReplaceSubscription(requestorRef, subscriptionIdentifier, initialTerminationTime, heartbeatInterval, codespace, lineRefs, address, SubscriptionTypeEnum.SX);
+                    return addOrReplaceSubscription(requestorRef, subscriptionIdentifier, initialTerminationTime, heartbeatInterval, codespace, lineRefs, address, SubscriptionTypeEnum.SX, gzip);
 
                 } else {
                     return generateSubscriptionResponse(false, requestorRef,"Only one SituationExchangeSubscriptionRequest is supported");
@@ -82,7 +92,7 @@ public class SiriXMLSubscriptionHandler {
                     if (lines != null) {
                         lineRefs = lines.getLineDirections().stream().map(ld -> getStringValue(ld.getLineRef())).collect(Collectors.toSet());
                     }
-                    return addOrReplaceSubscription(requestorRef, subscriptionIdentifier, initialTerminationTime, heartbeatInterval, codespace, lineRefs, address, SubscriptionTypeEnum.ET);
+                    return addOrReplaceSubscription(requestorRef, subscriptionIdentifier, initialTerminationTime, heartbeatInterval, codespace, lineRefs, address, SubscriptionTypeEnum.ET, gzip);
 
                 } else {
                     return generateSubscriptionResponse(false, requestorRef,"Only one EstimatedTimetableSubscriptionRequest is supported");
@@ -117,9 +127,9 @@ public class SiriXMLSubscriptionHandler {
         }
     }
 
-    private Siri addOrReplaceSubscription(String requestorRef, String subscriptionIdentifier, ZonedDateTime initialTerminationTime, Duration heartbeatInterval, String codespace, Set<String> lineRefs, String address, SubscriptionTypeEnum type) {
-        logger.info("New {} subscription (siri XML): requestorRef={}, subscriptionIdentifier={}, initialTerminationTime={}, heartbeatInterval={}, codespace={}, lines={}, address={}",
-                type, requestorRef, subscriptionIdentifier, initialTerminationTime, heartbeatInterval, codespace, lineRefs, address);
+    private Siri addOrReplaceSubscription(String requestorRef, String subscriptionIdentifier, ZonedDateTime initialTerminationTime, Duration heartbeatInterval, String codespace, Set<String> lineRefs, String address, SubscriptionTypeEnum type, boolean gzip) {
+        logger.info("New {} subscription (siri XML): requestorRef={}, subscriptionIdentifier={}, initialTerminationTime={}, heartbeatInterval={}, codespace={}, lines={}, address={}, gzip={}",
+                type, requestorRef, subscriptionIdentifier, initialTerminationTime, heartbeatInterval, codespace, lineRefs, address, gzip);
 
         StringBuilder error = new StringBuilder();
         if (StringUtils.isBlank(requestorRef)) {
@@ -143,6 +153,7 @@ public class SiriXMLSubscriptionHandler {
 
         Subscription subscription = new Subscription();
         subscription.setUseSiriSubscriptionModel(true);
+        subscription.setGzipPush(gzip);
         subscription.setPushAddress(address);
         String name = Subscription.getName(requestorRef, subscriptionIdentifier);
         subscription.setName(name); //(mis-)use name as a second identifier
@@ -0,0 +1,368 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.lang3.StringUtils;
+import uk.org.siri.siri20.*;
+
+import java.io.Serializable;
+import java.util.*;
+
+import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
+
+/**
+ * The affects of a PtSituationElement indexed once per message: affected stop places, stop points in affected routes
+ * and affected lines in networks are looked up on their refs, and affected journeys on their line. The part of the
+ * situation a subscription should get is then found with lookups on its stops and lines, and only that part is copied
+ * into the pushed message - instead of copying the whole situation and walking all the affects for each subscription.
+ * <br>
+ * The index owns a dismantled copy of the situation (journeys without routes, routes without stop points and networks
+ * without lines) that is never changed after it is created, so it can be used from several threads.
+ */
+class SituationAffectsIndex {
+
+    private final PtSituationElement base;
+    private final boolean hasAffects;
+    private boolean hasStopPlaces;
+    private boolean hasNetworks;
+    private boolean hasVehicleJourneys;
+    private final List<AffectedStopPlaceStructure> stopPlaces = new ArrayList<>();
+    private final Map<String, List<Integer>> stopPlacesByRef = new HashMap<>();
+    private final List<IndexedNetwork> networks = new ArrayList<>();
+    private final Map<String, List<int[]>> linesByRef = new HashMap<>();
+    private final List<IndexedJourney> journeys = new ArrayList<>();
+    private final Map<String, List<Integer>> journeysByLine = new HashMap<>();
+    private final List<Integer> journeysOnAnyLine = new ArrayList<>();
+    private final List<Integer> journeysWithUnfilteredRoutes = new ArrayList<>();
+    private final Map<String, List<int[]>> stopPointsByRef = new HashMap<>();
+
+    SituationAffectsIndex(PtSituationElement ptSituationElement) {
+        base = SerializationUtils.clone(ptSituationElement);
+        AffectsScopeStructure affects = base.getAffects();
+        base.setAffects(null);
+        hasAffects = affects != null;
+        if (hasAffects) {
+            //only stop places, networks and vehicle journeys are covered by the norwegian profile, the rest is not pushed
+            indexStopPlaces(affects.getStopPlaces());
+            indexNetworks(affects.getNetworks());
+            indexJourneys(affects.getVehicleJourneys());
+        }
+    }
+
+    private void indexStopPlaces(AffectsScopeStructure.StopPlaces affectedStopPlaces) {
+        hasStopPlaces = affectedStopPlaces != null;
+        if (hasStopPlaces) {
+            for (AffectedStopPlaceStructure stopPlace : affectedStopPlaces.getAffectedStopPlaces()) {
+                add(stopPlacesByRef, getStringValue(stopPlace.getStopPlaceRef()), stopPlaces.size());
+                stopPlaces.add(stopPlace);
+            }
+        }
+    }
+
+    private void indexNetworks(AffectsScopeStructure.Networks affectedNetworks) {
+        hasNetworks = affectedNetworks != null;
+        if (hasNetworks) {
+            for (AffectsScopeStructure.Networks.AffectedNetwork network : affectedNetworks.getAffectedNetworks()) {
+                IndexedNetwork indexedNetwork = new IndexedNetwork(network);
+                for (int i = 0; i < indexedNetwork.lines.size(); i++) {
+                    add(linesByRef, getStringValue(indexedNetwork.lines.get(i).getLineRef()), new int[]{networks.size(), i});
+                }
+                networks.add(indexedNetwork);
+            }
+        }
+    }
+
+    private void indexJourneys(AffectsScopeStructure.VehicleJourneys affectedJourneys) {
+        hasVehicleJourneys = affectedJourneys != null;
+        if (hasVehicleJourneys) {
+            for (AffectedVehicleJourneyStructure journey : affectedJourneys.getAffectedVehicleJourneies()) {
+                int journeyIndex = journeys.size();
+                IndexedJourney indexedJourney = new IndexedJourney(journey);
+                if (StringUtils.isBlank(indexedJourney.lineRef)) {
+                    journeysOnAnyLine.add(journeyIndex);
+                } else {
+                    add(journeysByLine, indexedJourney.lineRef, journeyIndex);
+                }
+                for (int r = 0; r < indexedJourney.routes.size(); r++) {
+                    IndexedRoute route = indexedJourney.routes.get(r);
+                    if (route.stopPoints != null) {
+                        for (int s = 0; s < route.stopPoints.size(); s++) {
+                            Serializable stop = route.stopPoints.get(s);
+                            if (stop instanceof AffectedStopPointStructure) {
+                                add(stopPointsByRef, getStringValue(((AffectedStopPointStructure) stop).getStopPointRef()), new int[]{journeyIndex, r, s});
+                            }
+                        }
+                    }
+                }
+                if (!indexedJourney.unfilteredRoutes.isEmpty()) {
+                    journeysWithUnfilteredRoutes.add(journeyIndex);
+                }
+                journeys.add(indexedJourney);
+            }
+        }
+    }
+
+    private static <T> void add(Map<String, List<T>> index, String ref, T position) {
+        if (ref != null) {
+            index.computeIfAbsent(ref, k -> new ArrayList<>()).add(position);
+        }
+    }
+
+    /**
+     * Returns a copy of the situation with only the affects the subscription should get, or null if nothing is left.
+     * Journeys are kept if they are on a subscribed line (or the subscription has no lines), and for subscriptions
+     * with stops only with the subscribed stops in their routes. Subscriptions on codespace only get all affects.
+     */
+    PtSituationElement project(Subscription subscription, Set<String> subscribedStops) {
+        if (!hasAffects) {
+            return null;
+        }
+        boolean all = !subscription.getCodespaces().isEmpty() && subscription.hasNoStops() && subscription.getLineRefs().isEmpty();
+        boolean withStops = !subscription.hasNoStops();
+
+        List<Integer> selectedStopPlaces = null;
+        if (all) {
+            selectedStopPlaces = range(stopPlaces.size());
+        } else if (withStops) {
+            selectedStopPlaces = new ArrayList<>();
+            for (String stop : subscribedStops) {
+                selectedStopPlaces.addAll(stopPlacesByRef.getOrDefault(stop, Collections.emptyList()));
+            }
+            Collections.sort(selectedStopPlaces);
+        }
+
+        SortedMap<Integer, List<Integer>> selectedLines = new TreeMap<>();
+        if (all) {
+            for (int n = 0; n < networks.size(); n++) {
+                selectedLines.put(n, range(networks.get(n).lines.size()));
+            }
+        } else {
+            for (String lineRef : subscription.getLineRefs()) {
+                for (int[] position : linesByRef.getOrDefault(lineRef, Collections.emptyList())) {
+                    selectedLines.computeIfAbsent(position[0], k -> new ArrayList<>()).add(position[1]);
+                }
+            }
+            selectedLines.values().forEach(Collections::sort);
+        }
+
+        //route index -> selected stop points in the route (null means all of them):
+        SortedMap<Integer, SortedMap<Integer, BitSet>> selectedJourneys = new TreeMap<>();
+        if (all) {
+            for (int j = 0; j < journeys.size(); j++) {
+                selectedJourneys.put(j, journeys.get(j).getAllRoutes());
+            }
+        } else if (withStops) {
+            for (String stop : subscribedStops) {
+                for (int[] position : stopPointsByRef.getOrDefault(stop, Collections.emptyList())) {
+                    if (isSubscribed(subscription, journeys.get(position[0]))) {
+                        selectedJourneys.computeIfAbsent(position[0], k -> new TreeMap<>())
+                                .computeIfAbsent(position[1], k -> new BitSet())
+                                .set(position[2]);
+                    }
+                }
+            }
+            for (int j : journeysWithUnfilteredRoutes) {
+                IndexedJourney journey = journeys.get(j);
+                if (isSubscribed(subscription, journey)) {
+                    SortedMap<Integer, BitSet> routes = selectedJourneys.computeIfAbsent(j, k -> new TreeMap<>());
+                    for (int r : journey.unfilteredRoutes) {
+                        routes.computeIfAbsent(r, k -> new BitSet());
+                    }
+                }
+            }
+        } else {
+            Collection<Integer> candidates;
+            if (subscription.getLineRefs().isEmpty()) {
+                candidates = range(journeys.size());
+            } else {
+                candidates = new TreeSet<>(journeysOnAnyLine);
+                for (String lineRef : subscription.getLineRefs()) {
+                    candidates.addAll(journeysByLine.getOrDefault(lineRef, Collections.emptyList()));
+                }
+            }
+            for (int j : candidates) {
+                IndexedJourney journey = journeys.get(j);
+                if (!journey.routes.isEmpty()) {
+                    selectedJourneys.put(j, journey.getAllRoutes());
+                }
+            }
+        }
+
+        boolean noStopPlaces = selectedStopPlaces == null || selectedStopPlaces.isEmpty();
+        if (noStopPlaces && selectedLines.isEmpty() && selectedJourneys.isEmpty()) {
+            return null;
+        }
+        return copy(selectedStopPlaces, selectedLines, selectedJourneys);
+    }
+
+    private boolean isSubscribed(Subscription subscription, IndexedJourney journey) {
+        return subscription.getLineRefs().isEmpty() || StringUtils.isBlank(journey.lineRef) || subscription.getLineRefs().contains(journey.lineRef);
+    }
+
+    /**
+     * Copies the selected parts in one go (a single serialization) and puts the copies together to a new situation.
+     */
+    private PtSituationElement copy(List<Integer> selectedStopPlaces, SortedMap<Integer, List<Integer>> selectedLines,
+                                    SortedMap<Integer, SortedMap<Integer, BitSet>> selectedJourneys) {
+        ArrayList<Serializable> parts = new ArrayList<>();
+        parts.add(base);
+        if (selectedStopPlaces != null) {
+            for (int i : selectedStopPlaces) {
+                parts.add(stopPlaces.get(i));
+            }
+        }
+        for (Map.Entry<Integer, List<Integer>> entry : selectedLines.entrySet()) {
+            IndexedNetwork network = networks.get(entry.getKey());
+            parts.add(network.network);
+            for (int i : entry.getValue()) {
+                parts.add(network.lines.get(i));
+            }
+        }
+        for (Map.Entry<Integer, SortedMap<Integer, BitSet>> entry : selectedJourneys.entrySet()) {
+            IndexedJourney journey = journeys.get(entry.getKey());
+            parts.add(journey.journey);
+            for (Map.Entry<Integer, BitSet> routeEntry : entry.getValue().entrySet()) {
+                IndexedRoute route = journey.routes.get(routeEntry.getKey());
+                parts.add(route.route);
+                if (route.stopPoints != null) {
+                    for (int i = 0; i < route.stopPoints.size(); i++) {
+                        if (isSelected(route.stopPoints.get(i), routeEntry.getValue(), i)) {
+                            parts.add(route.stopPoints.get(i));
+                        }
+                    }
+                }
+            }
+        }
+
+        //puts the copies together, in the same order as they were added above:
+        Iterator<Serializable> copies = SerializationUtils.clone(parts).iterator();
+        PtSituationElement situation = (PtSituationElement) copies.next();
+        AffectsScopeStructure affects = new AffectsScopeStructure();
+        if (selectedStopPlaces != null && hasStopPlaces) {
+            AffectsScopeStructure.StopPlaces projectedStopPlaces = new AffectsScopeStructure.StopPlaces();
+            for (int ignored : selectedStopPlaces) {
+                projectedStopPlaces.getAffectedStopPlaces().add((AffectedStopPlaceStructure) copies.next());
+            }
+            affects.setStopPlaces(projectedStopPlaces);
+        }
+        if (hasNetworks) {
+            AffectsScopeStructure.Networks projectedNetworks = new AffectsScopeStructure.Networks();
+            for (List<Integer> lines : selectedLines.values()) {
+                AffectsScopeStructure.Networks.AffectedNetwork network = (AffectsScopeStructure.Networks.AffectedNetwork) copies.next();
+                for (int ignored : lines) {
+                    network.getAffectedLines().add((AffectedLineStructure) copies.next());
+                }
+                projectedNetworks.getAffectedNetworks().add(network);
+            }
+            affects.setNetworks(projectedNetworks);
+        }
+        if (hasVehicleJourneys) {
+            AffectsScopeStructure.VehicleJourneys vehicleJourneys = new AffectsScopeStructure.VehicleJourneys();
+            for (Map.Entry<Integer, SortedMap<Integer, BitSet>> entry : selectedJourneys.entrySet()) {
+                IndexedJourney indexedJourney = journeys.get(entry.getKey());
+                AffectedVehicleJourneyStructure journey = (AffectedVehicleJourneyStructure) copies.next();
+                for (Map.Entry<Integer, BitSet> routeEntry : entry.getValue().entrySet()) {
+                    IndexedRoute indexedRoute = indexedJourney.routes.get(routeEntry.getKey());
+                    AffectedRouteStructure route = (AffectedRouteStructure) copies.next();
+                    if (indexedRoute.stopPoints != null) {
+                        List<Serializable> stopPoints = route.getStopPoints().getAffectedStopPointsAndLinkProjectionToNextStopPoints();
+                        for (int i = 0; i < indexedRoute.stopPoints.size(); i++) {
+                            if (isSelected(indexedRoute.stopPoints.get(i), routeEntry.getValue(), i)) {
+                                stopPoints.add(copies.next());
+                            }
+                        }
+                    }
+                    journey.getRoutes().add(route);
+                }
+                vehicleJourneys.getAffectedVehicleJourneies().add(journey);
+            }
+            affects.setVehicleJourneys(vehicleJourneys);
+        }
+        situation.setAffects(affects);
+        return situation;
+    }
+
+    private boolean isSelected(Serializable stopPoint, BitSet selected, int i) {
+        //link projections are kept as is, only stop points are filtered
+        return selected == null || !(stopPoint instanceof AffectedStopPointStructure) || selected.get(i);
+    }
+
+    private static List<Integer> range(int size) {
+        List<Integer> range = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            range.add(i);
+        }
+        return range;
+    }
+
+    private static class IndexedNetwork {
+        private final AffectsScopeStructure.Networks.AffectedNetwork network;
+        private final List<AffectedLineStructure> lines;
+
+        IndexedNetwork(AffectsScopeStructure.Networks.AffectedNetwork network) {
+            this.lines = new ArrayList<>(network.getAffectedLines());
+            network.getAffectedLines().clear();
+            this.network = network;
+        }
+    }
+
+    private static class IndexedJourney {
+        private final AffectedVehicleJourneyStructure journey;
+        private final String lineRef;
+        private final List<IndexedRoute> routes = new ArrayList<>();
+        //routes kept for subscriptions with stops even if none of their stop points are subscribed upon: those
+        //without stop points at all, and those with link projections (that are not filtered)
+        private final List<Integer> unfilteredRoutes = new ArrayList<>();
+
+        IndexedJourney(AffectedVehicleJourneyStructure journey) {
+            this.lineRef = journey.getLineRef() == null ? null : journey.getLineRef().getValue();
+            for (AffectedRouteStructure route : journey.getRoutes()) {
+                IndexedRoute indexedRoute = new IndexedRoute(route);
+                if (indexedRoute.stopPoints == null || indexedRoute.stopPoints.stream().anyMatch(s -> !(s instanceof AffectedStopPointStructure))) {
+                    unfilteredRoutes.add(routes.size());
+                }
+                routes.add(indexedRoute);
+            }
+            journey.getRoutes().clear();
+            this.journey = journey;
+        }
+
+        SortedMap<Integer, BitSet> getAllRoutes() {
+            SortedMap<Integer, BitSet> result = new TreeMap<>();
+            for (int r = 0; r < routes.size(); r++) {
+                result.put(r, null);
+            }
+            return result;
+        }
+    }
+
+    private static class IndexedRoute {
+        private final AffectedRouteStructure route;
+        private final List<Serializable> stopPoints;
+
+        IndexedRoute(AffectedRouteStructure route) {
+            if (route.getStopPoints() == null) {
+                this.stopPoints = null;
+            } else {
+                List<Serializable> affectedStopPoints = route.getStopPoints().getAffectedStopPointsAndLinkProjectionToNextStopPoints();
+                this.stopPoints = new ArrayList<>(affectedStopPoints);
+                affectedStopPoints.clear();
+            }
+            this.route = route;
+        }
+    }
+}
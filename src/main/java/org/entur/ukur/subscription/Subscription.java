@@ -23,10 +23,12 @@ import javax.xml.datatype.Duration;
 import java.io.Serializable;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Subscription implements Serializable {
 
     private static final String SIRI_NAME_PREFIX = "SIRI-XML";
+    private static final AtomicLong STOPS_REVISIONS = new AtomicLong();
     private String id;
     private String name;
     private String pushAddress;
@@ -36,11 +38,13 @@ public class Subscription implements Serializable {
     private HashSet<String> codespaces = new HashSet<>();
     private SubscriptionTypeEnum type = SubscriptionTypeEnum.ALL;
     private Boolean useSiriSubscriptionModel;
+    private Boolean gzipPush;
     @JsonIgnore
     private long failedPushCounter = 0;
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSSZ")
     private ZonedDateTime initialTerminationTime;
     private Duration heartbeatInterval;
+    private transient volatile long stopsRevision = STOPS_REVISIONS.incrementAndGet();
 
     static String getName(String requestorRef, String subscriptionIdentifier) {
         return SIRI_NAME_PREFIX+"-REF("+requestorRef+")-ID("+subscriptionIdentifier+")";
@@ -66,14 +70,17 @@ public class Subscription implements Serializable {
     public void setFromStopPlaces(Collection<String> fromStopPoints) {
         this.fromStopPoints.clear();
         this.fromStopPoints.addAll(fromStopPoints);
+        stopsChanged();
     }
 
     public void addFromStopPoint(String stopPointRef) {
         fromStopPoints.add(stopPointRef);
+        stopsChanged();
     }
 
     public void removeFromStopPoint(String stopPointRef) {
         fromStopPoints.remove(stopPointRef);
+        stopsChanged();
     }
 
     public Set<String> getToStopPoints() {
@@ -83,14 +90,36 @@ public class Subscription implements Serializable {
     public void setToStopPlaces(Collection<String> toStopPoints) {
         this.toStopPoints.clear();
         this.toStopPoints.addAll(toStopPoints);
+        stopsChanged();
     }
 
     public void addToStopPoint(String stopPointRef) {
         toStopPoints.add(stopPointRef);
+        stopsChanged();
     }
 
     public void removeToStopPoint(String stopPointRef) {
         toStopPoints.remove(stopPointRef);
+        stopsChanged();
+    }
+
+    /**
+     * Changes each time the from or to stops are changed, so results derived from the stops can be cached per
+     * revision. Only unique within this node (it is not serialized).
+     */
+    @JsonIgnore
+    public long getStopsRevision() {
+        long revision = stopsRevision;
+        if (revision == 0) {
+            //deserialized
+            stopsChanged();
+            revision = stopsRevision;
+        }
+        return revision;
+    }
+
+    private void stopsChanged() {
+        stopsRevision = STOPS_REVISIONS.incrementAndGet();
     }
 
     public Set<String> getLineRefs() {
@@ -195,6 +224,7 @@ public class Subscription implements Serializable {
     void normalizeAndRemoveIgnoredStops() {
         fromStopPoints = normalizeAndRemoveIgnoredStops(fromStopPoints);
         toStopPoints = normalizeAndRemoveIgnoredStops(toStopPoints);
+        stopsChanged();
     }
 
     private HashSet<String> normalizeAndRemoveIgnoredStops(HashSet<String> set) {
@@ -224,6 +254,17 @@ public class Subscription implements Serializable {
         this.useSiriSubscriptionModel = useSiriSubscriptionModel;
     }
 
+    /**
+     * If true, pushes are sent gzip compressed (with Content-Encoding: gzip).
+     */
+    public boolean isGzipPush() {
+        return Boolean.TRUE.equals(gzipPush);
+    }
+
+    public void setGzipPush(Boolean gzipPush) {
+        this.gzipPush = gzipPush;
+    }
+
     public void setInitialTerminationTime(ZonedDateTime initialTerminationTime) {
         this.initialTerminationTime = initialTerminationTime;
     }
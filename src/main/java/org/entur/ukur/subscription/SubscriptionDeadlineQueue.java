@@ -0,0 +1,180 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps the next heartbeat and the termination time for subscriptions in a priority queue, so each heartbeat tick
+ * only has to look at the subscriptions that actually are due. When the node local subscription cache has changed,
+ * only the deadlines for added, changed and removed subscriptions are updated. Replaced deadlines are only marked as
+ * cancelled (removing them from the queue is a linear scan), and are skipped when polled.
+ * Not thread safe: it is owned by the SubscriptionManager of a node, which handles heartbeats and termination.
+ */
+class SubscriptionDeadlineQueue {
+
+    enum DeadlineType {
+        heartbeat,
+        termination
+    }
+
+    private final PriorityQueue<Deadline> queue = new PriorityQueue<>(Comparator.comparingLong(Deadline::getDue));
+    private final HashMap<String, Subscription> subscriptions = new HashMap<>();
+    private final HashMap<String, Deadline> heartbeats = new HashMap<>();
+    private final HashMap<String, Deadline> terminations = new HashMap<>();
+    private int cancelled = 0;
+    private long subscriptionCacheVersion = -1;
+
+    boolean isOutdated(long currentSubscriptionCacheVersion) {
+        return subscriptionCacheVersion != currentSubscriptionCacheVersion;
+    }
+
+    /**
+     * Brings the deadlines in line with the given subscriptions. Subscriptions that are the same instance as last time
+     * are left untouched, deadlines for subscriptions no longer present are removed. The due time for heartbeats
+     * already in the queue are kept if the interval is unchanged, only for the others is firstHeartbeat asked.
+     */
+    void update(Collection<Subscription> currentSubscriptions, long subscriptionCacheVersion, ToLongFunction<Subscription> firstHeartbeat) {
+        HashSet<String> removed = new HashSet<>(subscriptions.keySet());
+        for (Subscription subscription : currentSubscriptions) {
+            removed.remove(subscription.getId());
+            Subscription known = subscriptions.put(subscription.getId(), subscription);
+            if (known != subscription) {
+                updateDeadlines(subscription, firstHeartbeat);
+            }
+        }
+        for (String subscriptionId : removed) {
+            subscriptions.remove(subscriptionId);
+            cancel(heartbeats.remove(subscriptionId));
+            cancel(terminations.remove(subscriptionId));
+        }
+        compactIfMostlyCancelled();
+        this.subscriptionCacheVersion = subscriptionCacheVersion;
+    }
+
+    private void updateDeadlines(Subscription subscription, ToLongFunction<Subscription> firstHeartbeat) {
+        String id = subscription.getId();
+        Deadline termination = terminations.get(id);
+        if (subscription.getInitialTerminationTime() == null) {
+            cancel(terminations.remove(id));
+        } else {
+            long due = subscription.getInitialTerminationTime().toInstant().toEpochMilli();
+            if (termination != null && termination.getDue() == due) {
+                termination.subscription = subscription;
+            } else {
+                addTermination(new Deadline(DeadlineType.termination, subscription, due));
+            }
+        }
+        Deadline heartbeat = heartbeats.get(id);
+        if (subscription.getHeartbeatInterval() == null) {
+            cancel(heartbeats.remove(id));
+        } else if (heartbeat != null && subscription.getHeartbeatInterval().equals(heartbeat.getSubscription().getHeartbeatInterval())) {
+            heartbeat.subscription = subscription;
+        } else {
+            scheduleHeartbeat(subscription, firstHeartbeat.applyAsLong(subscription));
+        }
+    }
+
+    private void addTermination(Deadline deadline) {
+        cancel(terminations.put(deadline.getSubscription().getId(), deadline));
+        queue.add(deadline);
+    }
+
+    private void cancel(Deadline deadline) {
+        if (deadline != null) {
+            deadline.cancelled = true;
+            cancelled++;
+        }
+    }
+
+    private void compactIfMostlyCancelled() {
+        if (cancelled > 1000 && cancelled > queue.size() / 2) {
+            queue.removeIf(deadline -> deadline.cancelled);
+            cancelled = 0;
+        }
+    }
+
+    /**
+     * Removes and returns all deadlines with due time before the given time, in due order.
+     */
+    List<Deadline> pollDue(long epochNow) {
+        ArrayList<Deadline> due = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().getDue() < epochNow) {
+            Deadline deadline = queue.poll();
+            if (deadline.cancelled) {
+                cancelled--;
+                continue;
+            }
+            if (deadline.getType() == DeadlineType.heartbeat) {
+                heartbeats.remove(deadline.getSubscription().getId());
+            } else {
+                terminations.remove(deadline.getSubscription().getId());
+            }
+            due.add(deadline);
+        }
+        return due;
+    }
+
+    void scheduleHeartbeat(Subscription subscription, long due) {
+        Deadline deadline = new Deadline(DeadlineType.heartbeat, subscription, due);
+        cancel(heartbeats.put(subscription.getId(), deadline));
+        queue.add(deadline);
+    }
+
+    /**
+     * Puts a polled deadline back in the queue unchanged, so it is polled again by the next tick.
+     */
+    void requeue(Deadline deadline) {
+        if (deadline.getType() == DeadlineType.heartbeat) {
+            scheduleHeartbeat(deadline.getSubscription(), deadline.getDue());
+        } else {
+            addTermination(deadline);
+        }
+    }
+
+    /**
+     * The number of deadlines (not counting cancelled ones still in the queue).
+     */
+    int size() {
+        return heartbeats.size() + terminations.size();
+    }
+
+    static class Deadline {
+        private final DeadlineType type;
+        private final long due;
+        private Subscription subscription;
+        private boolean cancelled = false;
+
+        Deadline(DeadlineType type, Subscription subscription, long due) {
+            this.type = type;
+            this.subscription = subscription;
+            this.due = due;
+        }
+
+        DeadlineType getType() {
+            return type;
+        }
+
+        Subscription getSubscription() {
+            return subscription;
+        }
+
+        long getDue() {
+            return due;
+        }
+    }
+}
@@ -16,9 +16,14 @@
 package org.entur.ukur.subscription;
 
 import com.codahale.metrics.Timer;
+import com.hazelcast.core.IMap;
+import com.hazelcast.query.Predicates;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.entur.ukur.service.DataStorageService;
+import org.entur.ukur.service.ExtendedHazelcastService;
+import org.entur.ukur.service.LatencyTrace;
 import org.entur.ukur.service.MetricsService;
 import org.entur.ukur.service.QuayAndStopPlaceMappingService;
 import org.entur.ukur.xml.SiriMarshaller;
@@ -27,24 +32,45 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import uk.org.siri.siri20.*;
 
+import javax.annotation.PreDestroy;
 import javax.xml.datatype.Duration;
 import java.io.DataOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
 
+import static org.entur.ukur.service.MetricsService.GAUGE_FAN_OUT_QUEUE;
+import static org.entur.ukur.service.MetricsService.GAUGE_PUSH_ENDPOINT_PREFIX;
 import static org.entur.ukur.service.MetricsService.GAUGE_PUSH_QUEUE;
+import static org.entur.ukur.service.MetricsService.GAUGE_PUSH_RETRIES;
+import static org.entur.ukur.service.MetricsService.STAGE_PUSH;
+import static org.entur.ukur.service.MetricsService.STAGE_PUSH_QUEUE;
+import static org.entur.ukur.service.MetricsService.STAGE_TOTAL;
 import static org.entur.ukur.subscription.SiriXMLSubscriptionHandler.SIRI_VERSION;
 import static org.entur.ukur.xml.SiriObjectHelper.getBigIntegerValue;
 import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
@@ -52,6 +78,18 @@ import static org.entur.ukur.xml.SiriObjectHelper.getStringValue;
 @Service
 public class SubscriptionManager {
 
+    static final String USER_CONTEXT_KEY = SubscriptionManager.class.getName(); //for executor tasks in the hazelcast user context
+    private static final int PUSH_CONNECT_TIMEOUT_MS = 5_000;
+    private static final int PUSH_READ_TIMEOUT_MS = 15_000;
+    private static final int MAX_PUSH_ATTEMPTS = 6;
+    private static final int MAX_QUEUED_RETRIES = 10_000; //per node
+    private static final String UNIDENTIFIED_RETRY_KEY = "_unidentified_";
+    private static final long INITIAL_RETRY_BACKOFF_MS = 30_000;
+    private static final long MAX_RETRY_BACKOFF_MS = 10 * 60_000;
+    private static final int MAX_RETRIES_IN_FLIGHT = 5; //per node, so retries don't crowd out fresh messages
+    private static final int FAN_OUT_PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int FAN_OUT_CHUNK_SIZE = 25;
+
     private DataStorageService dataStorageService;
     private SiriMarshaller siriMarshaller;
     private MetricsService metricsService;
@@ -60,8 +98,25 @@ public class SubscriptionManager {
     private String hostname;
     private Logger logger = LoggerFactory.getLogger(this.getClass());
     private ThreadPoolExecutor pushExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(50);
+    private final AtomicInteger retriesInFlight = new AtomicInteger();
+    private Map<String, PushRetry> pushRetries;
+    private final AtomicInteger queuedRetries = new AtomicInteger(); //entries in the part of pushRetries owned by this node
+    private final ConcurrentHashMap<String, PushBatch> pushBatches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService batchFlusher = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor();
+    @Value("${ukur.push.batch.maxSize:1}")
+    int pushBatchMaxSize = 1;
+    @Value("${ukur.push.batch.lingerMs:500}")
+    long pushBatchLingerMs = 500;
+    @Value("${ukur.push.fanOut.parallelThreshold:100}")
+    int parallelFanOutThreshold = 100;
+    private final ForkJoinPool fanOutPool = new ForkJoinPool(FAN_OUT_PARALLELISM);
     private Map<String, Long> subscriptionNextHeartbeat;
-    private ZonedDateTime nextTerminatedCheck = null;
+    private final SubscriptionDeadlineQueue deadlineQueue = new SubscriptionDeadlineQueue();
+    private final ConcurrentHashMap<String, PushEndpoint> pushEndpoints = new ConcurrentHashMap<>();
+    LongSupplier pushEndpointClock = System::currentTimeMillis;
+    private final ConcurrentHashMap<String, DeliveryCounters> deliveryCounters = new ConcurrentHashMap<>();
+    private SubscriptionOwnership subscriptionOwnership; //null: pushes for all subscriptions from this node
 
     @Autowired
     public SubscriptionManager(DataStorageService dataStorageService,
@@ -69,12 +124,14 @@ public class SubscriptionManager {
                                MetricsService metricsService,
                                @Qualifier("alreadySentCache") Map<Object, Long> alreadySentCache,
                                @Qualifier("heartbeats") Map<String, Long> subscriptionNextHeartbeat,
+                               @Qualifier("pushRetries") Map<String, PushRetry> pushRetries,
                                QuayAndStopPlaceMappingService quayAndStopPlaceMappingService) {
         this.dataStorageService = dataStorageService;
         this.siriMarshaller = siriMarshaller;
         this.metricsService = metricsService;
         this.alreadySentCache = alreadySentCache;
         this.subscriptionNextHeartbeat = subscriptionNextHeartbeat;
+        this.pushRetries = pushRetries;
         this.quayAndStopPlaceMappingService = quayAndStopPlaceMappingService;
         try {
             hostname = InetAddress.getLocalHost().getHostName();
@@ -83,10 +140,26 @@ public class SubscriptionManager {
             hostname = "random_"+new Random().nextInt(10000); //want to separate message producing nodes from each other easy in the logs, this will work as fallback
             logger.error("Cant resolve hostname - use random name '{}' instead to differentiate nodes", hostname, e);
         }
+        dataStorageService.addSubscriptionRemovedListener(deliveryCounters::remove);
         metricsService.registerGauge(GAUGE_PUSH_QUEUE, () -> pushExecutor.getQueue().size());
+        metricsService.registerGauge(GAUGE_PUSH_RETRIES, queuedRetries::get);
+        metricsService.registerGauge(GAUGE_FAN_OUT_QUEUE, fanOutPool::getQueuedSubmissionCount);
+        retryScheduler.scheduleWithFixedDelay(this::retryFailedPushes, 1, 1, TimeUnit.SECONDS);
         logger.info("There are at startup {} subscriptions", dataStorageService.getNumberOfSubscriptions());
     }
 
+    /**
+     * Stops the push and fan-out threads. Pushes in progress are dropped, retries still queued in pushRetries
+     * are left for the other nodes.
+     */
+    @PreDestroy
+    public void shutdown() {
+        retryScheduler.shutdownNow();
+        batchFlusher.shutdownNow();
+        fanOutPool.shutdownNow();
+        pushExecutor.shutdownNow();
+    }
+
     public int getActivePushThreads() {
         return pushExecutor.getActiveCount();
     }
@@ -129,182 +202,77 @@ public class SubscriptionManager {
     }
 
     public void notifySubscriptionsOnStops(HashSet<Subscription> subscriptions, EstimatedVehicleJourney estimatedVehicleJourney) {
-        for (Subscription subscription : subscriptions) {
-            Set<String> subscribedStops = getAllStops(subscription);
-            EstimatedVehicleJourney clone = clone(estimatedVehicleJourney);
-            //Removes all other estimated calls than those subscribed upon:
-            if (clone.getEstimatedCalls() != null && clone.getEstimatedCalls().getEstimatedCalls() != null) {
-                Iterator<EstimatedCall> iterator = clone.getEstimatedCalls().getEstimatedCalls().iterator();
-                while (iterator.hasNext()) {
-                    EstimatedCall call = iterator.next();
-                    String ref = getStringValue(call.getStopPointRef());
-                    if (!subscribedStops.contains(ref)) {
-                        iterator.remove();
-                    }
-                }
-            }
-            //Removes all other recorded calls than those subscribed upon:
-            if (clone.getRecordedCalls() != null && clone.getRecordedCalls().getRecordedCalls() != null) {
-                Iterator<RecordedCall> iterator = clone.getRecordedCalls().getRecordedCalls().iterator();
-                while (iterator.hasNext()) {
-                    RecordedCall call = iterator.next();
-                    String ref = getStringValue(call.getStopPointRef());
-                    if (!subscribedStops.contains(ref)) {
-                        iterator.remove();
-                    }
-                }
-            }
-            clone.setIsCompleteStopSequence(false); //since we have tampered with the calls!
-            pushMessage(subscription, clone);
-        }
-    }
-
-    public void notifySubscriptionsWithFullMessage(HashSet<Subscription> subscriptions, EstimatedVehicleJourney estimatedVehicleJourney) {
-        for (Subscription subscription : subscriptions) {
-            pushMessage(subscription, estimatedVehicleJourney);
-        }
-    }
-
-    public void notifySubscriptions(HashSet<Subscription> subscriptions, PtSituationElement ptSituationElement) {
-        for (Subscription subscription : subscriptions) {
-            Set<String> subscribedStops = getAllStops(subscription);
-            PtSituationElement clone = clone(ptSituationElement);
-            AffectsScopeStructure affects = clone.getAffects();
-            if (affects != null) {
-                //clears elements not covered by the norwegian profile to reduce size on push-message:
-                affects.setAreaOfInterest(null);
-                affects.setExtensions(null);
-                affects.setOperators(null);
-                affects.setPlaces(null);
-                affects.setStopPoints(null);
-                affects.setRoads(null);
-                affects.setVehicles(null);
-                //removes part not subscribed upon (to reduce size on push-message):
-                if (subscription.getCodespaces().isEmpty() || !subscription.hasNoStops() || !subscription.getLineRefs().isEmpty()) {
-                    removeUnsubscribedNetworks(subscription, affects.getNetworks());
-                    if (subscription.hasNoStops()) {
-                        affects.setStopPlaces(null);
-                    } else {
-                        removeUnsubscribedStopPlaces(subscribedStops, affects.getStopPlaces());
-                    }
-                    removeUnsubscribedJourneys(subscription, subscribedStops, affects.getVehicleJourneys());
-                }
-            }
-
-            if (withAffects(clone)) {
-                pushMessage(subscription, clone);
-            } else {
-                BigInteger version = SiriObjectHelper.getBigIntegerValue(clone.getVersion());
-                String situationNumber = getStringValue(clone.getSituationNumber());
-                logger.info("do not push PtSituationElement with situationnumber {} and version {} to subscription with id {} as all affects are removed", situationNumber, version, subscription.getId());
-            }
-        }
+        fanOut(subscriptions, subscription -> notifySubscriptionOnStops(subscription, estimatedVehicleJourney));
     }
 
-    Subscription getSubscriptionByName(String name) {
-        return dataStorageService.getSubscriptionByName(name);
-    }
-
-    private void removeUnsubscribedJourneys(Subscription subscription, Set<String> subscribedStops, AffectsScopeStructure.VehicleJourneys vehicleJourneys) {
-        //Removes affected VehicleJourneys (and unsubscribed stops) without any stops, lines or vehicles subscribed upon
-        if (vehicleJourneys != null && vehicleJourneys.getAffectedVehicleJourneies() != null) {
-            Iterator<AffectedVehicleJourneyStructure> iterator = vehicleJourneys.getAffectedVehicleJourneies().iterator();
+    private void notifySubscriptionOnStops(Subscription subscription, EstimatedVehicleJourney estimatedVehicleJourney) {
+        Set<String> subscribedStops = getAllStops(subscription);
+        EstimatedVehicleJourney clone = clone(estimatedVehicleJourney);
+        //Removes all other estimated calls than those subscribed upon:
+        if (clone.getEstimatedCalls() != null && clone.getEstimatedCalls().getEstimatedCalls() != null) {
+            Iterator<EstimatedCall> iterator = clone.getEstimatedCalls().getEstimatedCalls().iterator();
             while (iterator.hasNext()) {
-                AffectedVehicleJourneyStructure journeyStructure = iterator.next();
-                boolean removeJourney = true;
-                if (isSubscribed(subscription, journeyStructure) && journeyStructure.getRoutes() != null) {
-                    List<AffectedRouteStructure> routes = journeyStructure.getRoutes();
-                    if (!subscription.hasNoStops()) {
-                        Iterator<AffectedRouteStructure> routeStructureIterator = routes.iterator();
-                        while (routeStructureIterator.hasNext()) {
-                            AffectedRouteStructure routeStructure = routeStructureIterator.next();
-                            AffectedRouteStructure.StopPoints stopPoints = routeStructure.getStopPoints();
-                            if (stopPoints != null && stopPoints.getAffectedStopPointsAndLinkProjectionToNextStopPoints() != null) {
-                                List<Serializable> affectedStopPointsAndLinkProjectionToNextStopPoints = stopPoints.getAffectedStopPointsAndLinkProjectionToNextStopPoints();
-                                Iterator<Serializable> stops = affectedStopPointsAndLinkProjectionToNextStopPoints.iterator();
-                                while (stops.hasNext()) {
-                                    Serializable stop = stops.next();
-                                    if (stop instanceof AffectedStopPointStructure) {
-                                        AffectedStopPointStructure affectedStopPoint = (AffectedStopPointStructure) stop;
-                                        String ref = getStringValue(affectedStopPoint.getStopPointRef());
-                                        if (!subscribedStops.contains(ref)) {
-                                            stops.remove();
-                                        }
-                                    }
-                                }
-                                if (affectedStopPointsAndLinkProjectionToNextStopPoints.isEmpty()) {
-                                    routeStructureIterator.remove();
-                                }
-                            }
-                        }
-                    }
-                    removeJourney = routes.isEmpty();
-                }
-                if (removeJourney) {
+                EstimatedCall call = iterator.next();
+                String ref = getStringValue(call.getStopPointRef());
+                if (!subscribedStops.contains(ref)) {
                     iterator.remove();
                 }
             }
         }
-    }
-
-    private void removeUnsubscribedStopPlaces(Set<String> subscribedStops, AffectsScopeStructure.StopPlaces stopPlaces) {
-        if (stopPlaces != null && stopPlaces.getAffectedStopPlaces() != null) {
-            Iterator<AffectedStopPlaceStructure> iterator = stopPlaces.getAffectedStopPlaces().iterator();
+        //Removes all other recorded calls than those subscribed upon:
+        if (clone.getRecordedCalls() != null && clone.getRecordedCalls().getRecordedCalls() != null) {
+            Iterator<RecordedCall> iterator = clone.getRecordedCalls().getRecordedCalls().iterator();
             while (iterator.hasNext()) {
-                AffectedStopPlaceStructure stop = iterator.next();
-                String ref = getStringValue(stop.getStopPlaceRef());
+                RecordedCall call = iterator.next();
+                String ref = getStringValue(call.getStopPointRef());
                 if (!subscribedStops.contains(ref)) {
                     iterator.remove();
                 }
             }
         }
+        clone.setIsCompleteStopSequence(false); //since we have tampered with the calls!
+        pushMessage(subscription, clone);
     }
 
-    private void removeUnsubscribedNetworks(Subscription subscription, AffectsScopeStructure.Networks networks) {
-        if (networks != null && networks.getAffectedNetworks() != null) {
-            Iterator<AffectsScopeStructure.Networks.AffectedNetwork> networkIterator = networks.getAffectedNetworks().iterator();
-            while (networkIterator.hasNext()) {
-                AffectsScopeStructure.Networks.AffectedNetwork affectedNetwork = networkIterator.next();
-                boolean keep = false;
-                List<AffectedLineStructure> affectedLines = affectedNetwork.getAffectedLines();
-                if (affectedLines != null) {
-                    Iterator<AffectedLineStructure> lineIterator = affectedLines.iterator();
-                    while (lineIterator.hasNext()) {
-                        AffectedLineStructure line = lineIterator.next();
-                        if (subscription.getLineRefs().contains(getStringValue(line.getLineRef()))) {
-                            keep = true;
-                        } else {
-                            lineIterator.remove();
-                        }
-                    }
-                }
-                if (!keep) {
-                    networkIterator.remove();
-                }
-            }
-        }
+    public void notifySubscriptionsWithFullMessage(HashSet<Subscription> subscriptions, EstimatedVehicleJourney estimatedVehicleJourney) {
+        fanOut(subscriptions, subscription -> pushMessage(subscription, estimatedVehicleJourney));
     }
 
-    private boolean withAffects(PtSituationElement element) {
-        AffectsScopeStructure affects = element.getAffects();
-        if (affects == null) {
-            return false;
+    public void notifySubscriptions(HashSet<Subscription> subscriptions, PtSituationElement ptSituationElement) {
+        SituationAffectsIndex affectsIndex = new SituationAffectsIndex(ptSituationElement);
+        fanOut(subscriptions, subscription -> notifySubscription(subscription, ptSituationElement, affectsIndex));
+    }
+
+    private void notifySubscription(Subscription subscription, PtSituationElement ptSituationElement, SituationAffectsIndex affectsIndex) {
+        //only the parts subscribed upon are pushed (to reduce size on push-message):
+        PtSituationElement projection = affectsIndex.project(subscription, getAllStops(subscription));
+        if (projection != null) {
+            pushMessage(subscription, projection);
+        } else {
+            BigInteger version = SiriObjectHelper.getBigIntegerValue(ptSituationElement.getVersion());
+            String situationNumber = getStringValue(ptSituationElement.getSituationNumber());
+            logger.info("do not push PtSituationElement with situationnumber {} and version {} to subscription with id {} as all affects are removed", situationNumber, version, subscription.getId());
         }
-        List<AffectedStopPlaceStructure> stopPlaces = affects.getStopPlaces() == null ? null : affects.getStopPlaces().getAffectedStopPlaces();
-        List<AffectedVehicleJourneyStructure> vehicleJourneys = affects.getVehicleJourneys() == null ? null : affects.getVehicleJourneys().getAffectedVehicleJourneies();
-        List<AffectsScopeStructure.Networks.AffectedNetwork> networks = affects.getNetworks() == null ? null : affects.getNetworks().getAffectedNetworks();
-        boolean hasStopPlace = stopPlaces != null && !stopPlaces.isEmpty();
-        boolean hasVehicleJourney = vehicleJourneys != null && !vehicleJourneys.isEmpty();
-        boolean hasNetworks = networks != null && !networks.isEmpty();
-        return hasStopPlace || hasVehicleJourney || hasNetworks;
     }
 
-    private boolean isSubscribed(Subscription subscription, AffectedVehicleJourneyStructure journey) {
-        if (!subscription.getLineRefs().isEmpty() && journey.getLineRef() != null) {
-            String lineref = journey.getLineRef().getValue();
-            return !StringUtils.isNotBlank(lineref) || subscription.getLineRefs().contains(lineref);
+    /**
+     * Notifies the subscriptions one by one on the calling thread, or - when there are many of them - splits the
+     * cloning, filtering and payload preparation into parallel tasks on the fan-out pool. Either way it returns when
+     * all pushes are handed to the push endpoints, so the ActiveMQ message isn't acknowledged before that.
+     */
+    private void fanOut(Collection<Subscription> subscriptions, Consumer<Subscription> notifier) {
+        if (subscriptions.size() < parallelFanOutThreshold) {
+            for (Subscription subscription : subscriptions) {
+                notifier.accept(subscription);
+            }
+            return;
         }
-        return true;
+        logger.debug("Notifies {} subscriptions in parallel", subscriptions.size());
+        fanOutPool.invoke(new FanOutTask(new ArrayList<>(subscriptions), 0, subscriptions.size(), notifier, LatencyTrace.getCurrent()));
+    }
+
+    Subscription getSubscriptionByName(String name) {
+        return dataStorageService.getSubscriptionByName(name);
     }
 
     @SuppressWarnings({"unused", "UnusedReturnValue"}) //Used from Camel REST api
@@ -314,42 +282,112 @@ public class SubscriptionManager {
 
     @SuppressWarnings({"unused"}) //Used from Camel quartz trigger route
     public void handleHeartbeatAndTermination() {
-        handleHeartbeatAndTermination(ZonedDateTime.now());
+        ZonedDateTime now = ZonedDateTime.now();
+        if (subscriptionOwnership == null) {
+            handleHeartbeatAndTermination(now);
+        } else {
+            subscriptionOwnership.handleHeartbeatAndTerminationOnAllMembers(now);
+        }
     }
 
-    void handleHeartbeatAndTermination(ZonedDateTime now) {
+    synchronized void handleHeartbeatAndTermination(ZonedDateTime now) {
+        handleHeartbeatAndTermination(now, subscriptionId -> true);
+    }
+
+    /**
+     * Handles heartbeats and termination for the subscriptions owned by this node (all subscriptions if pushes
+     * aren't sharded between the nodes).
+     */
+    void handleOwnedHeartbeatAndTermination(ZonedDateTime now) {
+        SubscriptionOwnership ownership = this.subscriptionOwnership;
+        handleHeartbeatAndTermination(now, ownership == null ? subscriptionId -> true : ownership::isOwnedLocally);
+    }
+
+    /**
+     * Sends due heartbeats and terminates expired subscriptions, but only for the subscriptions accepted by the
+     * given predicate. Due deadlines for the others are kept in the queue in case this node becomes their owner.
+     */
+    synchronized void handleHeartbeatAndTermination(ZonedDateTime now, Predicate<String> handledHere) {
 
         Date dateNow = Date.from(now.toInstant());
         long epochNow = dateNow.getTime();
 
-        Collection<Subscription> subscriptions = new HashSet<>(dataStorageService.getSubscriptions());
-
-        //check for terminated subscriptions only every 3 hour (node local timestamp as there is no harm if we check more frequent)
-        if (nextTerminatedCheck == null || nextTerminatedCheck.isAfter(now)) {
-            nextTerminatedCheck = now.plusHours(3);
-            for (Iterator<Subscription> iterator = subscriptions.iterator(); iterator.hasNext(); ) {
-                Subscription subscription = iterator.next();
-                if (subscription.getInitialTerminationTime() != null && now.isAfter(subscription.getInitialTerminationTime())) {
-                    logger.info("Removes subscription with InitialTerminationTime in the past - subscription id={}, name={}", subscription.getId(), subscription.getName());
-                    pushNotification(subscription, NotificationTypeEnum.subscriptionTerminated);
-                    remove(subscription.getId());
-                    iterator.remove(); //to prevent from also sending heartbeat
+        long subscriptionCacheVersion = dataStorageService.getSubscriptionCacheVersion();
+        if (deadlineQueue.isOutdated(subscriptionCacheVersion)) {
+            deadlineQueue.update(dataStorageService.getSubscriptions(), subscriptionCacheVersion, subscription -> {
+                Long nextHeartbeat = subscriptionNextHeartbeat.get(subscription.getId());
+                if (nextHeartbeat == null) {
+                    //we assume subscription is just created - and don't notify until next time
+                    nextHeartbeat = subscription.getHeartbeatInterval().getTimeInMillis(dateNow) + epochNow;
+                    Long existing = subscriptionNextHeartbeat.putIfAbsent(subscription.getId(), nextHeartbeat);
+                    if (existing != null) {
+                        nextHeartbeat = existing;
+                    }
                 }
-            }
+                return nextHeartbeat;
+            });
+            logger.debug("Updated heartbeat and termination queue, now with {} entries", deadlineQueue.size());
         }
 
-        for (Subscription subscription : subscriptions) {
-            Duration heartbeatInterval = subscription.getHeartbeatInterval();
-            if (heartbeatInterval != null) {
-                Long nextHeartbeat = subscriptionNextHeartbeat.get(subscription.getId());
-                if (nextHeartbeat == null || nextHeartbeat < epochNow) {
-                    long epochNextNotification = heartbeatInterval.getTimeInMillis(dateNow) + epochNow;
-                    subscriptionNextHeartbeat.put(subscription.getId(), epochNextNotification);
-                    if (nextHeartbeat != null) {
-                        pushNotification(subscription, NotificationTypeEnum.heartbeat);
-                    } //else we assume subscription is just created - and don't notify until next time
+        List<SubscriptionDeadlineQueue.Deadline> dueDeadlines = deadlineQueue.pollDue(epochNow);
+        if (dueDeadlines.isEmpty()) {
+            return;
+        }
+
+        HashSet<String> terminated = new HashSet<>();
+        for (SubscriptionDeadlineQueue.Deadline deadline : dueDeadlines) {
+            if (deadline.getType() == SubscriptionDeadlineQueue.DeadlineType.termination) {
+                if (!handledHere.test(deadline.getSubscription().getId())) {
+                    deadlineQueue.requeue(deadline); //the owner removes it, and then it is removed from the queue
+                    continue;
                 }
+                Subscription subscription = deadline.getSubscription();
+                logger.info("Removes subscription with InitialTerminationTime in the past - subscription id={}, name={}", subscription.getId(), subscription.getName());
+                pushNotifications(Collections.singletonList(subscription), NotificationTypeEnum.subscriptionTerminated);
+                remove(subscription.getId());
+                terminated.add(subscription.getId()); //to prevent from also sending heartbeat
+            }
+        }
+
+        HashMap<String, List<Subscription>> heartbeatsPerHost = new HashMap<>();
+        for (SubscriptionDeadlineQueue.Deadline deadline : dueDeadlines) {
+            Subscription subscription = deadline.getSubscription();
+            if (deadline.getType() != SubscriptionDeadlineQueue.DeadlineType.heartbeat || terminated.contains(subscription.getId())) {
+                continue;
+            }
+            Long nextHeartbeat = subscriptionNextHeartbeat.get(subscription.getId());
+            if (nextHeartbeat != null && nextHeartbeat >= epochNow) {
+                //another node has handled heartbeats since this queue was built (leadership or ownership has moved)
+                deadlineQueue.scheduleHeartbeat(subscription, nextHeartbeat);
+                continue;
             }
+            if (!handledHere.test(subscription.getId())) {
+                deadlineQueue.requeue(deadline);
+                continue;
+            }
+            long epochNextNotification = subscription.getHeartbeatInterval().getTimeInMillis(dateNow) + epochNow;
+            //claims the heartbeat, so only one node sends it if two nodes handle the subscription at the same time
+            boolean claimed = nextHeartbeat == null
+                    ? subscriptionNextHeartbeat.putIfAbsent(subscription.getId(), epochNextNotification) == null
+                    : subscriptionNextHeartbeat.replace(subscription.getId(), nextHeartbeat, epochNextNotification);
+            if (!claimed) {
+                Long claimedBy = subscriptionNextHeartbeat.get(subscription.getId());
+                deadlineQueue.scheduleHeartbeat(subscription, claimedBy != null ? claimedBy : epochNextNotification);
+                continue;
+            }
+            deadlineQueue.scheduleHeartbeat(subscription, epochNextNotification);
+            heartbeatsPerHost.computeIfAbsent(getPushHost(subscription), k -> new ArrayList<>()).add(subscription);
+        }
+        for (List<Subscription> subscriptions : heartbeatsPerHost.values()) {
+            pushNotifications(subscriptions, NotificationTypeEnum.heartbeat);
+        }
+    }
+
+    private String getPushHost(Subscription subscription) {
+        try {
+            return new URL(subscription.getPushAddress()).getAuthority();
+        } catch (MalformedURLException e) {
+            return subscription.getPushAddress();
         }
     }
 
@@ -396,6 +434,29 @@ public class SubscriptionManager {
         subscriptionNextHeartbeat.remove(subscriptionId);
     }
 
+    /**
+     * Delivery statistics for the subscription on this node (empty if nothing is delivered to it here).
+     */
+    public DeliveryStats getLocalDeliveryStats(String subscriptionId) {
+        DeliveryCounters counters = deliveryCounters.get(subscriptionId);
+        return counters == null ? DeliveryStats.empty(subscriptionId) : counters.snapshot(subscriptionId);
+    }
+
+    private DeliveryCounters getDeliveryCounters(Subscription subscription) {
+        DeliveryCounters counters = subscription.getId() == null ? null : deliveryCounters.computeIfAbsent(subscription.getId(),
+                id -> dataStorageService.getSubscription(id) == null ? null : new DeliveryCounters());
+        //removed (or never stored), so nothing to collect stats for - counters are dropped when a subscription is removed
+        return counters == null ? new DeliveryCounters() : counters;
+    }
+
+    private void registerDelivery(Subscription subscription, HttpStatus responseStatus, int messages) {
+        if (responseStatus != null && responseStatus.is2xxSuccessful()) {
+            getDeliveryCounters(subscription).pushed(messages);
+        } else {
+            getDeliveryCounters(subscription).failed(messages);
+        }
+    }
+
     private Set<String> getAllStops(Subscription subscription) {
         Set<String> fromStopPoints = subscription.getFromStopPoints();
         Set<String> toStopPoints = subscription.getToStopPoints();
@@ -420,13 +481,43 @@ public class SubscriptionManager {
         return SerializationUtils.clone(toClone);
     }
 
+    /**
+     * Makes this node push only for the subscriptions it owns, and hand the other pushes over to their owners.
+     */
+    void setSubscriptionOwnership(SubscriptionOwnership subscriptionOwnership) {
+        this.subscriptionOwnership = subscriptionOwnership;
+    }
+
     private void pushMessage(Subscription subscription, Object siriElement) {
+        if (subscriptionOwnership != null && subscriptionOwnership.handOverIfOwnedElsewhere(subscription, siriElement)) {
+            return;
+        }
+        pushOwnedMessage(subscription, siriElement);
+    }
 
+    /**
+     * Pushes a message handed over from another node, as this node owns the subscription. Returns false if the
+     * subscription no longer exists.
+     */
+    boolean pushHandedOverMessage(String subscriptionId, Object siriElement) {
+        Subscription subscription = dataStorageService.getSubscription(subscriptionId);
+        if (subscription == null) {
+            logger.debug("Got a push for subscription with id {} from another node, but it is removed", subscriptionId);
+            return false;
+        }
+        pushOwnedMessage(subscription, siriElement);
+        return true;
+    }
+
+    void pushOwnedMessage(Subscription subscription, Object siriElement) {
+
+        getDeliveryCounters(subscription).matched();
         String alreadySentKey = calculateUniqueKey(subscription, siriElement);
         Long ifPresent = alreadySentCache.get(alreadySentKey);
         //TODO: ROR-282 (Støtte endret validity for SX meldinger)
 
         if (ifPresent != null) {
+            getDeliveryCounters(subscription).deduplicated();
             long diffInSecs = (System.currentTimeMillis() - ifPresent) / 1000;
             logger.debug("skips message since it has already been pushed to the same subscription (id={}) {} seconds ago", subscription.getId(), diffInSecs);
             return;
@@ -437,7 +528,7 @@ public class SubscriptionManager {
         pushToHttp(subscription, siriElement);
     }
 
-    private String calculateUniqueKey(Subscription subscription, Object siriElement) {
+    String calculateUniqueKey(Subscription subscription, Object siriElement) {
         if (siriElement instanceof PtSituationElement) {
             PtSituationElement situationElement = (PtSituationElement) siriElement;
             String sitNumber = getStringValue(situationElement.getSituationNumber());
@@ -456,121 +547,506 @@ public class SubscriptionManager {
         return subscription.getId()+"_"+content.length()+"_"+content.hashCode();
     }
 
-    private void pushNotification(Subscription subscription, NotificationTypeEnum type) {
-        pushExecutor.execute(() -> {
+    /**
+     * Posts the notifications one after another from a single push thread, as the subscriptions are expected to
+     * share push host (and then also the underlying keep-alive connection).
+     */
+    private void pushNotifications(List<Subscription> subscriptions, NotificationTypeEnum type) {
+        getPushEndpoint(subscriptions.get(0)).execute(() -> {
+            boolean responding = false;
+            for (Subscription subscription : subscriptions) {
+                try {
+                    Siri siri = createNotification(subscription, type);
+                    HttpStatus httpStatus = post(subscription, subscription.getPushAddress(), siri);
+                    logger.info("Posted a {} notification for subscription with id={}, {} responded {}", type, subscription.getId(), subscription.getPushAddress(), httpStatus);
+                    responding |= isEndpointResponding(httpStatus);
+                } catch (Exception e) {
+                    logger.error("Got exception while pushing message", e);
+                }
+            }
+            return responding;
+        }, () -> subscriptions.forEach(this::removeIfPushHostIsGone));
+    }
+
+    private Siri createNotification(Subscription subscription, NotificationTypeEnum type) {
+        Siri siri = new Siri();
+        siri.setVersion(SIRI_VERSION);
+        switch (type) {
+            case heartbeat:
+                HeartbeatNotificationStructure heartbeatNotification = new HeartbeatNotificationStructure();
+                siri.setHeartbeatNotification(heartbeatNotification);
+                heartbeatNotification.setRequestTimestamp(ZonedDateTime.now());
+                RequestorRef producerRef = new RequestorRef();
+                producerRef.setValue(subscription.getName());
+                heartbeatNotification.setProducerRef(producerRef);
+                break;
+            case subscriptionTerminated:
+                SubscriptionTerminatedNotificationStructure subscriptionTerminatedNotification = new SubscriptionTerminatedNotificationStructure();
+                subscriptionTerminatedNotification.setResponseTimestamp(ZonedDateTime.now());
+                RequestorRef requestorRef = new RequestorRef();
+                requestorRef.setValue(subscription.getSiriRequestor());
+                subscriptionTerminatedNotification.getSubscriberRevesAndSubscriptionRevesAndSubscriptionFilterReves().add(requestorRef);
+                SubscriptionQualifierStructure subscriptionQualifierStructure = new SubscriptionQualifierStructure();
+                subscriptionQualifierStructure.setValue(subscription.getSiriClientGeneratedId());
+                subscriptionTerminatedNotification.getSubscriberRevesAndSubscriptionRevesAndSubscriptionFilterReves().add(subscriptionQualifierStructure);
+                siri.setSubscriptionTerminatedNotification(subscriptionTerminatedNotification);
+                break;
+            default:
+                throw new IllegalArgumentException("Unhandled notification type: " + type);
+        }
+        return siri;
+    }
+
+    private void pushToHttp(Subscription subscription, Object siriElement) {
+        LatencyTrace trace = LatencyTrace.getCurrent();
+        if (pushBatchMaxSize > 1 && subscription.isUseSiriSubscriptionModel() && siriElement instanceof Serializable) {
+            addToBatch(subscription, (Serializable) siriElement, trace);
+            return;
+        }
+        long queued = System.currentTimeMillis();
+        String retryKey = getRetryKey(subscription, siriElement);
+        getPushEndpoint(subscription).execute(() -> {
             try {
-                Siri siri = new Siri();
-                siri.setVersion(SIRI_VERSION);
-                switch (type) {
-                    case heartbeat:
-                        HeartbeatNotificationStructure heartbeatNotification = new HeartbeatNotificationStructure();
-                        siri.setHeartbeatNotification(heartbeatNotification);
-                        heartbeatNotification.setRequestTimestamp(ZonedDateTime.now());
-                        RequestorRef producerRef = new RequestorRef();
-                        producerRef.setValue(subscription.getName());
-                        heartbeatNotification.setProducerRef(producerRef);
-                        break;
-                    case subscriptionTerminated:
-                        SubscriptionTerminatedNotificationStructure subscriptionTerminatedNotification = new SubscriptionTerminatedNotificationStructure();
-                        subscriptionTerminatedNotification.setResponseTimestamp(ZonedDateTime.now());
-                        RequestorRef requestorRef = new RequestorRef();
-                        requestorRef.setValue(subscription.getSiriRequestor());
-                        subscriptionTerminatedNotification.getSubscriberRevesAndSubscriptionRevesAndSubscriptionFilterReves().add(requestorRef);
-                        SubscriptionQualifierStructure subscriptionQualifierStructure = new SubscriptionQualifierStructure();
-                        subscriptionQualifierStructure.setValue(subscription.getSiriClientGeneratedId());
-                        subscriptionTerminatedNotification.getSubscriberRevesAndSubscriptionRevesAndSubscriptionFilterReves().add(subscriptionQualifierStructure);
-                        siri.setSubscriptionTerminatedNotification(subscriptionTerminatedNotification);
-                        break;
-                    default:
-                        logger.error("Called without proper type specified...");
-                        return;
+                removeReplacedRetry(retryKey);
+                String pushAddress = getPushAddress(subscription, siriElement);
+                long started = System.currentTimeMillis();
+                HttpStatus responseStatus = post(subscription, pushAddress, createPushMessage(subscription, siriElement));
+                registerPushLatencies(trace == null ? -1 : trace.getReceived(), queued, started);
+                registerDelivery(subscription, responseStatus, 1);
+                boolean removed = handlePushResponse(subscription, pushAddress, responseStatus, true);
+                boolean responding = isEndpointResponding(responseStatus);
+                if (!responding && !removed && siriElement instanceof Serializable) {
+                    scheduleRetry(retryKey, subscription.getId(), (Serializable) siriElement, 1, true);
                 }
-                HttpStatus httpStatus = post(subscription, subscription.getPushAddress(), siri);
-                logger.info("Posted a {} notification for subscription with id={}, {} responded {}", type, subscription.getId(), subscription.getPushAddress(), httpStatus);
+                return responding;
             } catch (Exception e) {
                 logger.error("Got exception while pushing message", e);
+                return false;
+            }
+        }, () -> {
+            if (!removeIfPushHostIsGone(subscription) && siriElement instanceof Serializable) {
+                scheduleRetry(retryKey, subscription.getId(), (Serializable) siriElement, 1, true); //counts as an attempt
             }
         });
     }
 
-    private void pushToHttp(Subscription subscription, Object siriElement) {
-        pushExecutor.execute(() -> {
+    private String getPushAddress(Subscription subscription, Object siriElement) {
+        String pushAddress = subscription.getPushAddress();
+        if (!subscription.isUseSiriSubscriptionModel()) {
+            //TODO: Remove this when transition to the siri subscription model is completed! And subscription.useSiriSubscriptionModel() as well
+            if (siriElement instanceof EstimatedVehicleJourney) {
+                pushAddress += "/et";
+            } else if (siriElement instanceof PtSituationElement) {
+                pushAddress += "/sx";
+            }
+        }
+        return pushAddress;
+    }
+
+    private Object createPushMessage(Subscription subscription, Object siriElement) {
+        if (!subscription.isUseSiriSubscriptionModel()) {
+            return siriElement;
+        }
+        return createServiceDelivery(Collections.singletonList(siriElement));
+    }
+
+    /**
+     * Wraps all journeys in one EstimatedJourneyVersionFrame and all situations in one SituationExchangeDelivery. The
+     * elements must have the same producer.
+     */
+    private Siri createServiceDelivery(Collection<?> siriElements) {
+        Siri siri = new Siri();
+        siri.setVersion(SIRI_VERSION);
+        siri.setServiceDelivery(new ServiceDelivery());
+        siri.getServiceDelivery().setResponseTimestamp(ZonedDateTime.now()); //TODO: Should get this from the original message - now (if it is used) is probably wrong...
+        RequestorRef producer = new RequestorRef();
+        producer.setValue(getProducer(siriElements.iterator().next()));
+        EstimatedVersionFrameStructure estimatedVersionFrameStructure = null;
+        SituationExchangeDeliveryStructure.Situations situations = null;
+        for (Object siriElement : siriElements) {
+            if (siriElement instanceof EstimatedVehicleJourney) {
+                if (estimatedVersionFrameStructure == null) {
+                    EstimatedTimetableDeliveryStructure estimatedTimetableDeliveryStructure = new EstimatedTimetableDeliveryStructure();
+                    estimatedVersionFrameStructure = new EstimatedVersionFrameStructure();
+                    estimatedTimetableDeliveryStructure.getEstimatedJourneyVersionFrames().add(estimatedVersionFrameStructure);
+                    siri.getServiceDelivery().getEstimatedTimetableDeliveries().add(estimatedTimetableDeliveryStructure);
+                }
+                estimatedVersionFrameStructure.getEstimatedVehicleJourneies().add((EstimatedVehicleJourney) siriElement);
+            } else if (siriElement instanceof PtSituationElement) {
+                if (situations == null) {
+                    SituationExchangeDeliveryStructure situationExchangeDeliveryStructure = new SituationExchangeDeliveryStructure();
+                    situations = new SituationExchangeDeliveryStructure.Situations();
+                    situationExchangeDeliveryStructure.setSituations(situations);
+                    siri.getServiceDelivery().getSituationExchangeDeliveries().add(situationExchangeDeliveryStructure);
+                }
+                situations.getPtSituationElements().add((PtSituationElement) siriElement);
+            }
+        }
+        siri.getServiceDelivery().setProducerRef(producer);
+        return siri;
+    }
+
+    private String getProducer(Object siriElement) {
+        if (siriElement instanceof EstimatedVehicleJourney) {
+            return ((EstimatedVehicleJourney) siriElement).getDataSource();
+        } else if (siriElement instanceof PtSituationElement) {
+            return getStringValue(((PtSituationElement) siriElement).getParticipantRef());
+        }
+        return null;
+    }
+
+    /**
+     * Collects messages per subscription (and producer) until the batch is full or has lingered long enough, so they
+     * are pushed together in one ServiceDelivery. A newer message for a journey or situation already in the batch
+     * replaces the older one.
+     */
+    private void addToBatch(Subscription subscription, Serializable siriElement, LatencyTrace trace) {
+        String batchKey = subscription.getId() + "_" + getProducer(siriElement);
+        PushBatch[] full = new PushBatch[1];
+        pushBatches.compute(batchKey, (key, batch) -> {
+            if (batch == null) {
+                PushBatch newBatch = new PushBatch(subscription);
+                batchFlusher.schedule(() -> {
+                    if (pushBatches.remove(key, newBatch)) {
+                        pushBatch(newBatch);
+                    }
+                }, pushBatchLingerMs, TimeUnit.MILLISECONDS);
+                batch = newBatch;
+            }
+            batch.add(getRetryKey(subscription, siriElement), siriElement, trace == null ? -1 : trace.getReceived());
+            if (batch.size() >= pushBatchMaxSize) {
+                full[0] = batch;
+                return null;
+            }
+            return batch;
+        });
+        if (full[0] != null) {
+            pushBatch(full[0]);
+        }
+    }
+
+    private void pushBatch(PushBatch batch) {
+        Subscription subscription = batch.getSubscription();
+        getPushEndpoint(subscription).execute(() -> {
             try {
+                for (String retryKey : batch.getRetryKeys()) {
+                    removeReplacedRetry(retryKey);
+                }
                 String pushAddress = subscription.getPushAddress();
-                final Object pushMessage;
-                if (subscription.isUseSiriSubscriptionModel()) {
-                    Siri siri = new Siri();
-                    siri.setVersion(SIRI_VERSION);
-                    siri.setServiceDelivery(new ServiceDelivery());
-                    siri.getServiceDelivery().setResponseTimestamp(ZonedDateTime.now()); //TODO: Should get this from the original message - now (if it is used) is probably wrong...
-                    RequestorRef producer = new RequestorRef();
-                    if (siriElement instanceof EstimatedVehicleJourney) {
-                        producer.setValue(((EstimatedVehicleJourney) siriElement).getDataSource());
-                        EstimatedTimetableDeliveryStructure estimatedTimetableDeliveryStructure = new EstimatedTimetableDeliveryStructure();
-                        EstimatedVersionFrameStructure estimatedVersionFrameStructure = new EstimatedVersionFrameStructure();
-                        estimatedVersionFrameStructure.getEstimatedVehicleJourneies().add((EstimatedVehicleJourney) siriElement);
-                        estimatedTimetableDeliveryStructure.getEstimatedJourneyVersionFrames().add(estimatedVersionFrameStructure);
-                        siri.getServiceDelivery().getEstimatedTimetableDeliveries().add(estimatedTimetableDeliveryStructure);
-                    } else if (siriElement instanceof PtSituationElement) {
-                        producer.setValue(((PtSituationElement) siriElement).getParticipantRef().getValue());
-                        SituationExchangeDeliveryStructure situationExchangeDeliveryStructure = new SituationExchangeDeliveryStructure();
-                        SituationExchangeDeliveryStructure.Situations situations = new SituationExchangeDeliveryStructure.Situations();
-                        situationExchangeDeliveryStructure.setSituations(situations);
-                        situations.getPtSituationElements().add((PtSituationElement) siriElement);
-                        siri.getServiceDelivery().getSituationExchangeDeliveries().add(situationExchangeDeliveryStructure);
-                    }
-                    siri.getServiceDelivery().setProducerRef(producer);
-                    pushMessage = siri;
-                } else {
-                    //TODO: Remove this else-block once transition to the siri subscription model is completed! And subscription.useSiriSubscriptionModel() as well
-                    pushMessage = siriElement;
-                    if (siriElement instanceof EstimatedVehicleJourney) {
-                        pushAddress += "/et";
-                    } else if (siriElement instanceof PtSituationElement) {
-                        pushAddress += "/sx";
+                long started = System.currentTimeMillis();
+                HttpStatus responseStatus = post(subscription, pushAddress, createServiceDelivery(batch.getSiriElements()));
+                registerPushLatencies(batch.getEarliestReceived(), batch.getCreated(), started);
+                registerDelivery(subscription, responseStatus, batch.size());
+                logger.debug("Pushed batch with {} messages to subscription with id {}", batch.size(), subscription.getId());
+                boolean removed = handlePushResponse(subscription, pushAddress, responseStatus, true);
+                boolean responding = isEndpointResponding(responseStatus);
+                if (!responding && !removed) {
+                    for (Map.Entry<String, Serializable> entry : batch.getEntries()) {
+                        scheduleRetry(entry.getKey(), subscription.getId(), entry.getValue(), 1, true);
                     }
                 }
-                HttpStatus responseStatus = post(subscription, pushAddress, pushMessage);
-                if (HttpStatus.RESET_CONTENT.equals(responseStatus)) {
-                    logger.info("Receive {} on push to {} and removes subscription with id {}", HttpStatus.RESET_CONTENT, pushAddress, subscription.getId());
-                    remove(subscription.getId());
-                } else if (HttpStatus.OK.equals(responseStatus)) {
-                    if (subscription.getFailedPushCounter() > 0) {
-                        subscription.resetFailedPushCounter();
-                        dataStorageService.updateSubscription(subscription);
-                    }
+                return responding;
+            } catch (Exception e) {
+                logger.error("Got exception while pushing batch", e);
+                return false;
+            }
+        }, () -> {
+            if (removeIfPushHostIsGone(subscription)) {
+                return;
+            }
+            for (Map.Entry<String, Serializable> entry : batch.getEntries()) {
+                scheduleRetry(entry.getKey(), subscription.getId(), entry.getValue(), 1, true); //counts as an attempt
+            }
+        });
+    }
+
+    /**
+     * Registers the push latency stages of a (traced) message: waiting for a push thread, the http call and the total
+     * from the message was received from Anshar. A negative received means the message isn't traced.
+     */
+    private void registerPushLatencies(long received, long queued, long started) {
+        long now = System.currentTimeMillis();
+        metricsService.registerLatency(STAGE_PUSH_QUEUE, started - queued);
+        metricsService.registerLatency(STAGE_PUSH, now - started);
+        if (received >= 0) {
+            metricsService.registerLatency(STAGE_TOTAL, now - received);
+        }
+    }
+
+    /**
+     * Returns true if the subscription is removed. Client errors only count as failed pushes when countFailure is true
+     * (not for retries), and a subscription with pushes waiting for retry is not removed by the failed push counter.
+     */
+    private boolean handlePushResponse(Subscription subscription, String pushAddress, HttpStatus responseStatus, boolean countFailure) {
+        if (HttpStatus.RESET_CONTENT.equals(responseStatus)) {
+            logger.info("Receive {} on push to {} and removes subscription with id {}", HttpStatus.RESET_CONTENT, pushAddress, subscription.getId());
+            remove(subscription.getId());
+            return true;
+        } else if (HttpStatus.OK.equals(responseStatus)) {
+            if (subscription.getFailedPushCounter() > 0) {
+                subscription.resetFailedPushCounter();
+                dataStorageService.updateSubscription(subscription);
+            }
+        } else if (HttpStatus.UNSUPPORTED_MEDIA_TYPE.equals(responseStatus) && subscription.isGzipPush()) {
+            logger.info("Receive {} on gzipped push to {} and turns off gzip for subscription with id {}", responseStatus, pushAddress, subscription.getId());
+            subscription.setGzipPush(false);
+            dataStorageService.updateSubscription(subscription);
+        } else if (!countFailure || !isRejectedBySubscriber(responseStatus)) {
+            //no response, server errors and the like are handled by the circuit breaker and retries
+            logger.debug("Unexpected response code on push '{}' to subscription with id {} - does not count as failed push", responseStatus, subscription.getId());
+        } else {
+            logger.info("Unexpected response code on push '{}' - increase failed push counter for subscription wih id {}", responseStatus, subscription.getId());
+            long failedPushCounter = subscription.increaseFailedPushCounter();
+            if (failedPushCounter > 3 && hasPendingRetries(subscription.getId())) {
+                logger.info("Keeps subscription with id {} after {} failed push attempts as it has pushes waiting for retry", subscription.getId(), failedPushCounter);
+                dataStorageService.updateSubscription(subscription);
+            } else if (failedPushCounter > 3) {
+                logger.info("Removes subscription with id {} after {} failed push attempts", subscription.getId(), failedPushCounter);
+                remove(subscription.getId());
+                return true;
+            } else {
+                dataStorageService.updateSubscription(subscription);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Push hosts that stay unreachable (no response or server errors) are left to the circuit breaker, until it has
+     * failed so many probes in a row that the host is regarded as gone. Then subscriptions pushing to it are removed
+     * when their pushes are rejected. Returns true if the push host is gone.
+     */
+    private boolean removeIfPushHostIsGone(Subscription subscription) {
+        if (!getPushEndpoint(subscription).isGone()) {
+            return false;
+        }
+        if (dataStorageService.getSubscription(subscription.getId()) != null) {
+            logger.info("Removes subscription with id {} as its push host has not responded to {} probes in a row", subscription.getId(), PushEndpoint.MAX_FAILED_PROBES);
+            remove(subscription.getId());
+        }
+        return true;
+    }
+
+    /**
+     * A newer message for the same journey or situation should replace the one waiting for retry, so the key is based
+     * on those (with a random fallback when the message can't be identified).
+     */
+    private String getRetryKey(Subscription subscription, Object siriElement) {
+        String messageKey = null;
+        if (siriElement instanceof EstimatedVehicleJourney) {
+            EstimatedVehicleJourney journey = (EstimatedVehicleJourney) siriElement;
+            String journeyRef = getStringValue(journey.getDatedVehicleJourneyRef());
+            if (StringUtils.isBlank(journeyRef)) {
+                journeyRef = getStringValue(journey.getVehicleRef());
+            }
+            messageKey = StringUtils.isBlank(journeyRef) ? null : "et_" + journeyRef;
+        } else if (siriElement instanceof PtSituationElement) {
+            String situationNumber = getStringValue(((PtSituationElement) siriElement).getSituationNumber());
+            messageKey = StringUtils.isBlank(situationNumber) ? null : "sx_" + situationNumber;
+        }
+        if (messageKey == null) {
+            return subscription.getId() + UNIDENTIFIED_RETRY_KEY + UUID.randomUUID().toString();
+        }
+        return subscription.getId() + "_" + messageKey;
+    }
+
+    /**
+     * Removes the older message waiting for retry that this message replaces (if any), without waiting for the shared
+     * store. Random keys for unidentified messages are never in the store.
+     */
+    @SuppressWarnings("unchecked")
+    private void removeReplacedRetry(String retryKey) {
+        if (retryKey.contains(UNIDENTIFIED_RETRY_KEY)) {
+            return;
+        }
+        if (pushRetries instanceof IMap) {
+            ((IMap<String, PushRetry>) pushRetries).removeAsync(retryKey);
+        } else {
+            pushRetries.remove(retryKey);
+        }
+    }
+
+    /**
+     * Only used before removing a subscription, so it is ok that it queries the whole (shared) retry store.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean hasPendingRetries(String subscriptionId) {
+        if (pushRetries instanceof IMap) {
+            return !((IMap<String, PushRetry>) pushRetries).keySet(Predicates.equal("subscriptionId", subscriptionId)).isEmpty();
+        }
+        return pushRetries.values().stream().anyMatch(retry -> subscriptionId.equals(retry.getSubscriptionId()));
+    }
+
+    /**
+     * @param attempts the number of attempts so far - a push that was not posted because the push host rejected it
+     *                 counts as an attempt as well
+     */
+    private void scheduleRetry(String retryKey, String subscriptionId, Serializable siriElement, int attempts, boolean replace) {
+        if (attempts >= MAX_PUSH_ATTEMPTS) {
+            logger.info("Gives up pushing {} to subscription with id {} after {} attempts", siriElement.getClass().getSimpleName(), subscriptionId, attempts);
+            return;
+        }
+        if (queuedRetries.get() >= MAX_QUEUED_RETRIES) {
+            logger.warn("There are already {} pushes waiting for retry - will not retry push to subscription with id {}", MAX_QUEUED_RETRIES, subscriptionId);
+            return;
+        }
+        //exponential backoff with jitter (somewhere between half and full backoff) to spread retries to the same host
+        long backoff = Math.min(MAX_RETRY_BACKOFF_MS, INITIAL_RETRY_BACKOFF_MS << Math.max(0, attempts - 1));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        PushRetry retry = new PushRetry(subscriptionId, siriElement, attempts, System.currentTimeMillis() + delay);
+        if (replace) {
+            pushRetries.put(retryKey, retry);
+        } else {
+            //a newer message might have been queued while we retried
+            pushRetries.putIfAbsent(retryKey, retry);
+        }
+        queuedRetries.incrementAndGet(); //an estimate until the next round of retries counts them
+        logger.debug("Retries push to subscription with id {} in {} ms (attempt {})", subscriptionId, delay, attempts + 1);
+    }
+
+    private void retryFailedPushes() {
+        try {
+            long now = System.currentTimeMillis();
+            //each node retries the pushes in its own part of the shared store
+            Set<String> localKeys = ExtendedHazelcastService.localKeySet(pushRetries);
+            queuedRetries.set(localKeys.size());
+            for (String retryKey : localKeys) {
+                if (retriesInFlight.get() >= MAX_RETRIES_IN_FLIGHT) {
+                    break; //leaves the rest in the store until the retries in flight are done
+                }
+                PushRetry retry = pushRetries.get(retryKey);
+                if (retry == null || retry.getNextAttempt() > now) {
+                    continue;
+                }
+                Subscription subscription = dataStorageService.getSubscription(retry.getSubscriptionId());
+                if (subscription == null) {
+                    logger.debug("Discards push waiting for retry as subscription with id {} is removed", retry.getSubscriptionId());
+                    pushRetries.remove(retryKey, retry);
+                } else if (!getPushEndpoint(subscription).isRejecting() && pushRetries.remove(retryKey, retry)) {
+                    //only the node that manages to remove the retry performs it (ownership may just have moved)
+                    retryPush(retryKey, subscription, retry);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Got exception while retrying failed pushes", e);
+        }
+    }
+
+    /**
+     * Retries go through the push host's concurrency limit and circuit like other pushes.
+     */
+    private void retryPush(String retryKey, Subscription subscription, PushRetry retry) {
+        Serializable siriElement = retry.getSiriElement();
+        retriesInFlight.incrementAndGet();
+        getPushEndpoint(subscription).execute(() -> {
+            try {
+                String pushAddress = getPushAddress(subscription, siriElement);
+                HttpStatus responseStatus = post(subscription, pushAddress, createPushMessage(subscription, siriElement));
+                getDeliveryCounters(subscription).retried();
+                registerDelivery(subscription, responseStatus, 1);
+                boolean responding = isEndpointResponding(responseStatus);
+                if (responding) {
+                    handlePushResponse(subscription, pushAddress, responseStatus, false); //retries don't count towards removal
                 } else {
-                    logger.info("Unexpected response code on push '{}' - increase failed push counter for subscription wih id {}", responseStatus, subscription.getId());
-                    long failedPushCounter = subscription.increaseFailedPushCounter();
-                    if (failedPushCounter > 3) {
-                        logger.info("Removes subscription with id {} after {} failed push attempts", subscription.getId(), failedPushCounter);
-                        remove(subscription.getId());
-                    } else {
-                        dataStorageService.updateSubscription(subscription);
-                    }
+                    logger.debug("Retry {} to subscription with id {} failed with {}", retry.getAttempts(), subscription.getId(), responseStatus);
+                    scheduleRetry(retryKey, subscription.getId(), siriElement, retry.getAttempts() + 1, false);
                 }
+                return responding;
             } catch (Exception e) {
-                logger.error("Got exception while pushing message", e);
+                logger.error("Got exception while retrying push", e);
+                return false;
+            } finally {
+                retriesInFlight.decrementAndGet();
+            }
+        }, () -> {
+            retriesInFlight.decrementAndGet();
+            if (!removeIfPushHostIsGone(subscription)) {
+                scheduleRetry(retryKey, subscription.getId(), siriElement, retry.getAttempts() + 1, false);
+            }
+        });
+    }
+
+    /**
+     * No response, server errors, 408 (Request Timeout) and 429 (Too Many Requests) means the push host is struggling,
+     * other responses are subscription specific.
+     */
+    private boolean isEndpointResponding(HttpStatus responseStatus) {
+        return responseStatus != null && !responseStatus.is5xxServerError()
+                && responseStatus != HttpStatus.TOO_MANY_REQUESTS && responseStatus != HttpStatus.REQUEST_TIMEOUT;
+    }
+
+    /**
+     * Client errors (except 408 and 429) are definitive rejections of the push, and count towards removal of the
+     * subscription.
+     */
+    private boolean isRejectedBySubscriber(HttpStatus responseStatus) {
+        return responseStatus != null && responseStatus.is4xxClientError() && isEndpointResponding(responseStatus);
+    }
+
+    private PushEndpoint getPushEndpoint(Subscription subscription) {
+        return pushEndpoints.computeIfAbsent(getPushHost(subscription), host -> {
+            PushEndpoint endpoint = new PushEndpoint(host, pushExecutor, pushEndpointClock);
+            String prefix = GAUGE_PUSH_ENDPOINT_PREFIX + host.replaceAll("[^A-Za-z0-9-]", "_") + ".";
+            try {
+                metricsService.registerGauge(prefix + "state", endpoint::getStateValue);
+                metricsService.registerGauge(prefix + "concurrencyLimit", endpoint::getConcurrencyLimit);
+                metricsService.registerGauge(prefix + "inFlight", endpoint::getInFlight);
+                metricsService.registerGauge(prefix + "queued", endpoint::getQueued);
+                metricsService.registerGauge(prefix + "rejected", endpoint::getRejected);
+                metricsService.registerGauge(prefix + "dropped", endpoint::getDropped);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Could not register gauges for push host {} (another host with similar name exists?)", host, e);
             }
+            return endpoint;
         });
     }
 
+    public Map<String, String> getPushEndpointStates() {
+        HashMap<String, String> states = new HashMap<>();
+        for (PushEndpoint endpoint : pushEndpoints.values()) {
+            states.put(endpoint.getHost(), endpoint.getState().name());
+        }
+        return states;
+    }
+
     private HttpStatus post(Subscription subscription, String pushAddress, Object pushMessage) {
         Timer pushToHttp = metricsService.getTimer(MetricsService.TIMER_PUSH);
         Timer.Context context = pushToHttp.time();
+        long start = System.currentTimeMillis();
         try {
-            String payload = siriMarshaller.marshall(pushMessage);
-            byte[] bytes = payload.getBytes();
             URL url = new URL(pushAddress);
             HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(PUSH_CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(PUSH_READ_TIMEOUT_MS);
             connection.setRequestMethod("POST");
             connection.setRequestProperty("Content-Type", "application/xml");
-            connection.setRequestProperty("Content-Length", "" + Integer.toString(bytes.length));
             connection.setDoOutput(true);
-            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
-            out.write(bytes);
-            out.flush();
-            out.close();
+            long marshalledBytes;
+            long sentBytes;
+            if (subscription.isGzipPush()) {
+                //streams from the marshaller through gzip to the connection, so size is unknown up front
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setChunkedStreamingMode(0);
+                CountingOutputStream sent = new CountingOutputStream(connection.getOutputStream());
+                CountingOutputStream marshalled = new CountingOutputStream(new GZIPOutputStream(sent));
+                try (OutputStream out = marshalled) {
+                    siriMarshaller.marshall(pushMessage, out);
+                }
+                marshalledBytes = marshalled.getByteCount();
+                sentBytes = sent.getByteCount();
+            } else {
+                String payload = siriMarshaller.marshall(pushMessage);
+                byte[] bytes = payload.getBytes();
+                connection.setRequestProperty("Content-Length", "" + Integer.toString(bytes.length));
+                DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+                out.write(bytes);
+                out.flush();
+                out.close();
+                marshalledBytes = bytes.length;
+                sentBytes = bytes.length;
+            }
+            metricsService.getMeter(MetricsService.METER_PUSH_BYTES_MARSHALLED).mark(marshalledBytes);
+            metricsService.getMeter(MetricsService.METER_PUSH_BYTES_SENT).mark(sentBytes);
             int responseCode = connection.getResponseCode();
             logger.trace("Receive {} on push to {} for subscription with id {}", responseCode, subscription.getPushAddress(), subscription.getId());
             return HttpStatus.valueOf(responseCode);
@@ -579,6 +1055,98 @@ public class SubscriptionManager {
             return null;
         } finally {
             context.stop();
+            getDeliveryCounters(subscription).pushTime(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Notifies a range of subscriptions, split in halves until the ranges are small enough.
+     */
+    private class FanOutTask extends RecursiveAction {
+        private final List<Subscription> subscriptions;
+        private final int from;
+        private final int to;
+        private final Consumer<Subscription> notifier;
+        private final LatencyTrace trace;
+
+        FanOutTask(List<Subscription> subscriptions, int from, int to, Consumer<Subscription> notifier, LatencyTrace trace) {
+            this.subscriptions = subscriptions;
+            this.from = from;
+            this.to = to;
+            this.notifier = notifier;
+            this.trace = trace;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > FAN_OUT_CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new FanOutTask(subscriptions, from, middle, notifier, trace),
+                          new FanOutTask(subscriptions, middle, to, notifier, trace));
+                return;
+            }
+            LatencyTrace.setCurrent(trace);
+            try {
+                for (int i = from; i < to; i++) {
+                    try {
+                        notifier.accept(subscriptions.get(i));
+                    } catch (Exception e) {
+                        logger.error("Could not notify subscription with id {}", subscriptions.get(i).getId(), e);
+                    }
+                }
+            } finally {
+                LatencyTrace.setCurrent(null);
+            }
+        }
+    }
+
+    private static class PushBatch {
+        private final Subscription subscription;
+        private final LinkedHashMap<String, Serializable> siriElements = new LinkedHashMap<>();
+        private final long created = System.currentTimeMillis();
+        private long earliestReceived = -1;
+
+        PushBatch(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        void add(String retryKey, Serializable siriElement, long received) {
+            siriElements.remove(retryKey); //so the newer message gets its correct place in the order
+            siriElements.put(retryKey, siriElement);
+            if (received >= 0 && (earliestReceived < 0 || received < earliestReceived)) {
+                earliestReceived = received;
+            }
+        }
+
+        long getCreated() {
+            return created;
+        }
+
+        /**
+         * When the earliest traced message in the batch was received from Anshar, or -1 if none are traced.
+         */
+        long getEarliestReceived() {
+            return earliestReceived;
+        }
+
+        int size() {
+            return siriElements.size();
+        }
+
+        Subscription getSubscription() {
+            return subscription;
+        }
+
+        Set<String> getRetryKeys() {
+            return siriElements.keySet();
+        }
+
+        Collection<Serializable> getSiriElements() {
+            return siriElements.values();
+        }
+
+        Set<Map.Entry<String, Serializable>> getEntries() {
+            return siriElements.entrySet();
         }
     }
 
@@ -0,0 +1,217 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.core.IExecutorService;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.Partition;
+import org.entur.ukur.service.ExtendedHazelcastService;
+import org.entur.ukur.service.LatencyTrace;
+import org.entur.ukur.service.MetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Shards the pushing of subscriptions across the cluster: a subscription is owned by the member owning the hazelcast
+ * partition of its id. All nodes still match messages against all subscriptions, but a push for a subscription owned
+ * by another member is handed to that member (where the SubscriptionManager is found through the hazelcast user
+ * context). Ownership follows the partition table, so it rebalances by itself when members join or leave. If a
+ * hand-over fails (typically because the owner just left) the message is pushed locally instead - the cluster wide
+ * alreadySentCache keeps that from becoming a duplicate push.
+ * The same goes for heartbeats and termination: the leader asks every member to handle them for the subscriptions
+ * it owns, and handles those owned by members that failed itself.
+ */
+@Service
+public class SubscriptionOwnership {
+
+    private static final String EXECUTOR_NAME = "ukur.pushForwarding";
+    private static final String HEARTBEAT_EXECUTOR_NAME = "ukur.heartbeats";
+    private static final long HEARTBEAT_TIMEOUT_SECONDS = 30;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final HazelcastInstance hazelcast;
+    private final SubscriptionManager subscriptionManager;
+    private final MetricsService metricsService;
+    private final Set<Class<?>> notSerializable = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public SubscriptionOwnership(ExtendedHazelcastService hazelcastService,
+                                 SubscriptionManager subscriptionManager,
+                                 MetricsService metricsService,
+                                 @Value("${ukur.push.ownership.enabled:false}") boolean enabled) {
+        this.hazelcast = hazelcastService.getHazelcastInstance();
+        this.subscriptionManager = subscriptionManager;
+        this.metricsService = metricsService;
+        hazelcast.getUserContext().put(SubscriptionManager.USER_CONTEXT_KEY, subscriptionManager);
+        if (enabled) {
+            subscriptionManager.setSubscriptionOwnership(this);
+            logger.info("Pushes only for the subscriptions owned by this node - hands the rest over to their owners");
+        }
+    }
+
+    /**
+     * Returns true if this member owns the subscription (or there is no owner, as when the cluster is starting).
+     */
+    public boolean isOwnedLocally(String subscriptionId) {
+        Member owner = getOwner(subscriptionId);
+        return owner == null || owner.localMember();
+    }
+
+    /**
+     * Hands the push over to the owner of the subscription if that is another member. Returns false if this member
+     * owns the subscription (and should push itself), or if the message can't be handed over as it isn't
+     * serializable.
+     */
+    boolean handOverIfOwnedElsewhere(Subscription subscription, Object siriElement) {
+        if (isOwnedLocally(subscription.getId())) {
+            return false;
+        }
+        if (!(siriElement instanceof Serializable)) {
+            metricsService.getMeter(MetricsService.METER_PUSH_NOT_HANDED_OVER).mark();
+            if (notSerializable.add(siriElement.getClass())) {
+                logger.warn("Can't hand over {} as it is not serializable - pushes them from the node receiving them", siriElement.getClass().getName());
+            }
+            return false;
+        }
+        LatencyTrace trace = LatencyTrace.getCurrent();
+        long received = trace == null ? -1 : trace.getReceived();
+        IExecutorService executor = hazelcast.getExecutorService(EXECUTOR_NAME);
+        executor.submitToKeyOwner(new OwnerPushTask(subscription.getId(), (Serializable) siriElement, received), subscription.getId(), new ExecutionCallback<Boolean>() {
+            @Override
+            public void onResponse(Boolean response) {
+                metricsService.getMeter(MetricsService.METER_PUSH_HANDED_OVER).mark();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.warn("Could not hand over push for subscription with id {} to its owner - pushes it from this node", subscription.getId(), t);
+                subscriptionManager.pushOwnedMessage(subscription, siriElement);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Makes all members handle heartbeats and termination for the subscriptions they own, with this node's time, and
+     * waits for them to finish. Subscriptions owned by members that fail are handled here instead. A member that times
+     * out may still be working, so its subscriptions are left to it (they are still due at the next tick if it is
+     * stuck). Each heartbeat is also claimed in the shared next heartbeat times before it is sent, so it is only sent
+     * once even if ownership moves while heartbeats are handled.
+     */
+    void handleHeartbeatAndTerminationOnAllMembers(ZonedDateTime now) {
+        IExecutorService executor = hazelcast.getExecutorService(HEARTBEAT_EXECUTOR_NAME);
+        Map<Member, Future<Boolean>> futures = executor.submitToAllMembers(new OwnerHeartbeatTask(now.toInstant().toEpochMilli()));
+        HashSet<Member> failed = new HashSet<>();
+        for (Map.Entry<Member, Future<Boolean>> entry : futures.entrySet()) {
+            try {
+                entry.getValue().get(HEARTBEAT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (TimeoutException e) {
+                logger.warn("Member {} did not finish heartbeats and termination within {} seconds - leaves its subscriptions to it", entry.getKey(), HEARTBEAT_TIMEOUT_SECONDS);
+            } catch (Exception e) {
+                logger.warn("Member {} could not handle heartbeats and termination - handles its subscriptions from this node", entry.getKey(), e);
+                failed.add(entry.getKey());
+            }
+        }
+        if (!failed.isEmpty()) {
+            subscriptionManager.handleHeartbeatAndTermination(now, subscriptionId -> failed.contains(getOwner(subscriptionId)));
+        }
+    }
+
+    private Member getOwner(String subscriptionId) {
+        Partition partition = hazelcast.getPartitionService().getPartition(subscriptionId);
+        return partition == null ? null : partition.getOwner();
+    }
+
+    static class OwnerHeartbeatTask implements Callable<Boolean>, Serializable, HazelcastInstanceAware {
+
+        private final long epochNow;
+        private transient HazelcastInstance hazelcastInstance;
+
+        OwnerHeartbeatTask(long epochNow) {
+            this.epochNow = epochNow;
+        }
+
+        @Override
+        public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+            this.hazelcastInstance = hazelcastInstance;
+        }
+
+        @Override
+        public Boolean call() {
+            SubscriptionManager subscriptionManager = (SubscriptionManager) hazelcastInstance.getUserContext().get(SubscriptionManager.USER_CONTEXT_KEY);
+            if (subscriptionManager == null) {
+                throw new IllegalStateException("Node not fully started"); //the leader handles it instead
+            }
+            subscriptionManager.handleOwnedHeartbeatAndTermination(ZonedDateTime.ofInstant(Instant.ofEpochMilli(epochNow), ZoneId.systemDefault()));
+            return true;
+        }
+    }
+
+    static class OwnerPushTask implements Callable<Boolean>, Serializable, HazelcastInstanceAware {
+
+        private final String subscriptionId;
+        private final Serializable siriElement;
+        private final long received;
+        private transient HazelcastInstance hazelcastInstance;
+
+        OwnerPushTask(String subscriptionId, Serializable siriElement, long received) {
+            this.subscriptionId = subscriptionId;
+            this.siriElement = siriElement;
+            this.received = received;
+        }
+
+        @Override
+        public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+            this.hazelcastInstance = hazelcastInstance;
+        }
+
+        @Override
+        public Boolean call() {
+            SubscriptionManager subscriptionManager = (SubscriptionManager) hazelcastInstance.getUserContext().get(SubscriptionManager.USER_CONTEXT_KEY);
+            if (subscriptionManager == null) {
+                throw new IllegalStateException("Node not fully started"); //the sender pushes instead
+            }
+            LatencyTrace.setCurrent(received < 0 ? null : new LatencyTrace(received, received));
+            try {
+                return subscriptionManager.pushHandedOverMessage(subscriptionId, siriElement);
+            } finally {
+                LatencyTrace.setCurrent(null);
+            }
+        }
+    }
+}
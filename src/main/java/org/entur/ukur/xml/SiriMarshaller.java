@@ -24,6 +24,7 @@ import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.stream.*;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 
@@ -67,4 +68,12 @@ public class SiriMarshaller {
         return stringWriter.getBuffer().toString();
     }
 
+    /**
+     * Marshalls directly to the given stream (as UTF-8), without building the xml in memory first.
+     */
+    public void marshall(Object element, OutputStream out) throws JAXBException {
+        Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
+        jaxbMarshaller.marshal(element, out);
+    }
+
 }
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.xml;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+
+/**
+ * The identifying elements of a PtSituationElement, read with a StAX reader that stops as soon as they are found (they
+ * are among the first elements) - so we can decide what to do with a situation without unmarshalling all of it.
+ */
+public class SituationHeader {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private String participantRef;
+    private String situationNumber;
+    private String version;
+
+    private SituationHeader() {
+    }
+
+    /**
+     * Reads the header from the direct children of the root PtSituationElement. Missing values are null.
+     */
+    public static SituationHeader peek(byte[] xml) throws XMLStreamException {
+        SituationHeader header = new SituationHeader();
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(xml));
+        try {
+            int depth = 0;
+            while (reader.hasNext() && !header.isComplete()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth == 2) {
+                        String name = reader.getLocalName();
+                        if ("ParticipantRef".equals(name)) {
+                            header.participantRef = reader.getElementText().trim();
+                            depth--;
+                        } else if ("SituationNumber".equals(name)) {
+                            header.situationNumber = reader.getElementText().trim();
+                            depth--;
+                        } else if ("Version".equals(name)) {
+                            header.version = normalizeVersion(reader.getElementText().trim());
+                            depth--;
+                        } else if ("Affects".equals(name) || "Consequences".equals(name)) {
+                            break; //the header elements come before these
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return header;
+    }
+
+    private boolean isComplete() {
+        return participantRef != null && situationNumber != null && version != null;
+    }
+
+    private static String normalizeVersion(String version) {
+        try {
+            return new BigInteger(version).toString(); //same as the unmarshalled value
+        } catch (NumberFormatException e) {
+            return version;
+        }
+    }
+
+    /**
+     * Situation numbers are only unique within a participant (codespace), so situations are identified by both.
+     */
+    public static String key(String participantRef, String situationNumber) {
+        if (situationNumber == null) {
+            return null;
+        }
+        return participantRef == null ? situationNumber : participantRef + ":" + situationNumber;
+    }
+
+    /**
+     * The key identifying the situation, or null if it has no situation number.
+     */
+    public String getKey() {
+        return key(participantRef, situationNumber);
+    }
+
+    public String getParticipantRef() {
+        return participantRef;
+    }
+
+    public String getSituationNumber() {
+        return situationNumber;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+}
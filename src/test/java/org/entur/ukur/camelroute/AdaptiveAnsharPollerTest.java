@@ -0,0 +1,68 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveAnsharPollerTest {
+
+    private static final String URL = "http4://anshar/rest/et?requestorId=ukur-1&maxSize=500";
+
+    @Test
+    public void testPageSizeFollowsBacklog() {
+        AdaptiveAnsharPoller poller = new AdaptiveAnsharPoller(URL, 2000, 2);
+        assertEquals(URL, poller.getUrl());
+        poller.pageReceived(true, 500);
+        assertEquals("http4://anshar/rest/et?requestorId=ukur-1&maxSize=1000", poller.getUrl());
+        poller.pageReceived(true, 1000);
+        poller.pageReceived(true, 2000);
+        assertEquals(2000, poller.getPageSize());
+        poller.pageReceived(false, 1200);
+        assertEquals(1000, poller.getPageSize());
+        poller.pageReceived(false, 10);
+        poller.pageReceived(false, 10);
+        assertEquals(500, poller.getPageSize());
+    }
+
+    @Test
+    public void testBacksOffWhenEmpty() {
+        AdaptiveAnsharPoller poller = new AdaptiveAnsharPoller(URL, 2000, 2);
+        assertTrue(poller.isDue());
+        poller.pageReceived(false, 0);
+        assertTrue(poller.isDue());
+        poller.pageReceived(false, 0);
+        assertFalse(poller.isDue());
+        assertTrue(poller.isDue());
+        poller.pageReceived(false, 0);
+        assertFalse(poller.isDue());
+        assertFalse(poller.isDue());
+        assertTrue(poller.isDue());
+        poller.pageReceived(false, 1);
+        assertTrue(poller.isDue());
+    }
+
+    @Test
+    public void testUrlWithoutPageSize() {
+        AdaptiveAnsharPoller poller = new AdaptiveAnsharPoller("http4://localhost/et", 2000, 0);
+        poller.pageReceived(true, 10);
+        assertEquals("http4://localhost/et", poller.getUrl());
+        poller.pageReceived(false, 0);
+        poller.pageReceived(false, 0);
+        assertTrue(poller.isDue());
+    }
+}
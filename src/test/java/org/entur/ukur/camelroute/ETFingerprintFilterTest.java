@@ -0,0 +1,131 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.entur.ukur.service.MetricsService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class ETFingerprintFilterTest {
+
+    private HashMap<String, Long> sharedFingerprints;
+    private MetricsService metricsService;
+    private ETFingerprintFilter filter;
+
+    @Before
+    public void setUp() {
+        sharedFingerprints = new HashMap<>();
+        metricsService = new MetricsService();
+        filter = new ETFingerprintFilter(sharedFingerprints, metricsService);
+    }
+
+    @Test
+    public void testJourneyKey() throws Exception {
+        assertEquals("NSB:Line:L1:1234", ETFingerprintFilter.journeyKey(bytes(journey("<DatedVehicleJourneyRef>1234</DatedVehicleJourneyRef>", "delayed"))));
+        assertEquals("NSB:Line:L1:1234", ETFingerprintFilter.journeyKey(bytes(journey("<FramedVehicleJourneyRef><DataFrameRef>2018-01-18</DataFrameRef><DatedVehicleJourneyRef>1234</DatedVehicleJourneyRef></FramedVehicleJourneyRef>", "delayed"))));
+        assertEquals("NSB:Line:L1:2123", ETFingerprintFilter.journeyKey(bytes(journey("<VehicleRef>2123</VehicleRef>", "delayed"))));
+        assertNull(ETFingerprintFilter.journeyKey(bytes(journey("", "delayed"))));
+    }
+
+    @Test
+    public void testDropsUnchangedJourneys() {
+        String journey = journey("<DatedVehicleJourneyRef>1234</DatedVehicleJourneyRef>", "delayed");
+        assertTrue(process(filter, journey));
+        assertEquals(1, sharedFingerprints.size());
+        assertFalse(process(filter, journey));
+        assertEquals(1, metricsService.getMeter(MetricsService.METER_ET_UNCHANGED).getCount());
+
+        assertTrue(process(filter, journey("<DatedVehicleJourneyRef>1234</DatedVehicleJourneyRef>", "onTime")));
+        assertTrue(process(filter, journey("<DatedVehicleJourneyRef>9999</DatedVehicleJourneyRef>", "delayed")));
+        assertTrue("journeys without identity are always let through", process(filter, journey("", "delayed")));
+        assertTrue(process(filter, journey("", "delayed")));
+        assertEquals(1, metricsService.getMeter(MetricsService.METER_ET_UNCHANGED).getCount());
+    }
+
+    @Test
+    public void testUsesSharedFingerprints() {
+        String journey = journey("<DatedVehicleJourneyRef>1234</DatedVehicleJourneyRef>", "delayed");
+        assertTrue(process(filter, journey));
+
+        //received by another node:
+        ETFingerprintFilter otherNode = new ETFingerprintFilter(sharedFingerprints, metricsService);
+        assertFalse(otherNode.matches(exchange(journey)));
+        assertEquals(1, metricsService.getMeter(MetricsService.METER_ET_UNCHANGED).getCount());
+
+        //a changed journey processed on the other node is seen here even if this node has an older local fingerprint
+        String changed = journey("<DatedVehicleJourneyRef>1234</DatedVehicleJourneyRef>", "onTime");
+        assertTrue(process(otherNode, changed));
+        assertFalse(filter.matches(exchange(changed)));
+    }
+
+    @Test
+    public void testRecordsOnlyProcessedJourneys() {
+        String journey = journey("<DatedVehicleJourneyRef>1234</DatedVehicleJourneyRef>", "delayed");
+        assertTrue(filter.matches(exchange(journey)));
+        assertTrue("not processed yet", filter.matches(exchange(journey)));
+
+        Exchange failed = exchange(journey);
+        assertTrue(filter.matches(failed));
+        failed.setProperty(Exchange.EXCEPTION_CAUGHT, new IllegalStateException("processing failed"));
+        filter.processed(failed);
+        assertTrue("resent after failed processing", filter.matches(exchange(journey)));
+        assertTrue(sharedFingerprints.isEmpty());
+
+        assertTrue(process(filter, journey));
+        assertFalse(filter.matches(exchange(journey)));
+    }
+
+    /**
+     * Runs the journey through the filter, and registers it as processed if it passes.
+     */
+    private boolean process(ETFingerprintFilter filter, String journey) {
+        Exchange exchange = exchange(journey);
+        boolean passed = filter.matches(exchange);
+        if (passed) {
+            filter.processed(exchange);
+        }
+        return passed;
+    }
+
+    private Exchange exchange(String body) {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setBody(body);
+        return exchange;
+    }
+
+    private byte[] bytes(String xml) {
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String journey(String identity, String departureStatus) {
+        return "<EstimatedVehicleJourney xmlns=\"http://www.siri.org.uk/siri\">" +
+                "<LineRef>NSB:Line:L1</LineRef>" +
+                identity +
+                "<EstimatedCalls><EstimatedCall>" +
+                "<StopPointRef>NSR:Quay:1</StopPointRef>" +
+                "<DepartureStatus>" + departureStatus + "</DepartureStatus>" +
+                "</EstimatedCall></EstimatedCalls>" +
+                "</EstimatedVehicleJourney>";
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.camelroute;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Test;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class ETPartitionerTest {
+
+    @Test
+    public void testGroups() {
+        ETPartitioner partitioner = new ETPartitioner(8);
+        assertEquals(partitioner.getGroup("NSB", "NSB:Line:L1"), partitioner.getGroup("NSB", "NSB:Line:L1"));
+        assertEquals(partitioner.getGroup(null, "NSB:Line:L1"), partitioner.getGroup(null, "NSB:Line:L1"));
+        assertNull(partitioner.getGroup(null, null));
+        HashSet<String> groups = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            groups.add(partitioner.getGroup("NSB", "NSB:Line:L" + i));
+        }
+        assertEquals(8, groups.size());
+    }
+
+    @Test
+    public void testSetsGroupHeader() {
+        ETPartitioner partitioner = new ETPartitioner(8);
+        Exchange exchange = exchange(journey("<DataSource>NSB</DataSource>"));
+        partitioner.process(exchange);
+        assertEquals(partitioner.getGroup("NSB", "NSB:Line:L1"), exchange.getIn().getHeader(ETPartitioner.GROUP_HEADER));
+
+        Exchange withoutLine = exchange("<EstimatedVehicleJourney xmlns=\"http://www.siri.org.uk/siri\"><EstimatedCalls/></EstimatedVehicleJourney>");
+        partitioner.process(withoutLine);
+        assertNull(withoutLine.getIn().getHeader(ETPartitioner.GROUP_HEADER));
+
+        Exchange disabled = exchange(journey("<DataSource>NSB</DataSource>"));
+        new ETPartitioner(0).process(disabled);
+        assertNull(disabled.getIn().getHeader(ETPartitioner.GROUP_HEADER));
+    }
+
+    @Test
+    public void testClosesGroupEachRebalanceInterval() {
+        ETPartitioner partitioner = new ETPartitioner(8, 1000);
+        assertFalse(partitioner.closeGroup("et-1", 0));
+        assertFalse(partitioner.closeGroup("et-1", 999));
+        assertTrue(partitioner.closeGroup("et-1", 1000));
+        assertFalse(partitioner.closeGroup("et-1", 1001));
+        assertFalse(partitioner.closeGroup("et-2", 1001));
+        assertTrue(partitioner.closeGroup("et-1", 2000));
+    }
+
+    @Test
+    public void testGroupsMoveWhenConsumersJoinAndLeave() throws JMSException {
+        ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://etpartitioner?broker.persistent=false&broker.useJmx=false");
+        Connection connection = connectionFactory.createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            Queue queue = session.createQueue("ukur.et.test");
+            MessageProducer producer = session.createProducer(queue);
+            ETPartitioner partitioner = new ETPartitioner(8, 0); //closes groups on every message after the first
+
+            MessageConsumer first = session.createConsumer(queue);
+            sendLines(session, producer, partitioner, 16);
+            assertEquals("All groups go to the only consumer", 16, receiveAll(first));
+
+            MessageConsumer joining = session.createConsumer(queue);
+            sendLines(session, producer, partitioner, 16); //these close the groups
+            sendLines(session, producer, partitioner, 16);
+            int receivedByFirst = receiveAll(first);
+            int receivedByJoining = receiveAll(joining);
+            assertEquals(32, receivedByFirst + receivedByJoining);
+            assertTrue("A consumer joining later gets groups", receivedByJoining > 0);
+
+            first.close();
+            sendLines(session, producer, partitioner, 16);
+            assertEquals("The groups of a consumer leaving are moved", 16, receiveAll(joining));
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void sendLines(Session session, MessageProducer producer, ETPartitioner partitioner, int lines) throws JMSException {
+        for (int i = 0; i < lines; i++) {
+            Exchange exchange = exchange(journey("<DataSource>NSB</DataSource>").replace("NSB:Line:L1", "NSB:Line:L" + i));
+            partitioner.process(exchange);
+            Message message = session.createTextMessage(exchange.getIn().getBody(String.class));
+            message.setStringProperty(ETPartitioner.GROUP_HEADER, exchange.getIn().getHeader(ETPartitioner.GROUP_HEADER, String.class));
+            Integer sequence = exchange.getIn().getHeader(ETPartitioner.GROUP_SEQ_HEADER, Integer.class);
+            if (sequence != null) {
+                message.setIntProperty(ETPartitioner.GROUP_SEQ_HEADER, sequence);
+            }
+            producer.send(message);
+        }
+    }
+
+    private int receiveAll(MessageConsumer consumer) throws JMSException {
+        int received = 0;
+        while (consumer.receive(500) != null) {
+            received++;
+        }
+        return received;
+    }
+
+    private Exchange exchange(String body) {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setBody(body);
+        return exchange;
+    }
+
+    private String journey(String dataSource) {
+        return "<EstimatedVehicleJourney xmlns=\"http://www.siri.org.uk/siri\">" +
+                "<LineRef>NSB:Line:L1</LineRef>" +
+                "<DatedVehicleJourneyRef>1234</DatedVehicleJourneyRef>" +
+                dataSource +
+                "<EstimatedCalls><EstimatedCall><StopPointRef>NSR:Quay:1</StopPointRef></EstimatedCall></EstimatedCalls>" +
+                "</EstimatedVehicleJourney>";
+    }
+}
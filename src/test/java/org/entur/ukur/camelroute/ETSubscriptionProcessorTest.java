@@ -16,6 +16,9 @@
 package org.entur.ukur.camelroute;
 
 import com.google.common.collect.Sets;
+import org.entur.ukur.routedata.JourneyPattern;
+import org.entur.ukur.routedata.TimetableIndex;
+import org.entur.ukur.routedata.TimetableService;
 import org.entur.ukur.service.DataStorageService;
 import org.entur.ukur.service.FileStorageService;
 import org.entur.ukur.service.MetricsService;
@@ -28,12 +31,14 @@ import org.mockito.ArgumentCaptor;
 import uk.org.siri.siri20.*;
 
 import javax.xml.bind.JAXBException;
+import java.io.IOException;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.entur.ukur.subscription.SubscriptionTypeEnum.ET;
@@ -60,7 +65,7 @@ public class ETSubscriptionProcessorTest {
 
         ETSubscriptionProcessor processor = new ETSubscriptionProcessor(mock(SubscriptionManager.class),
                 new SiriMarshaller(), mock(FileStorageService.class),
-                mock(MetricsService.class), mock(QuayAndStopPlaceMappingService.class));
+                mock(MetricsService.class), mock(QuayAndStopPlaceMappingService.class), mock(TimetableService.class));
 
         HashMap<String, ETSubscriptionProcessor.StopData> stopData = processor.getStopData(journey);
         //No errors if no hits...
@@ -86,6 +91,33 @@ public class ETSubscriptionProcessorTest {
 
     }
 
+    @Test
+    public void validDirectionWithTimetable() throws IOException {
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        addEstimatedCall(estimatedCalls, "E1", ZonedDateTime.now().plus(1, ChronoUnit.HOURS));
+        addEstimatedCall(estimatedCalls, "E2", ZonedDateTime.now().plus(2, ChronoUnit.HOURS));
+        addEstimatedCall(estimatedCalls, "E3", null); //last stop: no departure
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setEstimatedCalls(estimatedCalls);
+
+        ETSubscriptionProcessor processor = new ETSubscriptionProcessor(mock(SubscriptionManager.class),
+                new SiriMarshaller(), mock(FileStorageService.class),
+                mock(MetricsService.class), mock(QuayAndStopPlaceMappingService.class), mock(TimetableService.class));
+        HashMap<String, ETSubscriptionProcessor.StopData> stopData = processor.getStopData(journey);
+        JourneyPattern pattern = TimetableIndex.builder()
+                .addJourney("NSB:ServiceJourney:1", "NSB:Line:1", Arrays.asList("NSR:StopPlace:E1", "NSR:StopPlace:E2", "NSR:StopPlace:E3"))
+                .build()
+                .getJourneyPattern("NSB:ServiceJourney:1");
+
+        //without the timetable the last stop has no departure time to compare with
+        assertFalse(processor.validDirection(createSubscription("E1", "E3", false), stopData));
+        assertTrue(processor.validDirection(createSubscription("E1", "E3", false), stopData, pattern));
+        assertFalse(processor.validDirection(createSubscription("E3", "E1", false), stopData, pattern));
+        assertTrue(processor.validDirection(createSubscription("E1", "E2", false), stopData, pattern));
+        //stops not in the pattern: falls back to the times in the message
+        assertFalse(processor.validDirection(createSubscription("X", "E2", false), stopData, pattern));
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void processEstimatedVehicleJourney() throws JAXBException {
@@ -132,7 +164,7 @@ public class ETSubscriptionProcessorTest {
 
         ETSubscriptionProcessor processor = new ETSubscriptionProcessor(subscriptionManagerMock,
                 new SiriMarshaller(), mock(FileStorageService.class),
-                new MetricsService(), mock(QuayAndStopPlaceMappingService.class));
+                new MetricsService(), mock(QuayAndStopPlaceMappingService.class), mock(TimetableService.class));
 
         ArgumentCaptor<HashSet> subscriptionsOnStopsCaptor= ArgumentCaptor.forClass(HashSet.class);
         ArgumentCaptor<HashSet> subscriptionsOnLineOrVehicleJourneyCaptor= ArgumentCaptor.forClass(HashSet.class);
@@ -163,7 +195,7 @@ public class ETSubscriptionProcessorTest {
         DataStorageService dataStorageMock = mock(DataStorageService.class);
         HashSet<Subscription> subscriptionsNotified = new HashSet<>();
         QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
-        SubscriptionManager subscriptionManager = new SubscriptionManager(dataStorageMock, siriMarshaller, metricsService, new HashMap<>(), new HashMap<>(), mappingMock) {
+        SubscriptionManager subscriptionManager = new SubscriptionManager(dataStorageMock, siriMarshaller, metricsService, new HashMap<>(), new HashMap<>(), new ConcurrentHashMap<>(), mappingMock) {
             @Override
             public void notifySubscriptionsOnStops(HashSet<Subscription> subscriptions, EstimatedVehicleJourney estimatedVehicleJourney) {
                 subscriptionsNotified.addAll(subscriptions);
@@ -171,7 +203,7 @@ public class ETSubscriptionProcessorTest {
         };
 
         ETSubscriptionProcessor processor = new ETSubscriptionProcessor(subscriptionManager, siriMarshaller,
-                mock(FileStorageService.class), metricsService, mappingMock);
+                mock(FileStorageService.class), metricsService, mappingMock, mock(TimetableService.class));
 
         HashSet<Subscription> subscriptions = Sets.newHashSet(s1, s2);
         when(dataStorageMock.getSubscriptionsForStopPoint("NSR:StopPlace:1", ET)).thenReturn(subscriptions);
@@ -19,9 +19,14 @@ import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
 import com.hazelcast.core.ITopic;
 import com.hazelcast.test.TestHazelcastInstanceFactory;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
 import org.apache.commons.lang3.StringUtils;
 import org.entur.ukur.routedata.LiveJourney;
 import org.entur.ukur.routedata.LiveRouteManager;
+import org.entur.ukur.routedata.TimetableIndex;
+import org.entur.ukur.routedata.TimetableService;
 import org.entur.ukur.service.DataStorageService;
 import org.entur.ukur.service.FileStorageService;
 import org.entur.ukur.service.MetricsService;
@@ -36,9 +41,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.org.siri.siri20.*;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static java.util.Arrays.asList;
@@ -52,6 +61,7 @@ public class SXSubscriptionProcessorTest extends DatastoreTest {
     private SubscriptionManager subscriptionManager;
     private SXSubscriptionProcessor processor;
     private LiveRouteManager liveRouteManagerMock;
+    private TimetableService timetableService;
     private SiriMarshaller siriMarshaller;
 
     @Before
@@ -63,9 +73,10 @@ public class SXSubscriptionProcessorTest extends DatastoreTest {
         MetricsService metricsServiceMock = mock(MetricsService.class);
         siriMarshaller = new SiriMarshaller();
         DataStorageService dataStorageService = new DataStorageService(datastore, liveJourneyIMap, subscriptionTopic);
-        subscriptionManager = new SubscriptionManager(dataStorageService, siriMarshaller, metricsServiceMock, new HashMap<>(), new HashMap<>(), new QuayAndStopPlaceMappingService(metricsServiceMock));
+        subscriptionManager = new SubscriptionManager(dataStorageService, siriMarshaller, metricsServiceMock, new HashMap<>(), new HashMap<>(), new ConcurrentHashMap<>(), new QuayAndStopPlaceMappingService(metricsServiceMock));
         liveRouteManagerMock = mock(LiveRouteManager.class);
-        processor = new SXSubscriptionProcessor(subscriptionManager, siriMarshaller, liveRouteManagerMock, mock(FileStorageService.class), mock(MetricsService.class));
+        timetableService = new TimetableService(new MetricsService());
+        processor = new SXSubscriptionProcessor(subscriptionManager, siriMarshaller, liveRouteManagerMock, mock(FileStorageService.class), mock(MetricsService.class), new HashMap<>(), new HashMap<>(), timetableService);
     }
 
     @Test
@@ -96,6 +107,22 @@ public class SXSubscriptionProcessorTest extends DatastoreTest {
         assertPresent(Collections.singletonList(s1), processor.findAffectedSubscriptions(createVehicleJourneys(Collections.singletonList("2"), "123", true)));
     }
 
+    @Test
+    public void findAffectedSubscriptionsWithTimetable() throws IOException {
+        Subscription s1 = createSubscription("s1", "NSR:StopPlace:2", "NSR:StopPlace:3");
+        Subscription sLine = createSubscription("line", null, null, "NSB:Line:L1");
+        createSubscription("opposite", "NSR:StopPlace:3", "NSR:StopPlace:2");
+        timetableService.update(TimetableIndex.builder()
+                .addJourney("NSB:ServiceJourney:1", "NSB:Line:L1", asList("NSR:StopPlace:1", "NSR:StopPlace:2", "NSR:StopPlace:3"))
+                .build());
+
+        //the route and line of the journey are found in the timetable (not in live journeys):
+        List<AffectedVehicleJourneyStructure> vehicleJourneys = createVehicleJourneys(Collections.singletonList("2"), "NSB:ServiceJourney:1", true);
+        assertPresent(asList(s1, sLine), processor.findAffectedSubscriptions(vehicleJourneys));
+        assertEquals("NSB:Line:L1", vehicleJourneys.get(0).getLineRef().getValue());
+        assertTrue(timetableService.getStopsForLine("NSB:Line:L1").containsAll(asList("NSR:StopPlace:1", "NSR:StopPlace:2", "NSR:StopPlace:3")));
+    }
+
     @Test
     public void one_affected_unsubscribed_stop_on_journey() throws Exception {
         createSubscription("test", "NSR:StopPlace:2", "NSR:StopPlace:3");
@@ -216,6 +243,79 @@ public class SXSubscriptionProcessorTest extends DatastoreTest {
         assertPresent(Collections.emptyList(), processor.findAffectedSubscriptions(unsubscribedVehiclejourney.getAffectedVehicleJourneies()));
     }
 
+    @Test
+    public void testDefersSituationsNotValidNext24Hours() {
+        HashMap<String, DeferredSituation> deferredSituations = new HashMap<>();
+        SXSubscriptionProcessor deferringProcessor = new SXSubscriptionProcessor(subscriptionManager, siriMarshaller, liveRouteManagerMock,
+                mock(FileStorageService.class), new MetricsService(), deferredSituations, new HashMap<>(), timetableService);
+        ZonedDateTime start = ZonedDateTime.now().plusDays(3).truncatedTo(ChronoUnit.SECONDS);
+        deferringProcessor.process(createExchange(createSituationXml("status-1", 1, start)));
+        DeferredSituation deferred = deferredSituations.get("NSB:status-1");
+        assertNotNull(deferred);
+        assertEquals("1", deferred.getVersion());
+        assertEquals(start.minusDays(1).toInstant().toEpochMilli(), deferred.getActivationTime());
+
+        //the same version again is skipped, a new version replaces the one deferred:
+        deferringProcessor.process(createExchange(createSituationXml("status-1", 1, start)));
+        assertSame(deferred, deferredSituations.get("NSB:status-1"));
+        deferringProcessor.process(createExchange(createSituationXml("status-1", 2, start)));
+        assertEquals("2", deferredSituations.get("NSB:status-1").getVersion());
+
+        //deferred situations are processed when due:
+        deferredSituations.put("NSB:status-2", new DeferredSituation("1", System.currentTimeMillis() - 1, createSituationXml("status-2", 1, ZonedDateTime.now())));
+        deferringProcessor.processDeferredSituations();
+        assertFalse(deferredSituations.containsKey("NSB:status-2"));
+        assertTrue(deferredSituations.containsKey("NSB:status-1"));
+
+        //a version valid the next 24 hours replaces the one deferred:
+        deferringProcessor.process(createExchange(createSituationXml("status-1", 3, ZonedDateTime.now())));
+        assertFalse(deferredSituations.containsKey("NSB:status-1"));
+    }
+
+    @Test
+    public void testSkipsUnchangedSituations() {
+        HashMap<String, String> processedVersions = new HashMap<>();
+        MetricsService metricsService = new MetricsService();
+        SXSubscriptionProcessor skippingProcessor = new SXSubscriptionProcessor(subscriptionManager, siriMarshaller, liveRouteManagerMock,
+                mock(FileStorageService.class), metricsService, new HashMap<>(), processedVersions, timetableService);
+        skippingProcessor.process(createExchange(createSituationXml("status-1", 1, ZonedDateTime.now())));
+        assertEquals("1", processedVersions.get("NSB:status-1"));
+        assertEquals(0, metricsService.getMeter(MetricsService.METER_SX_UNCHANGED).getCount());
+
+        skippingProcessor.process(createExchange(createSituationXml("status-1", 1, ZonedDateTime.now())));
+        assertEquals(1, metricsService.getMeter(MetricsService.METER_SX_UNCHANGED).getCount());
+
+        skippingProcessor.process(createExchange(createSituationXml("status-1", 2, ZonedDateTime.now())));
+        assertEquals("2", processedVersions.get("NSB:status-1"));
+        assertEquals(1, metricsService.getMeter(MetricsService.METER_SX_UNCHANGED).getCount());
+    }
+
+    private Exchange createExchange(byte[] body) {
+        DefaultExchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setBody(body);
+        return exchange;
+    }
+
+    private byte[] createSituationXml(String situationNumber, int version, ZonedDateTime start) {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" +
+                "<PtSituationElement xmlns=\"http://www.siri.org.uk/siri\">\n" +
+                "  <ParticipantRef>NSB</ParticipantRef>\n" +
+                "  <SituationNumber>" + situationNumber + "</SituationNumber>\n" +
+                "  <Version>" + version + "</Version>\n" +
+                "  <ValidityPeriod>\n" +
+                "    <StartTime>" + start.toOffsetDateTime() + "</StartTime>\n" +
+                "  </ValidityPeriod>\n" +
+                "  <Affects>\n" +
+                "    <StopPlaces>\n" +
+                "      <AffectedStopPlace>\n" +
+                "        <StopPlaceRef>NSR:StopPlace:1</StopPlaceRef>\n" +
+                "      </AffectedStopPlace>\n" +
+                "    </StopPlaces>\n" +
+                "  </Affects>\n" +
+                "</PtSituationElement>";
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+
     private void assertPresent(List<Subscription> expectedSubscriptions, Collection<Subscription> actualSubscriptions) {
         logger.debug("Found these subscriptions: {} ", actualSubscriptions.stream().map(Subscription::getName).collect(Collectors.toList()));
         ArrayList<Subscription> missing = new ArrayList<>();
@@ -21,10 +21,13 @@ import org.apache.commons.io.IOUtils;
 import org.entur.ukur.service.MetricsService;
 import org.entur.ukur.service.QuayAndStopPlaceMappingService;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -37,13 +40,16 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsCollectionContaining.hasItems;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
 
 public class TiamatStopPlaceQuaysProcessorTest {
 
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @SuppressWarnings("unchecked")
     @Test
     public void name() throws IOException {
@@ -94,6 +100,56 @@ public class TiamatStopPlaceQuaysProcessorTest {
         assertEquals("NSR:StopPlace:26294", quayAndStopPlaceMappingService.mapQuayToStopPlace("NSR:Quay:45514"));
     }
 
+    @Test
+    public void testUnexpectedJson() throws IOException {
+        QuayAndStopPlaceMappingService quayAndStopPlaceMappingService = new QuayAndStopPlaceMappingService(new MetricsService());
+        TiamatStopPlaceQuaysProcessor processor = new TiamatStopPlaceQuaysProcessor(quayAndStopPlaceMappingService);
+        String json = "{\"NSR:StopPlace:26291\": \"NSR:Quay:45505\"}";
+        try {
+            processor.process(createExchangeMock(IOUtils.toInputStream(json, "UTF-8")));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            //expected
+        }
+        assertFalse(processor.hasRun());
+        assertEquals(0, quayAndStopPlaceMappingService.getNumberOfStopPlaces());
+    }
+
+    @Test
+    public void testStoresAndSkipsUnchangedData() throws IOException {
+        File folder = temporaryFolder.newFolder();
+        String json = "{\"NSR:StopPlace:1\": [\"NSR:Quay:1\", \"NSR:Quay:2\"]}";
+        QuayAndStopPlaceMappingService mappingService = new QuayAndStopPlaceMappingService(new MetricsService());
+        TiamatStopPlaceQuaysProcessor processor = new TiamatStopPlaceQuaysProcessor(mappingService, folder.getAbsolutePath());
+        processor.warmStart();
+        assertFalse(processor.hasRun());
+
+        Exchange exchange = createExchangeMock(IOUtils.toInputStream(json, "UTF-8"));
+        when(exchange.getIn().getHeader("ETag", String.class)).thenReturn("\"v1\"");
+        processor.process(exchange);
+        assertTrue(processor.hasRun());
+        assertEquals("NSR:StopPlace:1", mappingService.mapQuayToStopPlace("NSR:Quay:2"));
+        assertTrue(new File(folder, TiamatStopPlaceQuaysProcessor.CACHE_FILENAME).isFile());
+
+        //the conditional header is added when we have data:
+        Exchange request = createExchangeMock(null);
+        processor.addConditionalHeaders(request);
+        verify(request.getIn()).setHeader("If-None-Match", "\"v1\"");
+
+        //same content is not parsed again, and 304 is not an error:
+        QuayAndStopPlaceMappingService spyService = spy(mappingService);
+        TiamatStopPlaceQuaysProcessor warmProcessor = new TiamatStopPlaceQuaysProcessor(spyService, folder.getAbsolutePath());
+        warmProcessor.warmStart();
+        assertTrue(warmProcessor.hasRun());
+        verify(spyService, times(1)).updateStopsAndQuays(any());
+        warmProcessor.process(createExchangeMock(IOUtils.toInputStream(json, "UTF-8")));
+        Exchange notModified = createExchangeMock(null);
+        when(notModified.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class)).thenReturn(304);
+        warmProcessor.process(notModified);
+        verify(spyService, times(1)).updateStopsAndQuays(any());
+        assertEquals("NSR:StopPlace:1", spyService.mapQuayToStopPlace("NSR:Quay:1"));
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     @Ignore
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.routedata;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class GtfsTimetableReaderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRead() throws IOException {
+        String trips = "\uFEFFroute_id,service_id,trip_id,trip_headsign\n" +
+                "NSB:Line:L1,1,NSB:ServiceJourney:1,\"Oslo, S\"\n" +
+                "NSB:Line:L1,1,NSB:ServiceJourney:2,Oslo S\n" +
+                "NSB:Line:L1,1,NSB:ServiceJourney:3,Lillestrøm\n" +
+                "NSB:Line:L2,1,NSB:ServiceJourney:4,Drammen\n";
+        String stopTimes = "trip_id,arrival_time,departure_time,stop_id,stop_sequence\n" +
+                "NSB:ServiceJourney:1,10:00:00,10:00:00,NSR:Quay:1,1\n" +
+                "NSB:ServiceJourney:1,10:20:00,10:20:00,NSR:Quay:3,3\n" +
+                "NSB:ServiceJourney:1,10:10:00,10:10:00,NSR:Quay:2,2\n" +
+                "NSB:ServiceJourney:2,11:00:00,11:00:00,NSR:Quay:1,1\n" +
+                "NSB:ServiceJourney:2,11:10:00,11:10:00,NSR:Quay:2,2\n" +
+                "NSB:ServiceJourney:2,11:20:00,11:20:00,NSR:Quay:3,3\n" +
+                "NSB:ServiceJourney:3,12:00:00,12:00:00,NSR:Quay:3,1\n" +
+                "NSB:ServiceJourney:3,12:10:00,12:10:00,NSR:Quay:4,2\n" +
+                "NSB:ServiceJourney:4,13:00:00,13:00:00,NSR:Quay:1,1\n" +
+                "NSB:ServiceJourney:4,13:10:00,13:10:00,NSR:Quay:5,2\n";
+        TimetableIndex index = GtfsTimetableReader.read(createArchive(trips, stopTimes));
+
+        assertEquals(4, index.getNumberOfJourneys());
+        assertEquals(3, index.getNumberOfPatterns()); //journey 1 and 2 have the same stops
+        assertEquals(asList("NSR:Quay:1", "NSR:Quay:2", "NSR:Quay:3"), index.getStops("NSB:ServiceJourney:1"));
+        assertEquals(asList("NSR:Quay:3", "NSR:Quay:4"), index.getStops("NSB:ServiceJourney:3"));
+        assertEquals("NSB:Line:L1", index.getLine("NSB:ServiceJourney:2"));
+        assertEquals("NSB:Line:L2", index.getLine("NSB:ServiceJourney:4"));
+        assertNull(index.getStops("NSB:ServiceJourney:5"));
+        assertNull(index.getLine("NSB:ServiceJourney:5"));
+        assertEquals(asList("NSR:Quay:1", "NSR:Quay:2", "NSR:Quay:3", "NSR:Quay:4"), index.getStopsForLine("NSB:Line:L1"));
+        assertEquals(2, index.getPatternsForLine("NSB:Line:L1").size());
+        assertTrue(index.getStopsForLine("NSB:Line:L3").isEmpty());
+        assertTrue(index.getEstimatedBytes() > 0);
+        assertTrue(index.getOffHeapBytes() > 0);
+
+        JourneyPattern pattern = index.getJourneyPattern("NSB:ServiceJourney:2");
+        assertEquals(3, pattern.size());
+        assertEquals("NSR:Quay:2", pattern.getStop(1));
+        assertEquals(1, pattern.indexOfAny(asList("NSR:Quay:3", "NSR:Quay:2")));
+        assertEquals(-1, pattern.indexOfAny(asList("NSR:Quay:4", "NSR:Quay:X")));
+        assertEquals(11 * 3600, pattern.getDepartureTime(0));
+        assertEquals(11 * 3600 + 20 * 60, pattern.getDepartureTime(2));
+        assertEquals(10 * 3600 + 10 * 60, index.getJourneyPattern("NSB:ServiceJourney:1").getDepartureTime(1));
+        assertNull(index.getJourneyPattern("NSB:ServiceJourney:5"));
+    }
+
+    @Test
+    public void testTimes() throws IOException {
+        String trips = "route_id,service_id,trip_id\n" +
+                "NSB:Line:L1,1,NSB:ServiceJourney:1\n" +
+                "NSB:Line:L1,1,NSB:ServiceJourney:2\n";
+        String stopTimes = "trip_id,arrival_time,departure_time,stop_id,stop_sequence\n" +
+                "NSB:ServiceJourney:1,,23:50:00,NSR:Quay:1,1\n" +
+                "NSB:ServiceJourney:1,,,NSR:Quay:2,2\n" +
+                "NSB:ServiceJourney:1,24:10:00,,NSR:Quay:3,3\n" +
+                "NSB:ServiceJourney:2,,,NSR:Quay:1,1\n" +
+                "NSB:ServiceJourney:2,,,NSR:Quay:2,2\n" +
+                "NSB:ServiceJourney:2,,,NSR:Quay:3,3\n";
+        TimetableIndex index = GtfsTimetableReader.read(createArchive(trips, stopTimes));
+
+        JourneyPattern passingMidnight = index.getJourneyPattern("NSB:ServiceJourney:1");
+        assertEquals(23 * 3600 + 50 * 60, passingMidnight.getDepartureTime(0));
+        assertEquals(-1, passingMidnight.getDepartureTime(1));
+        assertEquals(24 * 3600 + 10 * 60, passingMidnight.getDepartureTime(2)); //arrival, as there is no departure
+        JourneyPattern withoutTimes = index.getJourneyPattern("NSB:ServiceJourney:2");
+        assertEquals(-1, withoutTimes.getDepartureTime(0));
+        assertEquals(1, index.getNumberOfPatterns());
+    }
+
+    @Test(expected = IOException.class)
+    public void testStopTimesNotGroupedByTrip() throws IOException {
+        String trips = "route_id,service_id,trip_id\n" +
+                "NSB:Line:L1,1,NSB:ServiceJourney:1\n" +
+                "NSB:Line:L1,1,NSB:ServiceJourney:2\n";
+        String stopTimes = "trip_id,stop_id,stop_sequence\n" +
+                "NSB:ServiceJourney:1,NSR:Quay:1,1\n" +
+                "NSB:ServiceJourney:2,NSR:Quay:1,1\n" +
+                "NSB:ServiceJourney:1,NSR:Quay:2,2\n";
+        GtfsTimetableReader.read(createArchive(trips, stopTimes));
+    }
+
+    private File createArchive(String trips, String stopTimes) throws IOException {
+        File archive = temporaryFolder.newFile("gtfs.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive))) {
+            zip.putNextEntry(new ZipEntry("stop_times.txt"));
+            zip.write(stopTimes.getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("trips.txt"));
+            zip.write(trips.getBytes(StandardCharsets.UTF_8));
+        }
+        return archive;
+    }
+}
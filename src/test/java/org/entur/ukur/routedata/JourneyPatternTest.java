@@ -0,0 +1,73 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.routedata;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.entur.ukur.routedata.JourneyPattern.Direction.*;
+import static org.junit.Assert.assertEquals;
+
+public class JourneyPatternTest {
+
+    @Test
+    public void testPositionalIndex() throws IOException {
+        TimetableIndex index = TimetableIndex.builder()
+                //a loop: starts and ends at the same stop
+                .addJourney("J1", "L1", asList("S5", "S3", "S1", "S4", "S2", "S5"))
+                .addJourney("J2", "L1", asList("S1", "S2"))
+                .build();
+        JourneyPattern loop = index.getJourneyPattern("J1");
+        assertEquals(0, loop.indexOfAny(singleton("S5")));
+        assertEquals(2, loop.indexOfAny(singleton("S1")));
+        assertEquals(1, loop.indexOfAny(asList("S4", "S3")));
+        assertEquals(-1, loop.indexOfAny(asList("S6", "X")));
+
+        JourneyPattern other = index.getJourneyPattern("J2");
+        assertEquals(-1, other.indexOfAny(singleton("S5")));
+        assertEquals(1, other.indexOfAny(singleton("S2")));
+    }
+
+    @Test
+    public void testDirection() throws IOException {
+        TimetableIndex index = TimetableIndex.builder()
+                .addJourney("J1", "L1", asList("S1", "S2", "S3"))
+                .addJourney("J2", "L1", asList("S1", "S2", "S3"))
+                .build();
+        JourneyPattern pattern = index.getJourneyPattern("J1");
+        assertEquals(ALONG, pattern.getDirection(null, 0, singleton("S1"), singleton("S3")));
+        assertEquals(AGAINST, pattern.getDirection(null, 0, singleton("S3"), singleton("S1")));
+        assertEquals(AGAINST, pattern.getDirection(null, 0, singleton("S2"), singleton("S2")));
+        assertEquals(NOT_ON_PATTERN, pattern.getDirection(null, 0, singleton("S1"), singleton("X")));
+
+        Set<String> from = new HashSet<>(singleton("S1"));
+        Set<String> to = new HashSet<>(singleton("S2"));
+        assertEquals(ALONG, pattern.getDirection("sub1", 1, from, to));
+        //the journeys have the same pattern, and share the direction found
+        assertEquals(ALONG, index.getJourneyPattern("J2").getDirection("sub1", 1, from, to));
+        //the direction is cached for the revision, not found from the stops
+        from.clear();
+        from.add("S3");
+        assertEquals(ALONG, index.getJourneyPattern("J2").getDirection("sub1", 1, from, to));
+        //a changed subscription has a new revision and gets its direction found again
+        assertEquals(AGAINST, index.getJourneyPattern("J2").getDirection("sub1", 2, from, to));
+    }
+}
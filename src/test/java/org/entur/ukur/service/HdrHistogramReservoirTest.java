@@ -0,0 +1,90 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.service;
+
+import com.codahale.metrics.Snapshot;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HdrHistogramReservoirTest {
+
+    @Test
+    public void testPercentiles() {
+        HdrHistogramReservoir reservoir = new HdrHistogramReservoir(1, 3_600_000);
+        for (int i = 1; i <= 1000; i++) {
+            reservoir.update(i);
+        }
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertEquals(1000, snapshot.size());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(1000, snapshot.getMax(), 10);
+        assertEquals(500, snapshot.getMedian(), 5);
+        assertEquals(990, snapshot.get99thPercentile(), 10);
+        assertEquals(500.5, snapshot.getMean(), 5);
+    }
+
+    @Test
+    public void testSnapshotsKeepValues() {
+        HdrHistogramReservoir reservoir = new HdrHistogramReservoir(1, 3_600_000);
+        reservoir.update(10);
+        assertEquals(1, reservoir.getSnapshot().size());
+        reservoir.update(20);
+        assertEquals("Values are kept across snapshots within the window", 2, reservoir.getSnapshot().size());
+    }
+
+    @Test
+    public void testWindowFollowsTheClock() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        HdrHistogramReservoir reservoir = new HdrHistogramReservoir(1, 3_600_000, now::get);
+        reservoir.update(10);
+        now.addAndGet(30_000);
+        reservoir.update(20);
+        now.addAndGet(45_000);
+        assertEquals("Only values from the last minute, without any snapshots in between", 1, reservoir.getSnapshot().size());
+        assertEquals("Snapshots don't consume the values", 1, reservoir.getSnapshot().size());
+        now.addAndGet(60_000);
+        assertEquals(0, reservoir.getSnapshot().size());
+    }
+
+    @Test
+    public void testValuesOutsideRangeAreClamped() {
+        HdrHistogramReservoir reservoir = new HdrHistogramReservoir(1, 1000);
+        reservoir.update(-5);
+        reservoir.update(5000);
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(0, snapshot.getMin());
+        assertTrue(snapshot.getMax() >= 1000);
+    }
+
+    @Test
+    public void testMerge() {
+        HdrHistogramReservoir first = new HdrHistogramReservoir(1, 3_600_000);
+        HdrHistogramReservoir second = new HdrHistogramReservoir(1, 3_600_000);
+        first.update(10);
+        second.update(1000);
+        second.update(2000);
+        HdrHistogramReservoir.HdrSnapshot merged = ((HdrHistogramReservoir.HdrSnapshot) first.getSnapshot()).merge((HdrHistogramReservoir.HdrSnapshot) second.getSnapshot());
+        assertEquals(3, merged.size());
+        assertEquals(10, merged.getMin());
+        assertEquals(2000, merged.getMax(), 20);
+        assertEquals(1, first.getSnapshot().size());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OpenMetricsWriterTest {
+
+    @Test
+    public void testWrite() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.meter("message.received.PtSituationElement").mark(3);
+        registry.register("gauge.pushQueue", (Gauge<Integer>) () -> 7);
+        registry.register("gauge.notANumber", (Gauge<String>) () -> "ignored");
+        Timer timer = registry.timer("timer.push.http", () -> new Timer(new HdrHistogramReservoir(1000, TimeUnit.HOURS.toNanos(1))));
+        timer.update(2, TimeUnit.SECONDS);
+        registry.histogram(MetricsService.HISTOGRAM_LATENCY_PREFIX + MetricsService.STAGE_TOTAL).update(500);
+
+        String text = OpenMetricsWriter.write(registry);
+
+        assertTrue(text.contains("# TYPE ukur_message_received_PtSituationElement counter\n"));
+        assertTrue(text.contains("ukur_message_received_PtSituationElement_total 3\n"));
+        assertTrue(text.contains("ukur_gauge_pushQueue 7\n"));
+        assertFalse(text.contains("notANumber"));
+        assertTrue(text.contains("# TYPE ukur_timer_push_http_seconds summary\n"));
+        assertTrue(text.contains("ukur_timer_push_http_seconds_count 1\n"));
+        assertTrue(text.matches("(?s).*ukur_timer_push_http_seconds\\{quantile=\"0.5\"} 2(\\.0\\d*)?\n.*"));
+        assertTrue(text.contains("ukur_latency_total_seconds{quantile=\"0.99\"} 0.5\n"));
+        assertTrue(text.endsWith("# EOF\n"));
+    }
+
+    @Test
+    public void testSanitize() {
+        assertEquals("ukur_gauge_pushEndpoint_localhost_8080_state", OpenMetricsWriter.sanitize("gauge.pushEndpoint.localhost:8080.state"));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.service;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class StopPlaceQuayIndexTest {
+
+    @Test
+    public void testLookups() {
+        HashMap<String, Collection<String>> stopPlacesAndQuays = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            stopPlacesAndQuays.put("NSR:StopPlace:" + i, Arrays.asList("NSR:Quay:" + i + "1", "NSR:Quay:" + i + "2"));
+        }
+        stopPlacesAndQuays.put("NSR:StopPlace:empty", Collections.emptyList());
+        StopPlaceQuayIndex index = new StopPlaceQuayIndex(stopPlacesAndQuays);
+
+        assertEquals(1001, index.getNumberOfStopPlaces());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("NSR:StopPlace:" + i, index.getStopPlace("NSR:Quay:" + i + "1"));
+            assertEquals("NSR:StopPlace:" + i, index.getStopPlace("NSR:Quay:" + i + "2"));
+            assertEquals(Arrays.asList("NSR:Quay:" + i + "1", "NSR:Quay:" + i + "2"), index.getQuays("NSR:StopPlace:" + i));
+        }
+        assertTrue(index.getQuays("NSR:StopPlace:empty").isEmpty());
+        assertNull(index.getStopPlace("NSR:Quay:unknown"));
+        assertNull(index.getStopPlace(null));
+        assertNull(index.getQuays("NSR:StopPlace:unknown"));
+        assertEquals(stopPlacesAndQuays, index.toMap());
+        assertTrue(index.getEstimatedBytes() > 0);
+    }
+
+    @Test
+    public void testBuilder() {
+        StopPlaceQuayIndex.Builder builder = StopPlaceQuayIndex.builder();
+        for (int i = 0; i < 5000; i++) {
+            builder.addStopPlace("NSR:StopPlace:" + i).addQuay("NSR:Quay:" + i + "1").addQuay("NSR:Quay:" + i + "2");
+        }
+        StopPlaceQuayIndex index = builder.build();
+        assertEquals(5000, index.getNumberOfStopPlaces());
+        assertEquals("NSR:StopPlace:0", index.getStopPlace("NSR:Quay:01"));
+        assertEquals("NSR:StopPlace:4999", index.getStopPlace("NSR:Quay:49992"));
+        assertEquals(Arrays.asList("NSR:Quay:25001", "NSR:Quay:25002"), index.getQuays("NSR:StopPlace:2500"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBuilderQuayWithoutStopPlace() {
+        StopPlaceQuayIndex.builder().addQuay("NSR:Quay:1");
+    }
+
+    @Test
+    public void testEmpty() {
+        StopPlaceQuayIndex index = new StopPlaceQuayIndex(Collections.emptyMap());
+        assertEquals(0, index.getNumberOfStopPlaces());
+        assertNull(index.getStopPlace("NSR:Quay:1"));
+        assertNull(index.getQuays("NSR:StopPlace:1"));
+    }
+
+    @Test
+    public void testRegisterMiss() {
+        StopPlaceQuayIndex index = new StopPlaceQuayIndex(Collections.emptyMap());
+        assertTrue(index.registerMiss("NSR:Quay:1"));
+        assertFalse(index.registerMiss("NSR:Quay:1"));
+        assertTrue(index.registerMiss("NSR:Quay:2"));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeliveryStatsTest {
+
+    @Test
+    public void testBuckets() {
+        assertEquals(0, DeliveryStats.bucket(-1));
+        assertEquals(0, DeliveryStats.bucket(0));
+        assertEquals(1, DeliveryStats.bucket(1));
+        assertEquals(2, DeliveryStats.bucket(2));
+        assertEquals(2, DeliveryStats.bucket(3));
+        assertEquals(11, DeliveryStats.bucket(1500));
+        assertEquals(DeliveryStats.PUSH_TIME_BUCKETS - 1, DeliveryStats.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testMergeCountersFromNodes() {
+        DeliveryCounters node1 = new DeliveryCounters();
+        node1.matched();
+        node1.matched();
+        node1.deduplicated();
+        node1.pushed(1);
+        node1.pushTime(10);
+        DeliveryCounters node2 = new DeliveryCounters();
+        node2.matched();
+        node2.failed(1);
+        node2.retried();
+        node2.pushed(1);
+        node2.pushTime(100);
+        node2.pushTime(1500);
+
+        DeliveryStats stats = DeliveryStats.empty("sub1");
+        stats.merge(node1.snapshot("sub1"));
+        stats.merge(node2.snapshot("sub1"));
+        assertEquals(2, stats.getNodes());
+        assertEquals(3, stats.getMatched());
+        assertEquals(1, stats.getDeduplicated());
+        assertEquals(2, stats.getPushed());
+        assertEquals(1, stats.getFailed());
+        assertEquals(1, stats.getRetried());
+        assertEquals(3, stats.getPushTimeCount());
+        assertEquals(127, stats.getPushTime50thPercentile_ms());
+        assertEquals(2047, stats.getPushTimeMax_ms());
+    }
+}
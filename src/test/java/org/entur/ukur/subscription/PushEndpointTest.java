@@ -0,0 +1,135 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PushEndpointTest {
+
+    @Test
+    public void testCircuitOpensAfterFailuresInARow() {
+        PushEndpoint endpoint = new PushEndpoint("localhost:1234", Runnable::run);
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < PushEndpoint.FAILURE_THRESHOLD - 1; i++) {
+            endpoint.execute(() -> calls.incrementAndGet() < 0);
+        }
+        assertEquals(PushEndpoint.State.CLOSED, endpoint.getState());
+        endpoint.execute(() -> calls.incrementAndGet() < 0);
+        assertEquals(PushEndpoint.State.OPEN, endpoint.getState());
+        assertEquals(PushEndpoint.FAILURE_THRESHOLD, calls.get());
+
+        endpoint.execute(() -> calls.incrementAndGet() > 0);
+        assertEquals("No push while the circuit is open", PushEndpoint.FAILURE_THRESHOLD, calls.get());
+        assertEquals(1, endpoint.getRejected());
+    }
+
+    @Test
+    public void testSuccessResetsFailureCount() {
+        PushEndpoint endpoint = new PushEndpoint("localhost:1234", Runnable::run);
+        for (int i = 0; i < 3 * PushEndpoint.FAILURE_THRESHOLD; i++) {
+            boolean ok = i % PushEndpoint.FAILURE_THRESHOLD == 0;
+            endpoint.execute(() -> ok);
+        }
+        assertEquals(PushEndpoint.State.CLOSED, endpoint.getState());
+    }
+
+    @Test
+    public void testConcurrencyLimit() {
+        ArrayList<Runnable> started = new ArrayList<>();
+        PushEndpoint endpoint = new PushEndpoint("localhost:1234", started::add);
+        int limit = endpoint.getConcurrencyLimit();
+        for (int i = 0; i < limit + 5; i++) {
+            endpoint.execute(() -> true);
+        }
+        assertEquals(limit, started.size());
+        assertEquals(limit, endpoint.getInFlight());
+        assertEquals(5, endpoint.getQueued());
+
+        started.get(0).run();
+        assertEquals("A queued push is started when another completes", limit + 1, started.size());
+        assertEquals(4, endpoint.getQueued());
+        assertEquals(limit, endpoint.getInFlight());
+
+        started.get(1).run();
+        started.get(2).run();
+        started.get(3).run();
+        started.get(4).run();
+        assertEquals(0, endpoint.getQueued());
+    }
+
+    @Test
+    public void testNotPushedIsCalledForRejectedAndDroppedPushes() {
+        ArrayList<Runnable> started = new ArrayList<>();
+        PushEndpoint endpoint = new PushEndpoint("localhost:1234", started::add);
+        AtomicInteger notPushed = new AtomicInteger();
+        int limit = endpoint.getConcurrencyLimit();
+        for (int i = 0; i < limit + PushEndpoint.MAX_QUEUED + 2; i++) {
+            endpoint.execute(() -> false, notPushed::incrementAndGet);
+        }
+        assertEquals("The oldest queued pushes are dropped", 2, notPushed.get());
+        assertEquals(2, endpoint.getDropped());
+
+        for (int i = 0; i < PushEndpoint.FAILURE_THRESHOLD; i++) {
+            started.get(i).run();
+        }
+        assertEquals(PushEndpoint.State.OPEN, endpoint.getState());
+        assertEquals("Queued pushes are given back when the circuit opens", 2 + PushEndpoint.MAX_QUEUED, notPushed.get());
+
+        endpoint.execute(() -> true, notPushed::incrementAndGet);
+        assertEquals(3 + PushEndpoint.MAX_QUEUED, notPushed.get());
+    }
+
+    @Test
+    public void testGoneAfterFailedProbesInARow() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        PushEndpoint endpoint = new PushEndpoint("localhost:1234", Runnable::run, now::get);
+        for (int i = 0; i < PushEndpoint.FAILURE_THRESHOLD; i++) {
+            endpoint.execute(() -> false);
+        }
+        for (int i = 0; i < PushEndpoint.MAX_FAILED_PROBES; i++) {
+            assertEquals(PushEndpoint.State.OPEN, endpoint.getState());
+            assertFalse(endpoint.isGone());
+            now.addAndGet(PushEndpoint.MAX_OPEN_DURATION_MS);
+            endpoint.execute(() -> false);
+        }
+        assertTrue(endpoint.isGone());
+
+        now.addAndGet(PushEndpoint.MAX_OPEN_DURATION_MS);
+        endpoint.execute(() -> true);
+        assertEquals("A successful probe brings the push host back", PushEndpoint.State.CLOSED, endpoint.getState());
+        assertFalse(endpoint.isGone());
+    }
+
+    @Test
+    public void testRejectedByExecutor() {
+        PushEndpoint endpoint = new PushEndpoint("localhost:1234", command -> {
+            throw new RejectedExecutionException("full");
+        });
+        AtomicInteger notPushed = new AtomicInteger();
+        endpoint.execute(() -> true, notPushed::incrementAndGet);
+        assertEquals(1, notPushed.get());
+        assertEquals("The slot is released", 0, endpoint.getInFlight());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.entur.ukur.xml.SiriMarshaller;
+import org.junit.Before;
+import org.junit.Test;
+import uk.org.siri.siri20.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SituationAffectsIndexTest {
+
+    private SituationAffectsIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" +
+                "<PtSituationElement xmlns=\"http://www.siri.org.uk/siri\">\n" +
+                "  <SituationNumber>status-1</SituationNumber>\n" +
+                "  <Version>2</Version>\n" +
+                "  <Affects>\n" +
+                "    <Networks>\n" +
+                "      <AffectedNetwork>\n" +
+                "        <AffectedLine><LineRef>NSB:Line:Line1</LineRef></AffectedLine>\n" +
+                "        <AffectedLine><LineRef>NSB:Line:Line2</LineRef></AffectedLine>\n" +
+                "      </AffectedNetwork>\n" +
+                "    </Networks>\n" +
+                "    <StopPlaces>\n" +
+                "      <AffectedStopPlace><StopPlaceRef>NSR:StopPlace:1</StopPlaceRef></AffectedStopPlace>\n" +
+                "      <AffectedStopPlace><StopPlaceRef>NSR:StopPlace:9</StopPlaceRef></AffectedStopPlace>\n" +
+                "    </StopPlaces>\n" +
+                "    <VehicleJourneys>\n" +
+                "      <AffectedVehicleJourney>\n" +
+                "        <LineRef>NSB:Line:Line1</LineRef>\n" +
+                "        <VehicleJourneyRef>1234</VehicleJourneyRef>\n" +
+                "        <Route>\n" +
+                "          <StopPoints>\n" +
+                "            <AffectedOnly>true</AffectedOnly>\n" +
+                "            <AffectedStopPoint><StopPointRef>NSR:StopPlace:1</StopPointRef></AffectedStopPoint>\n" +
+                "            <AffectedStopPoint><StopPointRef>NSR:StopPlace:2</StopPointRef></AffectedStopPoint>\n" +
+                "            <AffectedStopPoint><StopPointRef>NSR:StopPlace:3</StopPointRef></AffectedStopPoint>\n" +
+                "          </StopPoints>\n" +
+                "        </Route>\n" +
+                "      </AffectedVehicleJourney>\n" +
+                "      <AffectedVehicleJourney>\n" +
+                "        <LineRef>NSB:Line:Line2</LineRef>\n" +
+                "        <VehicleJourneyRef>4444</VehicleJourneyRef>\n" +
+                "        <Route>\n" +
+                "          <StopPoints>\n" +
+                "            <AffectedStopPoint><StopPointRef>NSR:StopPlace:2</StopPointRef></AffectedStopPoint>\n" +
+                "          </StopPoints>\n" +
+                "        </Route>\n" +
+                "      </AffectedVehicleJourney>\n" +
+                "    </VehicleJourneys>\n" +
+                "  </Affects>\n" +
+                "</PtSituationElement>";
+        index = new SituationAffectsIndex(new SiriMarshaller().unmarshall(xml, PtSituationElement.class));
+    }
+
+    @Test
+    public void testSubscriptionWithStops() {
+        Subscription subscription = subscription(Arrays.asList("NSR:StopPlace:1", "NSR:StopPlace:3"), null, null);
+        PtSituationElement projection = index.project(subscription, stops("NSR:StopPlace:1", "NSR:StopPlace:3"));
+        assertNotNull(projection);
+        assertEquals("status-1", projection.getSituationNumber().getValue());
+        AffectsScopeStructure affects = projection.getAffects();
+        assertEquals(1, affects.getStopPlaces().getAffectedStopPlaces().size());
+        assertEquals("NSR:StopPlace:1", affects.getStopPlaces().getAffectedStopPlaces().get(0).getStopPlaceRef().getValue());
+        assertTrue(affects.getNetworks().getAffectedNetworks().isEmpty());
+        List<AffectedVehicleJourneyStructure> journeys = affects.getVehicleJourneys().getAffectedVehicleJourneies();
+        assertEquals(1, journeys.size());
+        assertEquals("1234", journeys.get(0).getVehicleJourneyReves().get(0).getValue());
+        AffectedRouteStructure.StopPoints stopPoints = journeys.get(0).getRoutes().get(0).getStopPoints();
+        assertTrue(stopPoints.isAffectedOnly());
+        assertEquals(2, stopPoints.getAffectedStopPointsAndLinkProjectionToNextStopPoints().size());
+        assertEquals("NSR:StopPlace:1", ((AffectedStopPointStructure) stopPoints.getAffectedStopPointsAndLinkProjectionToNextStopPoints().get(0)).getStopPointRef().getValue());
+        assertEquals("NSR:StopPlace:3", ((AffectedStopPointStructure) stopPoints.getAffectedStopPointsAndLinkProjectionToNextStopPoints().get(1)).getStopPointRef().getValue());
+
+        //the next projection must not be affected by the previous:
+        PtSituationElement other = index.project(subscription(Arrays.asList("NSR:StopPlace:2", "NSR:StopPlace:3"), "NSB:Line:Line2", null), stops("NSR:StopPlace:2", "NSR:StopPlace:3"));
+        assertNotNull(other);
+        assertTrue(other.getAffects().getStopPlaces().getAffectedStopPlaces().isEmpty());
+        assertEquals(1, other.getAffects().getNetworks().getAffectedNetworks().size());
+        assertEquals(1, other.getAffects().getNetworks().getAffectedNetworks().get(0).getAffectedLines().size());
+        assertEquals(1, other.getAffects().getVehicleJourneys().getAffectedVehicleJourneies().size());
+        assertEquals("4444", other.getAffects().getVehicleJourneys().getAffectedVehicleJourneies().get(0).getVehicleJourneyReves().get(0).getValue());
+    }
+
+    @Test
+    public void testSubscriptionWithoutStops() {
+        PtSituationElement projection = index.project(subscription(null, "NSB:Line:Line1", null), stops());
+        assertNotNull(projection);
+        AffectsScopeStructure affects = projection.getAffects();
+        assertNull(affects.getStopPlaces());
+        assertEquals(1, affects.getNetworks().getAffectedNetworks().get(0).getAffectedLines().size());
+        List<AffectedVehicleJourneyStructure> journeys = affects.getVehicleJourneys().getAffectedVehicleJourneies();
+        assertEquals(1, journeys.size());
+        assertEquals(3, journeys.get(0).getRoutes().get(0).getStopPoints().getAffectedStopPointsAndLinkProjectionToNextStopPoints().size());
+    }
+
+    @Test
+    public void testSubscriptionWithCodespace() {
+        PtSituationElement projection = index.project(subscription(null, null, "NSB"), stops());
+        assertNotNull(projection);
+        AffectsScopeStructure affects = projection.getAffects();
+        assertEquals(2, affects.getStopPlaces().getAffectedStopPlaces().size());
+        assertEquals(2, affects.getNetworks().getAffectedNetworks().get(0).getAffectedLines().size());
+        assertEquals(2, affects.getVehicleJourneys().getAffectedVehicleJourneies().size());
+    }
+
+    @Test
+    public void testNothingSubscribed() {
+        assertNull(index.project(subscription(Arrays.asList("NSR:StopPlace:7", "NSR:StopPlace:8"), null, null), stops("NSR:StopPlace:7", "NSR:StopPlace:8")));
+        assertNull(index.project(subscription(null, "NSB:Line:Line3", null), stops()));
+    }
+
+    private Subscription subscription(List<String> stops, String line, String codespace) {
+        Subscription subscription = new Subscription();
+        if (stops != null) {
+            subscription.addFromStopPoint(stops.get(0));
+            subscription.addToStopPoint(stops.get(1));
+        }
+        if (line != null) subscription.addLineRef(line);
+        if (codespace != null) subscription.addCodespace(codespace);
+        return subscription;
+    }
+
+    private HashSet<String> stops(String... stops) {
+        return new HashSet<>(Arrays.asList(stops));
+    }
+}
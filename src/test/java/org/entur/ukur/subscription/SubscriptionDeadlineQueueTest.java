@@ -0,0 +1,179 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionDeadlineQueueTest {
+
+    private DatatypeFactory datatypeFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        datatypeFactory = DatatypeFactory.newInstance();
+    }
+
+    @Test
+    public void testPollsDueDeadlinesInOrder() throws Exception {
+        SubscriptionDeadlineQueue queue = new SubscriptionDeadlineQueue();
+        HashMap<String, Long> firstHeartbeats = new HashMap<>();
+        firstHeartbeats.put("1", 300L);
+        firstHeartbeats.put("2", 100L);
+        firstHeartbeats.put("3", 500L);
+        Subscription s1 = createSubscription("1", "PT1M", null);
+        Subscription s2 = createSubscription("2", "PT1M", 200L);
+        Subscription s3 = createSubscription("3", "PT1M", null);
+        queue.update(Arrays.asList(s1, s2, s3), 1, subscription -> firstHeartbeats.get(subscription.getId()));
+        assertEquals(4, queue.size());
+
+        assertTrue(queue.pollDue(100).isEmpty());
+        List<SubscriptionDeadlineQueue.Deadline> due = queue.pollDue(400);
+        assertEquals(Arrays.asList("2", "2", "1"), ids(due));
+        assertEquals(Arrays.asList(SubscriptionDeadlineQueue.DeadlineType.heartbeat,
+                SubscriptionDeadlineQueue.DeadlineType.termination,
+                SubscriptionDeadlineQueue.DeadlineType.heartbeat),
+                due.stream().map(SubscriptionDeadlineQueue.Deadline::getType).collect(Collectors.toList()));
+        assertEquals(1, queue.size());
+        assertEquals(Collections.singletonList("3"), ids(queue.pollDue(1000)));
+    }
+
+    @Test
+    public void testUpdatesOnlyChangedSubscriptionsWhenTheCacheVersionChanges() throws Exception {
+        SubscriptionDeadlineQueue queue = new SubscriptionDeadlineQueue();
+        ArrayList<String> asked = new ArrayList<>();
+        Subscription s1 = createSubscription("1", "PT1M", null);
+        Subscription s2 = createSubscription("2", "PT1M", null);
+        queue.update(Arrays.asList(s1, s2), 1, subscription -> {
+            asked.add(subscription.getId());
+            return 100;
+        });
+        assertEquals(Arrays.asList("1", "2"), asked);
+        assertFalse(queue.isOutdated(1));
+        assertTrue(queue.isOutdated(2));
+
+        asked.clear();
+        Subscription s2WithSameInterval = createSubscription("2", "PT1M", 150L);
+        Subscription s3 = createSubscription("3", "PT1M", null);
+        queue.update(Arrays.asList(s2WithSameInterval, s3), 2, subscription -> {
+            asked.add(subscription.getId());
+            return 200;
+        });
+        assertEquals("Only new subscriptions or changed intervals need a first heartbeat", Collections.singletonList("3"), asked);
+        assertFalse(queue.isOutdated(2));
+        assertEquals(3, queue.size());
+
+        List<SubscriptionDeadlineQueue.Deadline> due = queue.pollDue(1000);
+        assertEquals("Removed subscription 1 must be gone", Arrays.asList("2", "2", "3"), ids(due));
+        assertEquals(100, due.get(0).getDue());
+        assertSame(s2WithSameInterval, due.get(0).getSubscription());
+
+        asked.clear();
+        Subscription s3WithNewInterval = createSubscription("3", "PT2M", null);
+        queue.update(Collections.singletonList(s3WithNewInterval), 3, subscription -> {
+            asked.add(subscription.getId());
+            return 300;
+        });
+        assertEquals(Collections.singletonList("3"), asked);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testRequeuesAfterHeartbeat() throws Exception {
+        SubscriptionDeadlineQueue queue = new SubscriptionDeadlineQueue();
+        Subscription s1 = createSubscription("1", "PT1M", null);
+        Subscription s2 = createSubscription("2", "PT1M", null);
+        queue.update(Arrays.asList(s1, s2), 1, subscription -> "1".equals(subscription.getId()) ? 100 : 150);
+
+        List<SubscriptionDeadlineQueue.Deadline> due = queue.pollDue(200);
+        assertEquals(2, due.size());
+        assertEquals(0, queue.size());
+        queue.scheduleHeartbeat(s1, 400);
+        queue.requeue(due.get(1));
+        assertEquals(2, queue.size());
+
+        assertEquals(Collections.singletonList("2"), ids(queue.pollDue(200)));
+        queue.scheduleHeartbeat(s2, 300);
+        queue.scheduleHeartbeat(s2, 500);
+        assertEquals("A heartbeat is replaced, not added", 2, queue.size());
+        assertEquals(Arrays.asList("1", "2"), ids(queue.pollDue(600)));
+
+        queue.scheduleHeartbeat(s1, 700);
+        queue.update(Collections.singletonList(s1), 2, subscription -> {
+            fail("Unchanged subscriptions keep their heartbeat");
+            return 0;
+        });
+        List<SubscriptionDeadlineQueue.Deadline> afterUpdate = queue.pollDue(800);
+        assertEquals(Collections.singletonList("1"), ids(afterUpdate));
+        assertEquals(700, afterUpdate.get(0).getDue());
+    }
+
+    @Test(timeout = 10_000)
+    public void testReloadOfAllSubscriptionsIsFast() throws Exception {
+        SubscriptionDeadlineQueue queue = new SubscriptionDeadlineQueue();
+        int count = 100_000;
+        queue.update(createSubscriptions(count), 1, subscription -> 1000 + Long.parseLong(subscription.getId()));
+        assertEquals(2 * count, queue.size());
+
+        //a reload from datastore gives new instances of all subscriptions
+        for (int i = 0; i < 5; i++) {
+            queue.update(createSubscriptions(count), 2 + i, subscription -> {
+                fail("Unchanged subscriptions keep their heartbeat");
+                return 0;
+            });
+        }
+        assertEquals(2 * count, queue.size());
+        List<SubscriptionDeadlineQueue.Deadline> due = queue.pollDue(1000 + count);
+        assertEquals("All heartbeats and terminations are due once", 2 * count, due.size());
+    }
+
+    private List<Subscription> createSubscriptions(int count) throws Exception {
+        ArrayList<Subscription> subscriptions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            subscriptions.add(createSubscription(Integer.toString(i), "PT1M", 500L + i));
+        }
+        return subscriptions;
+    }
+
+    private List<String> ids(List<SubscriptionDeadlineQueue.Deadline> deadlines) {
+        return deadlines.stream().map(deadline -> deadline.getSubscription().getId()).collect(Collectors.toList());
+    }
+
+    private Subscription createSubscription(String id, String heartbeatInterval, Long terminationTime) throws Exception {
+        Subscription subscription = new Subscription();
+        subscription.setId(id);
+        Duration interval = datatypeFactory.newDuration(heartbeatInterval);
+        subscription.setHeartbeatInterval(interval);
+        if (terminationTime != null) {
+            subscription.setInitialTerminationTime(ZonedDateTime.ofInstant(Instant.ofEpochMilli(terminationTime), ZoneId.systemDefault()));
+        }
+        return subscription;
+    }
+}
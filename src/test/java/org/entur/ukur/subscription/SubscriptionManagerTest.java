@@ -25,6 +25,7 @@ import javax.xml.bind.JAXBException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.entur.ukur.subscription.SubscriptionTypeEnum.ET;
 import static org.hamcrest.CoreMatchers.hasItem;
@@ -39,7 +40,7 @@ public class SubscriptionManagerTest {
         DataStorageService storageMock = mock(DataStorageService.class);
         QuayAndStopPlaceMappingService mappingMock = mock(QuayAndStopPlaceMappingService.class);
         SubscriptionManager subscriptionManager = new SubscriptionManager(storageMock,
-                new SiriMarshaller(), new MetricsService(), new HashMap<>(), new HashMap<>(), mappingMock);
+                new SiriMarshaller(), new MetricsService(), new HashMap<>(), new HashMap<>(), new ConcurrentHashMap<>(), mappingMock);
 
         when(mappingMock.mapQuayToStopPlace("NSR:Quay:1")).thenReturn("NSR:StopPlace:1");
         Subscription s1 = new Subscription();
@@ -21,6 +21,7 @@ import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
 import com.hazelcast.core.ITopic;
+import com.hazelcast.core.Message;
 import com.hazelcast.test.TestHazelcastInstanceFactory;
 import org.entur.ukur.routedata.LiveJourney;
 import org.entur.ukur.service.DataStorageService;
@@ -38,9 +39,13 @@ import javax.xml.bind.JAXBException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.Duration;
 import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
 import java.math.BigInteger;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
@@ -57,6 +62,7 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
     private Map<Object, Long> alreadySentCache;
     private SiriMarshaller siriMarshaller;
     private DataStorageService dataStorageService;
+    private IMap<String, PushRetry> pushRetries;
 
     @SuppressWarnings("unchecked")
     @Before
@@ -70,7 +76,8 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
         liveJourneyIMap.clear();
         MetricsService metricsService = new MetricsService();
         dataStorageService = new DataStorageService(datastore, liveJourneyIMap, subscriptionTopic);
-        subscriptionManager = new SubscriptionManager(dataStorageService, siriMarshaller, metricsService, alreadySentCache, new HashMap<>(), mock(QuayAndStopPlaceMappingService.class));
+        pushRetries = hazelcastInstance.getMap("pushRetries");
+        subscriptionManager = new SubscriptionManager(dataStorageService, siriMarshaller, metricsService, alreadySentCache, new HashMap<>(), pushRetries, mock(QuayAndStopPlaceMappingService.class));
     }
 
     @Test
@@ -91,6 +98,80 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
         assertEquals(0, subscription.getFailedPushCounter());
     }
 
+    @Test
+    public void testETPushParallelFanOut()  {
+
+        String url = "/push/fanout/et";
+        stubFor(post(urlEqualTo(url))
+                .withHeader("Content-Type", equalTo("application/xml"))
+                .willReturn(aResponse()));
+
+        subscriptionManager.parallelFanOutThreshold = 2;
+        HashSet<Subscription> subscriptions = new HashSet<>();
+        for (int i = 0; i < 60; i++) {
+            subscriptions.add(createSubscription(url, "NSR:Quay:232", "NSR:Quay:125", null));
+        }
+        verify(0, postRequestedFor(urlEqualTo(url)));
+        subscriptionManager.notifySubscriptionsOnStops(subscriptions, new EstimatedVehicleJourney());
+        waitAndVerifyAtLeast(60, postRequestedFor(urlEqualTo(url)));
+    }
+
+    @Test
+    public void testETPushGzip() throws Exception {
+
+        String url = "/push/gzip/et";
+        stubFor(post(urlEqualTo(url))
+                .withHeader("Content-Type", equalTo("application/xml"))
+                .withHeader("Content-Encoding", equalTo("gzip"))
+                .willReturn(aResponse()));
+
+        Subscription subscription = createGzipSubscription("/push/gzip");
+        HashSet<Subscription> subscriptions = new HashSet<>();
+        subscriptions.add(subscription);
+        EstimatedVehicleJourney estimatedVehicleJourney = createEstimatedVehicleJourney();
+        subscriptionManager.notifySubscriptionsOnStops(subscriptions, estimatedVehicleJourney);
+        waitAndVerifyAtLeast(1, postRequestedFor(urlEqualTo(url)).withHeader("Content-Encoding", equalTo("gzip")));
+        assertEquals(0, subscription.getFailedPushCounter());
+
+        LoggedRequest request = findAll(postRequestedFor(urlEqualTo(url))).get(0);
+        try (GZIPInputStream body = new GZIPInputStream(new ByteArrayInputStream(request.getBody()))) {
+            EstimatedVehicleJourney pushed = siriMarshaller.unmarshall(body, EstimatedVehicleJourney.class);
+            assertEquals(estimatedVehicleJourney.getDatedVehicleJourneyRef().getValue(), pushed.getDatedVehicleJourneyRef().getValue());
+            assertEquals(estimatedVehicleJourney.getLineRef().getValue(), pushed.getLineRef().getValue());
+        }
+    }
+
+    @Test
+    public void testETPushGzipUnsupportedTurnsOffGzip() throws Exception {
+
+        String url = "/push/gzip-unsupported/et";
+        stubFor(post(urlEqualTo(url))
+                .withHeader("Content-Type", equalTo("application/xml"))
+                .willReturn(aResponse()));
+        stubFor(post(urlEqualTo(url))
+                .withHeader("Content-Encoding", equalTo("gzip"))
+                .willReturn(aResponse().withStatus(415)));
+
+        Subscription subscription = createGzipSubscription("/push/gzip-unsupported");
+        HashSet<Subscription> subscriptions = new HashSet<>();
+        subscriptions.add(subscription);
+        EstimatedVehicleJourney estimatedVehicleJourney = createEstimatedVehicleJourney();
+        subscriptionManager.notifySubscriptionsOnStops(subscriptions, estimatedVehicleJourney);
+        waitAndVerifyAtLeast(1, postRequestedFor(urlEqualTo(url)).withHeader("Content-Encoding", equalTo("gzip")));
+        long start = System.currentTimeMillis();
+        while (dataStorageService.getSubscription(subscription.getId()).isGzipPush() && System.currentTimeMillis() - start < 10000) {
+            Thread.sleep(10);
+        }
+        assertFalse(dataStorageService.getSubscription(subscription.getId()).isGzipPush());
+        assertEquals(0, subscription.getFailedPushCounter()); //not the subscriber's fault
+
+        //the next push is sent uncompressed
+        estimatedVehicleJourney.setDataSource("uncompressed");
+        subscriptionManager.notifySubscriptionsOnStops(subscriptions, estimatedVehicleJourney);
+        waitAndVerifyAtLeast(1, postRequestedFor(urlEqualTo(url)).withHeader("Content-Encoding", absent()));
+        verify(1, postRequestedFor(urlEqualTo(url)).withHeader("Content-Encoding", equalTo("gzip")));
+    }
+
     @Test
     public void testETPushOkWithSiriRoot() throws JAXBException, XMLStreamException {
 
@@ -139,6 +220,51 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
     }
 
 
+    @Test
+    public void testETPushBatchWithSiriRoot() throws JAXBException, XMLStreamException {
+
+        String url = "/push/batch-siri/";
+        stubFor(post(urlEqualTo(url))
+                .withHeader("Content-Type", equalTo("application/xml"))
+                .willReturn(aResponse()));
+        subscriptionManager.pushBatchMaxSize = 2;
+        subscriptionManager.pushBatchLingerMs = 60_000;
+
+        Subscription subscription = new Subscription();
+        subscription.addFromStopPoint("NSR:Quay:232");
+        subscription.addToStopPoint("NSR:Quay:125");
+        subscription.setName("Push batch over http test");
+        subscription.setPushAddress("http://localhost:" + wireMockRule.port() + url);
+        subscription.setUseSiriSubscriptionModel(true);
+        subscription = subscriptionManager.addOrUpdate(subscription);
+        HashSet<Subscription> subscriptions = new HashSet<>();
+        subscriptions.add(subscription);
+
+        subscriptionManager.notifySubscriptionsOnStops(subscriptions, createJourney("TEST:1"));
+        subscriptionManager.notifySubscriptionsOnStops(subscriptions, createJourney("TEST:2"));
+        waitAndVerifyAtLeast(1, postRequestedFor(urlEqualTo(url)));
+        List<LoggedRequest> loggedRequests = findAll(postRequestedFor(urlEqualTo(url)));
+        assertEquals(1, loggedRequests.size());
+        Siri siri = siriMarshaller.unmarshall(new String(loggedRequests.get(0).getBody()), Siri.class);
+        assertEquals("TEST", siri.getServiceDelivery().getProducerRef().getValue());
+        assertEquals(1, siri.getServiceDelivery().getEstimatedTimetableDeliveries().size());
+        List<EstimatedVersionFrameStructure> frames = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames();
+        assertEquals(1, frames.size());
+        List<EstimatedVehicleJourney> journeys = frames.get(0).getEstimatedVehicleJourneies();
+        assertEquals(2, journeys.size());
+        assertEquals("TEST:1", journeys.get(0).getDatedVehicleJourneyRef().getValue());
+        assertEquals("TEST:2", journeys.get(1).getDatedVehicleJourneyRef().getValue());
+    }
+
+    private EstimatedVehicleJourney createJourney(String datedVehicleJourneyRef) {
+        EstimatedVehicleJourney et = new EstimatedVehicleJourney();
+        et.setDataSource("TEST");
+        DatedVehicleJourneyRef ref = new DatedVehicleJourneyRef();
+        ref.setValue(datedVehicleJourneyRef);
+        et.setDatedVehicleJourneyRef(ref);
+        return et;
+    }
+
     @Test
     public void testETPushForget()  {
 
@@ -161,9 +287,9 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
     }
 
     @Test
-    public void testETPushError() {
+    public void testETPushServerErrorKeepsSubscription() {
 
-        String url = "/push/error/et";
+        String url = "/push/servererror/et";
         stubFor(post(urlEqualTo(url))
                 .withHeader("Content-Type", equalTo("application/xml"))
                 .willReturn(aResponse()
@@ -171,6 +297,31 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
                         .withHeader("Content-Type", "text/plain")
                         .withBody("Internal server error")));
 
+        Subscription subscription = createSubscription(url, "NSR:Quay:232", "NSR:Quay:125", null);
+        HashSet<Subscription> subscriptions = new HashSet<>();
+        subscriptions.add(subscription);
+        EstimatedVehicleJourney estimatedVehicleJourney = new EstimatedVehicleJourney();
+        for (int i = 0; i < 4; i++) {
+            estimatedVehicleJourney.setDataSource("source" + i); //must add something so it differs from the previous ones
+            subscriptionManager.notifySubscriptionsOnStops(subscriptions, estimatedVehicleJourney);
+            waitAndVerifyAtLeast(i + 1, postRequestedFor(urlEqualTo(url)));
+        }
+        //server errors are left to the circuit breaker and retries, and don't count towards removal
+        assertEquals(0, subscription.getFailedPushCounter());
+        assertThat(dataStorageService.getSubscriptions(), hasItem(subscription));
+    }
+
+    @Test
+    public void testETPushError() {
+
+        String url = "/push/error/et";
+        stubFor(post(urlEqualTo(url))
+                .withHeader("Content-Type", equalTo("application/xml"))
+                .willReturn(aResponse()
+                        .withStatus(404)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody("Not found")));
+
         Subscription subscription = createSubscription(url, "NSR:Quay:232", "NSR:Quay:125", null);
         verify(0, postRequestedFor(urlEqualTo(url)));
         assertEquals(0, subscription.getFailedPushCounter());
@@ -204,6 +355,92 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
         waitUntilSubscriptionIsRemoved(subscription);
     }
 
+    @Test
+    public void testETPushToUnreachableEndpointEventuallyRemovesSubscription() {
+
+        String url = "/push/unreachable/et";
+        stubFor(post(urlEqualTo(url))
+                .withHeader("Content-Type", equalTo("application/xml"))
+                .willReturn(aResponse().withStatus(503)));
+
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        subscriptionManager.pushEndpointClock = now::get;
+        Subscription subscription = createSubscription(url, "NSR:Quay:232", "NSR:Quay:125", null);
+        String pushHost = "localhost:" + wireMockRule.port();
+        HashSet<Subscription> subscriptions = new HashSet<>();
+        subscriptions.add(subscription);
+        EstimatedVehicleJourney estimatedVehicleJourney = new EstimatedVehicleJourney();
+        int pushes = 0;
+        for (int i = 0; i < PushEndpoint.FAILURE_THRESHOLD; i++) {
+            estimatedVehicleJourney.setDataSource("source" + pushes); //must add something so it differs from the previous ones
+            subscriptionManager.notifySubscriptionsOnStops(subscriptions, estimatedVehicleJourney);
+            waitAndVerifyAtLeast(++pushes, postRequestedFor(urlEqualTo(url)));
+        }
+        waitForPushHostState(pushHost, PushEndpoint.State.OPEN);
+
+        for (int i = 0; i < PushEndpoint.MAX_FAILED_PROBES; i++) {
+            assertThat(dataStorageService.getSubscriptions(), hasItem(subscription));
+            now.addAndGet(PushEndpoint.MAX_OPEN_DURATION_MS);
+            estimatedVehicleJourney.setDataSource("source" + pushes);
+            subscriptionManager.notifySubscriptionsOnStops(subscriptions, estimatedVehicleJourney);
+            waitAndVerifyAtLeast(++pushes, postRequestedFor(urlEqualTo(url)));
+            waitForPushHostState(pushHost, PushEndpoint.State.OPEN);
+        }
+        assertEquals("Unreachable endpoints don't count as failed pushes", 0, subscription.getFailedPushCounter());
+
+        //the push host is now regarded as gone, and the next (rejected) push removes the subscription
+        estimatedVehicleJourney.setDataSource("source" + pushes);
+        subscriptionManager.notifySubscriptionsOnStops(subscriptions, estimatedVehicleJourney);
+        waitUntilSubscriptionIsRemoved(subscription);
+        verify(pushes, postRequestedFor(urlEqualTo(url)));
+    }
+
+    @Test
+    public void testETRetriesGoThroughPushHostCircuit() throws JAXBException, XMLStreamException {
+
+        String url = "/push/retry/circuit/et";
+        stubFor(post(urlEqualTo(url))
+                .withHeader("Content-Type", equalTo("application/xml"))
+                .willReturn(aResponse().withStatus(503)));
+
+        Subscription subscription = createSubscription(url, "NSR:Quay:232", "NSR:Quay:125", null);
+        String pushHost = "localhost:" + wireMockRule.port();
+        EstimatedVehicleJourney estimatedVehicleJourney = createEstimatedVehicleJourney();
+        for (int i = 0; i < PushEndpoint.FAILURE_THRESHOLD; i++) {
+            pushRetries.put(subscription.getId() + "_et_retry" + i, new PushRetry(subscription.getId(), estimatedVehicleJourney, 1, 0));
+        }
+        waitAndVerifyAtLeast(PushEndpoint.FAILURE_THRESHOLD, postRequestedFor(urlEqualTo(url)));
+        //failed retries count towards the push host's circuit, and are rescheduled with one more attempt
+        waitForPushHostState(pushHost, PushEndpoint.State.OPEN);
+        for (int i = 0; i < PushEndpoint.FAILURE_THRESHOLD; i++) {
+            PushRetry retry = pushRetries.get(subscription.getId() + "_et_retry" + i);
+            assertNotNull(retry);
+            assertEquals(2, retry.getAttempts());
+        }
+    }
+
+    @Test
+    public void testETPushErrorKeepsSubscriptionWithPendingRetries() {
+
+        String url = "/push/error/pending/et";
+        stubFor(post(urlEqualTo(url))
+                .withHeader("Content-Type", equalTo("application/xml"))
+                .willReturn(aResponse().withStatus(400)));
+
+        Subscription subscription = createSubscription(url, "NSR:Quay:232", "NSR:Quay:125", null);
+        pushRetries.put(subscription.getId() + "_et_pending", new PushRetry(subscription.getId(), "pending", 1, Long.MAX_VALUE));
+        HashSet<Subscription> subscriptions = new HashSet<>();
+        subscriptions.add(subscription);
+        EstimatedVehicleJourney estimatedVehicleJourney = new EstimatedVehicleJourney();
+        for (int i = 0; i < 4; i++) {
+            estimatedVehicleJourney.setDataSource("source" + i); //must add something so it differs from the previous ones
+            subscriptionManager.notifySubscriptionsOnStops(subscriptions, estimatedVehicleJourney);
+            waitAndVerifyAtLeast(i + 1, postRequestedFor(urlEqualTo(url)));
+            waitAndVerifyFailedPushCounter(i + 1, subscription);
+        }
+        assertThat(dataStorageService.getSubscriptions(), hasItem(subscription));
+    }
+
     @Test
     public void dontPushSameETMessageMoreThanOnce() throws JAXBException, XMLStreamException {
 
@@ -252,6 +489,37 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
         waitAndVerifyAtLeast(2, postRequestedFor(urlEqualTo(url)));
         assertEquals(0, subscription.getFailedPushCounter());
         assertEquals(2, alreadySentCache.keySet().size());
+
+        DeliveryStats stats = subscriptionManager.getLocalDeliveryStats(subscription.getId());
+        assertEquals(4, stats.getMatched());
+        assertEquals(2, stats.getDeduplicated());
+    }
+
+    @Test
+    public void testDeliveryStatsAreDroppedWhenSubscriptionIsRemovedOnAnotherNode() throws JAXBException, XMLStreamException {
+
+        String url = "/push/stats/removed/et";
+        stubFor(post(urlEqualTo(url))
+                .withHeader("Content-Type", equalTo("application/xml"))
+                .willReturn(aResponse()));
+
+        Subscription subscription = createSubscription(url, "NSR:Quay:232", "NSR:Quay:125", null);
+        HashSet<Subscription> subscriptions = new HashSet<>();
+        subscriptions.add(subscription);
+        EstimatedVehicleJourney estimatedVehicleJourney = createEstimatedVehicleJourney();
+        subscriptionManager.notifySubscriptionsOnStops(subscriptions, estimatedVehicleJourney);
+        waitAndVerifyAtLeast(1, postRequestedFor(urlEqualTo(url)));
+        assertEquals(1, subscriptionManager.getLocalDeliveryStats(subscription.getId()).getMatched());
+
+        //the node that removed the subscription tells the others on the subscription topic
+        dataStorageService.onMessage(new Message<>("subscriptionTopic", "REMOVED " + subscription.getId(), System.currentTimeMillis() + 1000, null));
+        assertEquals(0, subscriptionManager.getLocalDeliveryStats(subscription.getId()).getMatched());
+
+        //late notifications don't bring them back
+        estimatedVehicleJourney.setDataSource("late");
+        subscriptionManager.notifySubscriptionsOnStops(subscriptions, estimatedVehicleJourney);
+        waitAndVerifyAtLeast(2, postRequestedFor(urlEqualTo(url)));
+        assertEquals(0, subscriptionManager.getLocalDeliveryStats(subscription.getId()).getMatched());
     }
 
     @Test
@@ -471,6 +739,45 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
         expectReceived(0, s3RequestPattern);
     }
 
+    @Test
+    public void testHeartbeatIsSentOnceWhenTwoNodesHandleIt() throws Exception {
+        createStubAndSiriSubscription("s4", DatatypeFactory.newInstance().newDuration("PT1M"), null);
+        RequestPatternBuilder s4RequestPattern = postRequestedFor(urlEqualTo("/heartbeat/s4"));
+        Map<String, Long> heartbeats = new ConcurrentHashMap<>();
+        HashMap<String, Long> staleReads = new HashMap<>();
+        //the second node reads the next heartbeat before the first one has sent it
+        Map<String, Long> staleHeartbeats = new ConcurrentHashMap<String, Long>() {
+            @Override
+            public Long get(Object key) {
+                return staleReads.containsKey(key) ? staleReads.get(key) : heartbeats.get(key);
+            }
+
+            @Override
+            public Long putIfAbsent(String key, Long value) {
+                return heartbeats.putIfAbsent(key, value);
+            }
+
+            @Override
+            public boolean replace(String key, Long oldValue, Long newValue) {
+                return heartbeats.replace(key, oldValue, newValue);
+            }
+        };
+        SubscriptionManager node1 = new SubscriptionManager(dataStorageService, siriMarshaller, new MetricsService(), new HashMap<>(), heartbeats, new HashMap<>(), mock(QuayAndStopPlaceMappingService.class));
+        SubscriptionManager node2 = new SubscriptionManager(dataStorageService, siriMarshaller, new MetricsService(), new HashMap<>(), staleHeartbeats, new HashMap<>(), mock(QuayAndStopPlaceMappingService.class));
+
+        ZonedDateTime start = ZonedDateTime.now();
+        node1.handleHeartbeatAndTermination(start);
+        node2.handleHeartbeatAndTermination(start);
+        assertEquals(1, heartbeats.size());
+        staleReads.putAll(heartbeats);
+
+        node1.handleHeartbeatAndTermination(start.plusSeconds(61));
+        node2.handleHeartbeatAndTermination(start.plusSeconds(61));
+        waitAndVerifyNotificationsInOrder(s4RequestPattern, HeartbeatNotificationStructure.class);
+        Thread.sleep(100); //allow some time for a duplicate to arrive...
+        expectReceived(1, s4RequestPattern);
+    }
+
     private void waitNoActivePushThreads() {
         long start = System.currentTimeMillis();
         while (subscriptionManager.getActivePushThreads() > 0) {
@@ -647,6 +954,18 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
         return siriMarshaller.unmarshall(xml, EstimatedVehicleJourney.class);
     }
 
+    private Subscription createGzipSubscription(String pushAddress) {
+        Subscription subscription = new Subscription();
+        subscription.addFromStopPoint("NSR:Quay:232");
+        subscription.addToStopPoint("NSR:Quay:125");
+        subscription.setName("Push gzip over http test");
+        subscription.setPushAddress("http://localhost:" + wireMockRule.port() + pushAddress);
+        subscription.setGzipPush(true);
+        subscription = subscriptionManager.addOrUpdate(subscription);
+        assertTrue(subscription.isGzipPush());
+        return subscription;
+    }
+
     private Subscription createSubscription(String pushAddress, String from, String to, String line) {
         return createSubscription(pushAddress, from, to, line, null);
     }
@@ -742,6 +1061,16 @@ public class SubscriptionManagerWiremockTest extends DatastoreTest {
         }
     }
 
+    private void waitForPushHostState(String pushHost, PushEndpoint.State expected) {
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 10000) {
+            if (expected.name().equals(subscriptionManager.getPushEndpointStates().get(pushHost))) {
+                return;
+            }
+        }
+        assertEquals(expected.name(), subscriptionManager.getPushEndpointStates().get(pushHost));
+    }
+
     private void waitUntilSubscriptionIsRemoved(Subscription subscription) {
         long start = System.currentTimeMillis();
         while (System.currentTimeMillis() - start < 10000) {
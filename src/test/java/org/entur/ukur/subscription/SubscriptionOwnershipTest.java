@@ -0,0 +1,152 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.subscription;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.test.TestHazelcastInstanceFactory;
+import org.entur.ukur.service.ExtendedHazelcastService;
+import org.entur.ukur.service.MetricsService;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.LineRef;
+
+import java.time.ZonedDateTime;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class SubscriptionOwnershipTest {
+
+    private TestHazelcastInstanceFactory factory = new TestHazelcastInstanceFactory(2);
+
+    @After
+    public void tearDown() {
+        factory.shutdownAll();
+    }
+
+    @Test
+    public void testHandsOverToOwner() {
+        HazelcastInstance member1 = factory.newHazelcastInstance();
+        HazelcastInstance member2 = factory.newHazelcastInstance();
+        SubscriptionManager manager1 = mock(SubscriptionManager.class);
+        SubscriptionManager manager2 = mock(SubscriptionManager.class);
+        SubscriptionOwnership ownership1 = createOwnership(member1, manager1);
+        SubscriptionOwnership ownership2 = createOwnership(member2, manager2);
+        verify(manager1).setSubscriptionOwnership(ownership1);
+
+        Subscription ownedBy1 = null;
+        Subscription ownedBy2 = null;
+        for (int i = 0; i < 1000 && (ownedBy1 == null || ownedBy2 == null); i++) {
+            Subscription subscription = new Subscription();
+            subscription.setId("subscription-" + i);
+            assertNotEquals("exactly one member owns a subscription", ownership1.isOwnedLocally(subscription.getId()), ownership2.isOwnedLocally(subscription.getId()));
+            if (ownership1.isOwnedLocally(subscription.getId())) {
+                ownedBy1 = subscription;
+            } else {
+                ownedBy2 = subscription;
+            }
+        }
+        assertNotNull(ownedBy1);
+        assertNotNull(ownedBy2);
+
+        assertFalse(ownership1.handOverIfOwnedElsewhere(ownedBy1, "message"));
+        assertTrue(ownership1.handOverIfOwnedElsewhere(ownedBy2, "message"));
+        verify(manager2, timeout(5000)).pushHandedOverMessage(ownedBy2.getId(), "message");
+        verify(manager1, never()).pushHandedOverMessage(anyString(), any());
+        verify(manager1, never()).pushOwnedMessage(any(Subscription.class), any());
+    }
+
+    @Test
+    public void testHandsOverSiriElements() {
+        HazelcastInstance member1 = factory.newHazelcastInstance();
+        HazelcastInstance member2 = factory.newHazelcastInstance();
+        SubscriptionManager manager1 = mock(SubscriptionManager.class);
+        SubscriptionManager manager2 = mock(SubscriptionManager.class);
+        SubscriptionOwnership ownership1 = createOwnership(member1, manager1);
+        createOwnership(member2, manager2);
+        Subscription ownedBy2 = findSubscriptionNotOwnedBy(ownership1);
+
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue("NSB:Line:L1");
+        journey.setLineRef(lineRef);
+        assertTrue(ownership1.handOverIfOwnedElsewhere(ownedBy2, journey));
+        ArgumentCaptor<Object> handedOver = ArgumentCaptor.forClass(Object.class);
+        verify(manager2, timeout(5000)).pushHandedOverMessage(eq(ownedBy2.getId()), handedOver.capture());
+        assertTrue(handedOver.getValue() instanceof EstimatedVehicleJourney);
+        assertEquals("NSB:Line:L1", ((EstimatedVehicleJourney) handedOver.getValue()).getLineRef().getValue());
+        verify(manager1, never()).pushOwnedMessage(any(Subscription.class), any());
+    }
+
+    @Test
+    public void testPushesNotSerializableLocally() {
+        HazelcastInstance member1 = factory.newHazelcastInstance();
+        HazelcastInstance member2 = factory.newHazelcastInstance();
+        SubscriptionManager manager1 = mock(SubscriptionManager.class);
+        SubscriptionManager manager2 = mock(SubscriptionManager.class);
+        MetricsService metricsService = new MetricsService();
+        ExtendedHazelcastService hazelcastService = mock(ExtendedHazelcastService.class);
+        when(hazelcastService.getHazelcastInstance()).thenReturn(member1);
+        SubscriptionOwnership ownership1 = new SubscriptionOwnership(hazelcastService, manager1, metricsService, true);
+        createOwnership(member2, manager2);
+        Subscription ownedBy2 = findSubscriptionNotOwnedBy(ownership1);
+
+        assertFalse(ownership1.handOverIfOwnedElsewhere(ownedBy2, new Object()));
+        assertEquals(1, metricsService.getMeter(MetricsService.METER_PUSH_NOT_HANDED_OVER).getCount());
+        verify(manager2, never()).pushHandedOverMessage(anyString(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testHeartbeatsOnAllMembers() {
+        HazelcastInstance member1 = factory.newHazelcastInstance();
+        HazelcastInstance member2 = factory.newHazelcastInstance();
+        SubscriptionManager manager1 = mock(SubscriptionManager.class);
+        SubscriptionManager manager2 = mock(SubscriptionManager.class);
+        SubscriptionOwnership ownership1 = createOwnership(member1, manager1);
+        createOwnership(member2, manager2);
+
+        ZonedDateTime now = ZonedDateTime.now();
+        ownership1.handleHeartbeatAndTerminationOnAllMembers(now);
+        verify(manager1).handleOwnedHeartbeatAndTermination(now);
+        verify(manager2).handleOwnedHeartbeatAndTermination(now);
+        verify(manager1, never()).handleHeartbeatAndTermination(any(ZonedDateTime.class), any(Predicate.class));
+
+        doThrow(new IllegalStateException("fails")).when(manager2).handleOwnedHeartbeatAndTermination(any(ZonedDateTime.class));
+        ownership1.handleHeartbeatAndTerminationOnAllMembers(now);
+        verify(manager1).handleHeartbeatAndTermination(eq(now), any(Predicate.class));
+    }
+
+    private Subscription findSubscriptionNotOwnedBy(SubscriptionOwnership ownership) {
+        for (int i = 0; i < 1000; i++) {
+            Subscription subscription = new Subscription();
+            subscription.setId("subscription-" + i);
+            if (!ownership.isOwnedLocally(subscription.getId())) {
+                return subscription;
+            }
+        }
+        throw new AssertionError("All subscriptions are owned by one member");
+    }
+
+    private SubscriptionOwnership createOwnership(HazelcastInstance member, SubscriptionManager manager) {
+        ExtendedHazelcastService hazelcastService = mock(ExtendedHazelcastService.class);
+        when(hazelcastService.getHazelcastInstance()).thenReturn(member);
+        return new SubscriptionOwnership(hazelcastService, manager, new MetricsService(), true);
+    }
+}
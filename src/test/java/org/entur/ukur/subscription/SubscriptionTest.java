@@ -17,7 +17,10 @@ package org.entur.ukur.subscription;
 
 import org.junit.Test;
 
+import java.util.Collections;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
 
 public class SubscriptionTest {
@@ -38,4 +41,18 @@ public class SubscriptionTest {
         assertEquals("ClientID", s.getSiriClientGeneratedId());
     }
 
+    @Test
+    public void verifyStopsRevisionChangesWithStops() {
+        Subscription s = new Subscription();
+        long revision = s.getStopsRevision();
+        s.setName("Name");
+        assertEquals(revision, s.getStopsRevision());
+        s.addFromStopPoint("NSR:StopPlace:1");
+        assertNotEquals(revision, s.getStopsRevision());
+        revision = s.getStopsRevision();
+        s.setToStopPlaces(Collections.singleton("NSR:StopPlace:2"));
+        assertNotEquals(revision, s.getStopsRevision());
+        assertNotEquals(new Subscription().getStopsRevision(), new Subscription().getStopsRevision());
+    }
+
 }
\ No newline at end of file
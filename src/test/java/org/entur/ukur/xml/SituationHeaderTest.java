@@ -0,0 +1,61 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.ukur.xml;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SituationHeaderTest {
+
+    @Test
+    public void testPeek() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" +
+                "<PtSituationElement xmlns=\"http://www.siri.org.uk/siri\">\n" +
+                "  <CreationTime>2018-01-19T10:01:05+01:00</CreationTime>\n" +
+                "  <ParticipantRef>NSB</ParticipantRef>\n" +
+                "  <SituationNumber> status-167911766 </SituationNumber>\n" +
+                "  <Version>2</Version>\n" +
+                "  <Affects/>\n" +
+                "</PtSituationElement>";
+        SituationHeader header = SituationHeader.peek(xml.getBytes(StandardCharsets.UTF_8));
+        assertEquals("NSB", header.getParticipantRef());
+        assertEquals("status-167911766", header.getSituationNumber());
+        assertEquals("2", header.getVersion());
+        assertEquals("NSB:status-167911766", header.getKey());
+    }
+
+    @Test
+    public void testPeekIgnoresNestedElements() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" +
+                "<PtSituationElement xmlns=\"http://www.siri.org.uk/siri\">\n" +
+                "  <References>\n" +
+                "    <RelatedToRef>\n" +
+                "      <SituationNumber>other</SituationNumber>\n" +
+                "      <Version>7</Version>\n" +
+                "    </RelatedToRef>\n" +
+                "  </References>\n" +
+                "  <Affects/>\n" +
+                "  <Version>3</Version>\n" +
+                "</PtSituationElement>";
+        SituationHeader header = SituationHeader.peek(xml.getBytes(StandardCharsets.UTF_8));
+        assertNull(header.getSituationNumber());
+        assertNull(header.getVersion()); //stops reading at Affects
+    }
+}